@@ -24,6 +24,13 @@ public class GcmResponse {
     @SerializedName("results")
     public List<ResultData> results;
 
+    // Topic and condition messages have a single top-level result instead of results.
+    @SerializedName("message_id")
+    public String topicMessageId;
+
+    @SerializedName("error")
+    public String error;
+
     public class ResultData {
         @SerializedName("message_id")
         public String messageId;
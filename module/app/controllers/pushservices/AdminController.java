@@ -0,0 +1,171 @@
+package controllers.pushservices;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import enums.pushservices.FailureType;
+import helpers.pushservices.ConfigHelper;
+import main.pushservices.Constants;
+import models.pushservices.db.Message;
+import play.libs.Json;
+import play.mvc.Controller;
+import play.mvc.Result;
+import services.pushservices.DispatchMetrics;
+import services.pushservices.FairMessageQueue;
+import services.pushservices.MessageScheduler;
+import services.pushservices.TaskQueue;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+
+/**
+ * Admin and status routes for the TaskQueue of this process. Every response is served from in-memory
+ * state and metrics, never from the database, so checking on the queue during an incident adds no load.
+ * <p>
+ * Disabled by default, when every route returns 404. The routes are not authenticated, so route them
+ * (<code>-> /pushservices pushservices.Routes</code>) behind the application's own access control.
+ * Enable with:
+ * <pre>
+ * pushservices.admin.enabled = true
+ * </pre>
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class AdminController extends Controller {
+    private static final String CONFIG_ENABLED = Constants.CONFIG_ADMIN + ".enabled";
+
+    private final TaskQueue mTaskQueue;
+    private final FairMessageQueue mFairMessageQueue;
+    private final MessageScheduler mMessageScheduler;
+    private final DispatchMetrics mDispatchMetrics;
+    private final boolean mEnabled;
+
+    @Inject
+    public AdminController(TaskQueue taskQueue, FairMessageQueue fairMessageQueue, MessageScheduler messageScheduler,
+                           DispatchMetrics dispatchMetrics, Config configuration) {
+        mTaskQueue = taskQueue;
+        mFairMessageQueue = fairMessageQueue;
+        mMessageScheduler = messageScheduler;
+        mDispatchMetrics = dispatchMetrics;
+        mEnabled = ConfigHelper.getBoolean(configuration, CONFIG_ENABLED, false);
+    }
+
+    /**
+     * @return queue sizes, current throughput, recent failures and every metric value.
+     */
+    public Result status() {
+        if (!mEnabled) {
+            return notFound();
+        }
+
+        ObjectNode status = Json.newObject();
+        status.put("draining", mTaskQueue.isDraining());
+        status.put("queuedMessages", mTaskQueue.getQueuedCount());
+        status.put("dispatchingMessages", mTaskQueue.getDispatchingMessages().size());
+        status.put("scheduledMessages", mMessageScheduler.getScheduledCount());
+        status.put("recipientsPerSecond", mDispatchMetrics.getRecentThroughput());
+        status.set("recentFailures", getRecentFailures());
+
+        ObjectNode metrics = status.putObject("metrics");
+        for (Map.Entry<String, Number> value : mDispatchMetrics.getSnapshot().toValues().entrySet()) {
+            metrics.putPOJO(value.getKey(), value.getValue());
+        }
+        return ok(status);
+    }
+
+    /**
+     * @return the queued messages, weight and recipients in flight of each tenant lane.
+     */
+    public Result lanes() {
+        if (!mEnabled) {
+            return notFound();
+        }
+
+        ArrayNode lanes = Json.newArray();
+        for (FairMessageQueue.LaneStatus laneStatus : mFairMessageQueue.getLaneStatus()) {
+            lanes.addObject()
+                    .put("tenant", laneStatus.getTenant())
+                    .put("weight", laneStatus.getWeight())
+                    .put("queuedMessages", laneStatus.getQueuedMessages())
+                    .put("inFlightRecipients", laneStatus.getInFlightRecipients());
+        }
+        return ok(lanes);
+    }
+
+    /**
+     * @return the messages dispatched to a platform which have not yet returned.
+     */
+    public Result inFlight() {
+        if (!mEnabled) {
+            return notFound();
+        }
+
+        ArrayNode messages = Json.newArray();
+        for (Message message : mTaskQueue.getDispatchingMessages()) {
+            messages.add(getProgress(message));
+        }
+        return ok(messages);
+    }
+
+    /**
+     * @param id the message id.
+     * @return the progress of a message that is active in this process.
+     */
+    public Result message(Long id) {
+        if (!mEnabled) {
+            return notFound();
+        }
+
+        Message message = mTaskQueue.getActiveMessage(id);
+        if (message == null) {
+            return notFound(Json.newObject().put("error", "Message is not active in this process."));
+        }
+        return ok(getProgress(message));
+    }
+
+    /**
+     * @return the failures over the last minute, by failure type.
+     */
+    public Result failures() {
+        if (!mEnabled) {
+            return notFound();
+        }
+        return ok(getRecentFailures());
+    }
+
+    @Nonnull
+    private ObjectNode getRecentFailures() {
+        ObjectNode failures = Json.newObject();
+        for (Map.Entry<FailureType, Long> failure : mDispatchMetrics.getRecentFailures().entrySet()) {
+            failures.put(failure.getKey().name(), failure.getValue());
+        }
+        return failures;
+    }
+
+    @Nonnull
+    private ObjectNode getProgress(@Nonnull Message message) {
+        String state = mTaskQueue.isDispatching(message.getId())
+                ? "DISPATCHING"
+                : mMessageScheduler.getScheduledMessage(message.getId()) != null ? "SCHEDULED" : "QUEUED";
+
+        ObjectNode progress = Json.newObject()
+                .put("id", message.getId())
+                .put("state", state)
+                .put("cancelled", message.isCancelled())
+                .put("pending", message.getPendingCount())
+                .put("retrying", message.getRetryingCount())
+                .put("completed", message.getCompleteCount())
+                .put("failed", message.getFailedCount())
+                .put("cancelledRecipients", message.getCancelledCount())
+                .put("expired", message.getExpiredCount())
+                .put("inFlightRecipients", mFairMessageQueue.getInFlightRecipients(message.getId()));
+
+        if (message.getSendAt() != null) {
+            progress.put("sendAt", message.getSendAt().getTime());
+        }
+        return progress;
+    }
+}
@@ -0,0 +1,184 @@
+package dao.pushservices;
+
+import annotations.pushservices.PushServicesEbeanServer;
+import helpers.pushservices.MessageHelper;
+import io.ebean.EbeanServer;
+import io.ebean.SqlUpdate;
+import io.ebean.Transaction;
+import models.pushservices.db.Audience;
+import play.Logger;
+import services.pushservices.CanonicalTokenRegistry;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Stored {@link Audience} persistence. Audience members are added and removed incrementally,
+ * and are never copied into per-message recipients.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class AudienceDao {
+    private static final int MEMBER_CHUNK_SIZE = 1000;
+
+    private final EbeanServer mEbeanServer;
+    private final CanonicalTokenRegistry mCanonicalTokenRegistry;
+
+    @Inject
+    public AudienceDao(@PushServicesEbeanServer EbeanServer ebeanServer, CanonicalTokenRegistry canonicalTokenRegistry) {
+        mEbeanServer = ebeanServer;
+        mCanonicalTokenRegistry = canonicalTokenRegistry;
+    }
+
+    /**
+     * Get an audience by name, creating it if it does not exist.
+     *
+     * @param name unique audience name, such as a route or topic.
+     * @return the persisted audience, or null on an error.
+     */
+    @Nullable
+    public synchronized Audience createAudience(@Nonnull String name) {
+        try {
+            Audience audience = fetchAudience(name);
+            if (audience == null) {
+                audience = new Audience(name);
+                mEbeanServer.save(audience);
+            }
+            return audience;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error creating audience %s: %s.", name, e.getMessage()));
+        }
+        return null;
+    }
+
+    /**
+     * Get an audience by name.
+     *
+     * @param name audience name.
+     * @return the audience, or null if none exists.
+     */
+    @Nullable
+    public Audience fetchAudience(@Nonnull String name) {
+        try {
+            return mEbeanServer.find(Audience.class)
+                    .where()
+                    .eq("name", name)
+                    .findOne();
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching audience %s: %s.", name, e.getMessage()));
+        }
+        return null;
+    }
+
+    /**
+     * Add device tokens to an audience, inserting a chunk of tokens per statement. Invalid tokens are
+     * skipped, stale tokens are replaced with their canonical token, and tokens which are already
+     * members are ignored.
+     *
+     * @param audience the persisted audience.
+     * @param tokens   device tokens to add.
+     * @return the number of tokens added, or -1 on an error.
+     */
+    public int addTokens(@Nonnull Audience audience, @Nonnull Iterator<String> tokens) {
+        int addedCount = 0;
+        try {
+            List<String> chunkTokens = new ArrayList<>(MEMBER_CHUNK_SIZE);
+            while (tokens.hasNext()) {
+                String token = tokens.next();
+                if (MessageHelper.isTokenValid(token)) {
+                    chunkTokens.add(mCanonicalTokenRegistry.getCanonicalToken(token));
+                }
+
+                if (chunkTokens.size() == MEMBER_CHUNK_SIZE || (!tokens.hasNext() && !chunkTokens.isEmpty())) {
+                    addedCount += insertTokens(audience, chunkTokens);
+                    chunkTokens.clear();
+                }
+            }
+            return addedCount;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error adding tokens to audience %s: %s.", audience.getName(), e.getMessage()));
+        }
+        return -1;
+    }
+
+    /**
+     * Insert a chunk of tokens into an audience with a single multi-row statement.
+     *
+     * @return the number of tokens added.
+     */
+    private int insertTokens(@Nonnull Audience audience, @Nonnull List<String> tokens) {
+        StringJoiner values = new StringJoiner(", ");
+        for (int i = 0; i < tokens.size(); i++) {
+            values.add(String.format("(nextval('pushservices.audience_member_id_seq'), :audienceId, :token%d, now())", i));
+        }
+
+        SqlUpdate insert = mEbeanServer.createSqlUpdate(
+                "insert into pushservices.audience_members (id, audience_id, token, added_time) values " + values + " " +
+                        "on conflict (audience_id, token) do nothing")
+                .setParameter("audienceId", audience.getId());
+        for (int i = 0; i < tokens.size(); i++) {
+            insert.setParameter("token" + i, tokens.get(i));
+        }
+        return insert.execute();
+    }
+
+    /**
+     * Remove device tokens from an audience.
+     *
+     * @param audience the persisted audience.
+     * @param tokens   device tokens to remove.
+     * @return true if the tokens were removed.
+     */
+    public boolean removeTokens(@Nonnull Audience audience, @Nonnull Collection<String> tokens) {
+        if (tokens.isEmpty()) {
+            return true;
+        }
+
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            transaction.setBatchMode(true);
+
+            for (String token : tokens) {
+                mEbeanServer.createSqlUpdate("delete from pushservices.audience_members where audience_id = :audienceId and token = :token")
+                        .setParameter("audienceId", audience.getId())
+                        .setParameter("token", token)
+                        .execute();
+            }
+            transaction.commit();
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error removing tokens from audience %s: %s.", audience.getName(), e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Count the members of an audience.
+     *
+     * @param audience the persisted audience.
+     * @return the number of tokens in the audience, or -1 on an error.
+     */
+    public int countTokens(@Nonnull Audience audience) {
+        try {
+            return mEbeanServer.createSqlQuery("select count(*) as member_count from pushservices.audience_members where audience_id = :audienceId")
+                    .setParameter("audienceId", audience.getId())
+                    .findOne()
+                    .getInteger("member_count");
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error counting audience %s: %s.", audience.getName(), e.getMessage()));
+        }
+        return -1;
+    }
+}
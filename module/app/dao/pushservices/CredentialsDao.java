@@ -0,0 +1,136 @@
+package dao.pushservices;
+
+import annotations.pushservices.PushServicesEbeanServer;
+import io.ebean.EbeanServer;
+import models.pushservices.db.Credentials;
+import play.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared {@link Credentials} persistence. Credentials are registered once under an alias and
+ * then referenced by every message sent with them. Registered credentials are held in memory
+ * so that building and dispatching messages does not touch the credentials table.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class CredentialsDao {
+    private final EbeanServer mEbeanServer;
+    private final Map<String, Credentials> mAliasCache = new ConcurrentHashMap<>();
+    private final Map<Long, Credentials> mIdCache = new ConcurrentHashMap<>();
+
+    @Inject
+    public CredentialsDao(@PushServicesEbeanServer EbeanServer ebeanServer) {
+        mEbeanServer = ebeanServer;
+    }
+
+    /**
+     * Register a set of platform credentials under an alias, or update the credentials already
+     * registered under that alias.
+     *
+     * @param alias       unique name for the credentials, such as the app package name.
+     * @param credentials the platform credentials to register.
+     * @return the shared, persisted credentials, or null if they could not be saved.
+     */
+    @Nullable
+    public synchronized Credentials registerCredentials(@Nonnull String alias, @Nonnull Credentials credentials) {
+        try {
+            Credentials registeredCredentials = fetchCredentials(alias);
+            if (registeredCredentials == null) {
+                registeredCredentials = new Credentials(credentials.getPlatformType());
+                registeredCredentials.setAlias(alias);
+
+            } else if (registeredCredentials.getPlatformType() != credentials.getPlatformType()) {
+                Logger.error(String.format("Credentials %s are already registered for another platform.", alias));
+                return null;
+            }
+
+            registeredCredentials.setAuthKey(credentials.getAuthKey());
+            registeredCredentials.setCertBody(credentials.getCertBody());
+            registeredCredentials.setPackageUri(credentials.getPackageUri());
+            mEbeanServer.save(registeredCredentials);
+
+            mAliasCache.put(alias, registeredCredentials);
+            mIdCache.put(registeredCredentials.getId(), registeredCredentials);
+            return registeredCredentials;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error registering credentials %s: %s.", alias, e.getMessage()));
+        }
+        return null;
+    }
+
+    /**
+     * Get registered credentials by their alias.
+     *
+     * @param alias the alias the credentials were registered with.
+     * @return registered credentials, or null if none exist.
+     */
+    @Nullable
+    public Credentials fetchCredentials(@Nonnull String alias) {
+        Credentials credentials = mAliasCache.get(alias);
+        if (credentials != null) {
+            return credentials;
+        }
+
+        try {
+            credentials = mEbeanServer.find(Credentials.class)
+                    .where()
+                    .eq("alias", alias)
+                    .findOne();
+
+            if (credentials != null) {
+                mAliasCache.put(alias, credentials);
+                mIdCache.put(credentials.getId(), credentials);
+            }
+            return credentials;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching credentials %s: %s.", alias, e.getMessage()));
+        }
+        return null;
+    }
+
+    /**
+     * Get registered credentials by their id.
+     *
+     * @param id the credentials id.
+     * @return credentials, or null if none exist.
+     */
+    @Nullable
+    public Credentials fetchCredentials(long id) {
+        Credentials credentials = mIdCache.get(id);
+        if (credentials != null) {
+            return credentials;
+        }
+
+        try {
+            credentials = mEbeanServer.find(Credentials.class, id);
+            if (credentials != null && credentials.getAlias() != null) {
+                mAliasCache.put(credentials.getAlias(), credentials);
+                mIdCache.put(id, credentials);
+            }
+            return credentials;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching credentials %d: %s.", id, e.getMessage()));
+        }
+        return null;
+    }
+
+    /**
+     * Drop every cached credentials entry, forcing the next lookup to read from the database.
+     */
+    public void clearCache() {
+        mAliasCache.clear();
+        mIdCache.clear();
+    }
+}
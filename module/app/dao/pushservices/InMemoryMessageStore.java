@@ -0,0 +1,129 @@
+package dao.pushservices;
+
+import enums.pushservices.RecipientState;
+import enums.pushservices.RecipientType;
+import helpers.pushservices.MessageHelper;
+import interfaces.pushservices.MessageStore;
+import models.pushservices.app.RecipientTable;
+import models.pushservices.db.Message;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MessageStore} for non-durable messages, such as live position updates, where
+ * dispatch latency matters more than surviving a restart. Messages are only held in memory
+ * until they finish, and are given negative ids so they never collide with stored messages.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class InMemoryMessageStore implements MessageStore {
+    private final AtomicLong mLastMessageId = new AtomicLong();
+    private final Map<Long, Message> mMessages = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean saveMessage(@Nonnull Message message) {
+        if (message.getRecipientTable() == null && message.getRecipients() != null) {
+            message.setRecipientTable(RecipientTable.fromRecipients(message.getRecipients()));
+        }
+        return holdMessage(message);
+    }
+
+    @Override
+    public int saveStreamedMessage(@Nonnull Message message, @Nonnull Iterator<String> tokens, int chunkSize) {
+        RecipientTable recipientTable = new RecipientTable(chunkSize);
+        while (tokens.hasNext()) {
+            recipientTable.add(RecipientTable.NO_RECIPIENT_ID, tokens.next(), RecipientType.TYPE_TOKEN,
+                    RecipientState.STATE_IDLE, 0, 0L, 0L);
+        }
+
+        if (recipientTable.size() > 0) {
+            message.setRecipientTable(recipientTable);
+            MessageHelper.countRecipientStates(message, recipientTable);
+            holdMessage(message);
+        }
+        return recipientTable.size();
+    }
+
+    @Nullable
+    @Override
+    public RecipientTable fetchRecipientTable(@Nonnull Message message) {
+        Message heldMessage = mMessages.get(message.getId());
+        return heldMessage != null ? heldMessage.getRecipientTable() : null;
+    }
+
+    @Override
+    public boolean saveRecipientStates(@Nonnull Message message) {
+        if (message.getRecipientTable() != null) {
+            message.getRecipientTable().takeChangedRows();
+        }
+
+        // Finished messages are released.
+        if (MessageHelper.hasMessageCompleted(message)) {
+            mMessages.remove(message.getId());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean cancelMessage(long messageId, @Nullable Message activeMessage) {
+        Message heldMessage = mMessages.get(messageId);
+        if (heldMessage == null) {
+            return false;
+        }
+
+        if (activeMessage == null && heldMessage.getRecipientTable() != null) {
+            MessageHelper.cancelPendingRecipients(heldMessage, heldMessage.getRecipientTable());
+        }
+
+        if (MessageHelper.hasMessageCompleted(heldMessage)) {
+            mMessages.remove(messageId);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean expireMessage(@Nonnull Message message) {
+        Message heldMessage = mMessages.remove(message.getId());
+        if (heldMessage != null && heldMessage != message && heldMessage.getRecipientTable() != null) {
+            MessageHelper.expirePendingRecipients(heldMessage, heldMessage.getRecipientTable());
+        }
+        return heldMessage != null;
+    }
+
+    @Nonnull
+    @Override
+    public List<Message> fetchPendingMessages() {
+        List<Message> pendingMessages = new ArrayList<>();
+        for (Message message : mMessages.values()) {
+            if (!MessageHelper.hasMessageCompleted(message)) {
+                pendingMessages.add(message);
+            }
+        }
+        return pendingMessages;
+    }
+
+    private boolean holdMessage(@Nonnull Message message) {
+        if (message.getId() == null) {
+            message.setId(mLastMessageId.decrementAndGet());
+        }
+
+        // Set by the database on persist, and needed for the time to live of messages without a send time.
+        if (message.getAddedTime() == null) {
+            message.setAddedTime(new Date());
+        }
+        mMessages.put(message.getId(), message);
+        return true;
+    }
+}
@@ -0,0 +1,713 @@
+package dao.pushservices;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import enums.pushservices.FailureType;
+import enums.pushservices.MessagePriority;
+import enums.pushservices.PlatformType;
+import enums.pushservices.RecipientState;
+import enums.pushservices.RecipientType;
+import helpers.pushservices.ConfigHelper;
+import helpers.pushservices.JournalSegments;
+import helpers.pushservices.MessageHelper;
+import interfaces.pushservices.MessageStore;
+import main.pushservices.Constants;
+import models.pushservices.app.RecipientTable;
+import models.pushservices.db.Credentials;
+import models.pushservices.db.Message;
+import models.pushservices.db.PayloadElement;
+import models.pushservices.db.PlatformFailure;
+import play.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * A {@link MessageStore} for nodes without a tuned database. Accepted messages and recipient state
+ * changes are appended to a local, memory-mapped journal ({@link JournalSegments}) instead of being
+ * written as rows, and pending messages are rebuilt by replaying the journal at startup.
+ * <p>
+ * Once the journal grows past the configured number of segments, the pending messages are written
+ * out as a snapshot and the older segments are deleted. Stored audiences are not supported.
+ * <p>
+ * Enable with:
+ * <pre>
+ * pushservices.store.type = "journal"
+ * pushservices.store.directory = "pushservices-journal"
+ * pushservices.store.segmentSizeMb = 64
+ * pushservices.store.compactSegments = 4
+ * pushservices.store.sync = true
+ * </pre>
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class JournalMessageStore implements MessageStore {
+    private static final String CONFIG_DIRECTORY = Constants.CONFIG_STORE + ".directory";
+    private static final String CONFIG_SEGMENT_SIZE_MB = Constants.CONFIG_STORE + ".segmentSizeMb";
+    private static final String CONFIG_COMPACT_SEGMENTS = Constants.CONFIG_STORE + ".compactSegments";
+    private static final String CONFIG_SYNC = Constants.CONFIG_STORE + ".sync";
+
+    static final byte RECORD_MESSAGE = 1;
+    static final byte RECORD_RECIPIENTS = 2;
+    static final byte RECORD_STATES = 3;
+    static final byte RECORD_RELEASE = 4;
+    static final byte RECORD_SNAPSHOT_BEGIN = 5;
+    static final byte RECORD_SNAPSHOT_END = 6;
+    static final byte RECORD_SNAPSHOT_ABORT = 7;
+
+    // Rows written per recipients or states record.
+    private static final int ROWS_PER_RECORD = 1000;
+
+    private static final RecipientState[] STATES = RecipientState.values();
+    private static final RecipientType[] TYPES = RecipientType.values();
+    private static final FailureType[] FAILURE_TYPES = FailureType.values();
+
+    private final String mDirectory;
+    private final int mSegmentSize;
+    private final int mCompactSegments;
+    private final boolean mSync;
+
+    // Tables are held apart from the messages, as the TaskQueue releases a message's table when it leaves the queue.
+    private final Map<Long, Message> mMessages = new HashMap<>();
+    private final Map<Long, RecipientTable> mRecipientTables = new HashMap<>();
+    private JournalSegments mJournal;
+    private int mCompactThreshold;
+    private long mLastMessageId;
+
+    @Inject
+    public JournalMessageStore(Config configuration) {
+        mDirectory = ConfigHelper.getString(configuration, CONFIG_DIRECTORY, "pushservices-journal");
+        mSegmentSize = Math.max(1, ConfigHelper.getInt(configuration, CONFIG_SEGMENT_SIZE_MB, 64)) * 1024 * 1024;
+        mCompactSegments = Math.max(2, ConfigHelper.getInt(configuration, CONFIG_COMPACT_SEGMENTS, 4));
+        mSync = ConfigHelper.getBoolean(configuration, CONFIG_SYNC, true);
+        mCompactThreshold = mCompactSegments;
+    }
+
+    @Override
+    public synchronized boolean saveMessage(@Nonnull Message message) {
+        if (message.getAudience() != null) {
+            Logger.error("Stored audiences are not supported by the journal message store.");
+            return false;
+        }
+
+        if (!openJournal()) {
+            return false;
+        }
+
+        RecipientTable recipientTable = message.getRecipientTable() != null
+                ? message.getRecipientTable()
+                : RecipientTable.fromRecipients(message.getRecipients() != null ? message.getRecipients() : new ArrayList<>());
+        recipientTable.takeChangedRows();
+
+        try {
+            message.setId(++mLastMessageId);
+            if (message.getAddedTime() == null) {
+                message.setAddedTime(new Date());
+            }
+            appendMessage(message);
+            appendRecipients(message.getId(), recipientTable, 0, recipientTable.size());
+            syncJournal();
+
+        } catch (IOException e) {
+            Logger.error("Error appending message to the journal.", e);
+            message.setId(null);
+            return false;
+        }
+
+        message.setRecipientTable(recipientTable);
+        holdMessage(message, recipientTable);
+        return true;
+    }
+
+    @Override
+    public synchronized int saveStreamedMessage(@Nonnull Message message, @Nonnull Iterator<String> tokens, int chunkSize) {
+        if (message.getAudience() != null) {
+            Logger.error("Stored audiences are not supported by the journal message store.");
+            return -1;
+        }
+
+        if (!openJournal()) {
+            return -1;
+        }
+
+        RecipientTable recipientTable = new RecipientTable(chunkSize);
+        try {
+            message.setId(++mLastMessageId);
+            if (message.getAddedTime() == null) {
+                message.setAddedTime(new Date());
+            }
+            appendMessage(message);
+
+            // Recipients are appended a chunk at a time as they are streamed in.
+            int firstRow = 0;
+            while (tokens.hasNext()) {
+                recipientTable.add(RecipientTable.NO_RECIPIENT_ID, tokens.next(), RecipientType.TYPE_TOKEN,
+                        RecipientState.STATE_IDLE, 0, 0L, 0L);
+
+                if (recipientTable.size() - firstRow >= Math.min(chunkSize, ROWS_PER_RECORD) || !tokens.hasNext()) {
+                    appendRecipients(message.getId(), recipientTable, firstRow, recipientTable.size());
+                    firstRow = recipientTable.size();
+                }
+            }
+
+            if (recipientTable.size() == 0) {
+                appendRelease(message.getId());
+            }
+            syncJournal();
+
+        } catch (IOException e) {
+            Logger.error("Error appending streamed message to the journal.", e);
+            return -1;
+        }
+
+        if (recipientTable.size() > 0) {
+            message.setRecipientTable(recipientTable);
+            MessageHelper.countRecipientStates(message, recipientTable);
+            holdMessage(message, recipientTable);
+        }
+        return recipientTable.size();
+    }
+
+    @Nullable
+    @Override
+    public synchronized RecipientTable fetchRecipientTable(@Nonnull Message message) {
+        return mRecipientTables.get(message.getId());
+    }
+
+    @Override
+    public synchronized boolean saveRecipientStates(@Nonnull Message message) {
+        RecipientTable recipientTable = message.getRecipientTable();
+        if (recipientTable == null || !openJournal()) {
+            return false;
+        }
+
+        BitSet changedRows = recipientTable.takeChangedRows();
+        boolean hasCompleted = MessageHelper.hasMessageCompleted(message);
+        try {
+            appendStates(message.getId(), recipientTable, changedRows);
+            if (hasCompleted) {
+                appendRelease(message.getId());
+            }
+            syncJournal();
+
+        } catch (IOException e) {
+            Logger.error(String.format("Error appending recipient states of message %d to the journal.", message.getId()), e);
+            recipientTable.restoreChangedRows(changedRows);
+            return false;
+        }
+
+        // Finished messages are released.
+        if (hasCompleted) {
+            mMessages.remove(message.getId());
+            mRecipientTables.remove(message.getId());
+        }
+
+        compactJournal();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean cancelMessage(long messageId, @Nullable Message activeMessage) {
+        Message message = mMessages.get(messageId);
+        RecipientTable recipientTable = mRecipientTables.get(messageId);
+        if (message == null || recipientTable == null || !openJournal()) {
+            return false;
+        }
+
+        // The cancelled rows are not marked as changed, so they are journalled here.
+        BitSet cancelledRows = activeMessage == null
+                ? MessageHelper.cancelPendingRecipients(message, recipientTable)
+                : rowsInState(recipientTable, RecipientState.STATE_CANCELLED);
+        try {
+            appendStates(messageId, recipientTable, cancelledRows);
+            if (MessageHelper.hasMessageCompleted(message)) {
+                appendRelease(messageId);
+                mMessages.remove(messageId);
+                mRecipientTables.remove(messageId);
+            }
+            syncJournal();
+
+        } catch (IOException e) {
+            Logger.error(String.format("Error appending cancellation of message %d to the journal.", messageId), e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean expireMessage(@Nonnull Message message) {
+        Message storedMessage = mMessages.get(message.getId());
+        RecipientTable recipientTable = mRecipientTables.get(message.getId());
+        if (storedMessage == null || recipientTable == null || !openJournal()) {
+            return false;
+        }
+
+        // The expired rows are not marked as changed, so they are journalled here.
+        BitSet expiredRows = message.getRecipientTable() != recipientTable
+                ? MessageHelper.expirePendingRecipients(storedMessage, recipientTable)
+                : rowsInState(recipientTable, RecipientState.STATE_EXPIRED);
+        try {
+            appendStates(message.getId(), recipientTable, expiredRows);
+            appendRelease(message.getId());
+            syncJournal();
+
+        } catch (IOException e) {
+            Logger.error(String.format("Error appending expiry of message %d to the journal.", message.getId()), e);
+            return false;
+        }
+
+        mMessages.remove(message.getId());
+        mRecipientTables.remove(message.getId());
+        return true;
+    }
+
+    @Nonnull
+    @Override
+    public synchronized List<Message> fetchPendingMessages() {
+        if (!openJournal()) {
+            return new ArrayList<>();
+        }
+
+        List<Message> pendingMessages = new ArrayList<>();
+        for (Message message : mMessages.values()) {
+            if (!MessageHelper.hasMessageCompleted(message)) {
+                pendingMessages.add(message);
+            }
+        }
+        return pendingMessages;
+    }
+
+    /**
+     * Flush and close the journal. It is reopened and replayed if the store is used again.
+     */
+    @Override
+    public synchronized void close() {
+        if (mJournal == null) {
+            return;
+        }
+
+        try {
+            mJournal.close();
+
+        } catch (IOException e) {
+            Logger.error("Error closing the message journal.", e);
+        }
+        mJournal = null;
+    }
+
+    @Nonnull
+    private static BitSet rowsInState(@Nonnull RecipientTable recipientTable, @Nonnull RecipientState state) {
+        BitSet rows = new BitSet();
+        for (int row = 0; row < recipientTable.size(); row++) {
+            if (recipientTable.getState(row) == state) {
+                rows.set(row);
+            }
+        }
+        return rows;
+    }
+
+    private void holdMessage(@Nonnull Message message, @Nonnull RecipientTable recipientTable) {
+        mMessages.put(message.getId(), message);
+        mRecipientTables.put(message.getId(), recipientTable);
+    }
+
+    /**
+     * Open the journal and replay it into the pending messages, the first time it is used.
+     *
+     * @return true if the journal is open.
+     */
+    private boolean openJournal() {
+        if (mJournal != null) {
+            return true;
+        }
+
+        long startTime = System.currentTimeMillis();
+        JournalSegments journal = null;
+        try {
+            journal = new JournalSegments(Paths.get(mDirectory), mSegmentSize);
+            Map<Long, Message> messages = new HashMap<>();
+            Map<Long, RecipientTable> recipientTables = new HashMap<>();
+
+            // A snapshot only replaces the replayed messages once it has been completely written.
+            Map<Long, Message> snapshotMessages = new HashMap<>();
+            Map<Long, RecipientTable> snapshotTables = new HashMap<>();
+            boolean[] isInSnapshot = new boolean[1];
+
+            journal.replay((type, payload) -> {
+                if (type == RECORD_SNAPSHOT_BEGIN) {
+                    mLastMessageId = Math.max(mLastMessageId, payload.readLong());
+                    isInSnapshot[0] = true;
+                    snapshotMessages.clear();
+                    snapshotTables.clear();
+
+                } else if (type == RECORD_SNAPSHOT_END) {
+                    isInSnapshot[0] = false;
+                    messages.clear();
+                    messages.putAll(snapshotMessages);
+                    recipientTables.clear();
+                    recipientTables.putAll(snapshotTables);
+
+                } else if (type == RECORD_SNAPSHOT_ABORT) {
+                    isInSnapshot[0] = false;
+                    snapshotMessages.clear();
+                    snapshotTables.clear();
+
+                } else if (isInSnapshot[0]) {
+                    replayRecord(type, payload, snapshotMessages, snapshotTables);
+
+                } else {
+                    replayRecord(type, payload, messages, recipientTables);
+                }
+            });
+
+            // A snapshot that was interrupted is never completed, so records appended after it must not join it.
+            if (isInSnapshot[0]) {
+                Logger.warn("Discarding an interrupted snapshot at the end of the message journal.");
+                journal.append(RECORD_SNAPSHOT_ABORT, new byte[0]);
+                journal.sync();
+            }
+
+            mMessages.clear();
+            mRecipientTables.clear();
+            for (Message message : messages.values()) {
+                RecipientTable recipientTable = recipientTables.get(message.getId());
+                mLastMessageId = Math.max(mLastMessageId, message.getId());
+                if (recipientTable == null) {
+                    continue;
+                }
+
+                recipientTable.takeChangedRows();
+                MessageHelper.countRecipientStates(message, recipientTable);
+                if (!MessageHelper.hasMessageCompleted(message)) {
+                    holdMessage(message, recipientTable);
+                }
+            }
+
+        } catch (IOException e) {
+            Logger.error(String.format("Error opening the message journal in %s.", mDirectory), e);
+            if (journal != null) {
+                try {
+                    journal.close();
+
+                } catch (IOException closeException) {
+                    Logger.error("Error closing the message journal.", closeException);
+                }
+            }
+            return false;
+        }
+
+        mJournal = journal;
+        mCompactThreshold = Math.max(mCompactSegments, mJournal.getSegmentCount() * 2);
+        Logger.info(String.format("Replayed %d pending messages from the message journal in %dms.", mMessages.size(),
+                System.currentTimeMillis() - startTime));
+        return true;
+    }
+
+    private void replayRecord(byte type, @Nonnull DataInput payload, @Nonnull Map<Long, Message> messages,
+                              @Nonnull Map<Long, RecipientTable> recipientTables) throws IOException {
+        switch (type) {
+            case RECORD_MESSAGE: {
+                Message message = readMessage(payload);
+                messages.put(message.getId(), message);
+                recipientTables.put(message.getId(), new RecipientTable(16));
+                mLastMessageId = Math.max(mLastMessageId, message.getId());
+                break;
+            }
+
+            case RECORD_RECIPIENTS: {
+                RecipientTable recipientTable = recipientTables.get(payload.readLong());
+                int rowCount = payload.readInt();
+                for (int i = 0; i < rowCount; i++) {
+                    RecipientType recipientType = TYPES[payload.readByte()];
+                    String token = readString(payload);
+                    int row = -1;
+                    if (recipientTable != null && token != null) {
+                        row = recipientTable.add(RecipientTable.NO_RECIPIENT_ID, token, recipientType, RecipientState.STATE_IDLE, 0, 0L, 0L);
+                    }
+                    readRow(payload, recipientTable, row);
+                }
+                break;
+            }
+
+            case RECORD_STATES: {
+                RecipientTable recipientTable = recipientTables.get(payload.readLong());
+                int rowCount = payload.readInt();
+                for (int i = 0; i < rowCount; i++) {
+                    int row = payload.readInt();
+                    String token = readString(payload);
+                    boolean isKnownRow = recipientTable != null && row < recipientTable.size();
+                    if (isKnownRow && token != null) {
+                        recipientTable.setToken(row, token);
+                    }
+                    readRow(payload, recipientTable, isKnownRow ? row : -1);
+                }
+                break;
+            }
+
+            case RECORD_RELEASE: {
+                long messageId = payload.readLong();
+                messages.remove(messageId);
+                recipientTables.remove(messageId);
+                break;
+            }
+
+            default:
+                Logger.warn(String.format("Skipping unknown message journal record type %d.", type));
+        }
+    }
+
+    /**
+     * Write the pending messages out as a snapshot and delete the older segments, once the journal
+     * has grown past the compaction threshold.
+     */
+    private void compactJournal() {
+        if (mJournal.getSegmentCount() <= mCompactThreshold) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        try {
+            long snapshotSegment = mJournal.rotate();
+
+            // The last message id is kept, so that ids of released messages are never reused.
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeLong(mLastMessageId);
+            mJournal.append(RECORD_SNAPSHOT_BEGIN, bytes.toByteArray());
+            for (Message message : mMessages.values()) {
+                RecipientTable recipientTable = mRecipientTables.get(message.getId());
+                appendMessage(message);
+                appendRecipients(message.getId(), recipientTable, 0, recipientTable.size());
+            }
+            mJournal.append(RECORD_SNAPSHOT_END, new byte[0]);
+            mJournal.sync();
+            mJournal.deleteSegmentsBefore(snapshotSegment);
+
+        } catch (IOException e) {
+            Logger.error("Error compacting the message journal.", e);
+            abortSnapshot();
+        }
+
+        // Avoid compacting on every write when the pending messages alone fill several segments.
+        mCompactThreshold = Math.max(mCompactSegments, mJournal.getSegmentCount() * 2);
+        Logger.info(String.format("Compacted the message journal to %d segments in %dms.", mJournal.getSegmentCount(),
+                System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * Mark a snapshot that could not be completed as aborted, so that records appended after it are replayed.
+     */
+    private void abortSnapshot() {
+        try {
+            mJournal.append(RECORD_SNAPSHOT_ABORT, new byte[0]);
+            mJournal.sync();
+
+        } catch (IOException e) {
+            Logger.error("Error aborting a message journal snapshot.", e);
+        }
+    }
+
+    private void syncJournal() {
+        if (mSync) {
+            mJournal.sync();
+        }
+    }
+
+    private void appendMessage(@Nonnull Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeLong(message.getId());
+
+        Credentials credentials = message.getCredentials();
+        output.writeBoolean(credentials != null);
+        if (credentials != null) {
+            writeString(output, credentials.getPlatformType().name());
+            writeString(output, credentials.getAlias());
+            writeString(output, credentials.getAuthKey());
+            writeString(output, credentials.getCertBody());
+            writeString(output, credentials.getPackageUri());
+        }
+
+        List<PayloadElement> payloadData = message.getPayloadData() != null ? message.getPayloadData() : new ArrayList<>();
+        output.writeInt(payloadData.size());
+        for (PayloadElement payloadElement : payloadData) {
+            writeString(output, payloadElement.getKey());
+            writeString(output, payloadElement.getValue());
+        }
+
+        writeString(output, message.getPayload());
+        writeString(output, message.getCollapseKey());
+        writeString(output, message.getMessagePriority() != null ? message.getMessagePriority().name() : null);
+        output.writeInt(message.getTtlSeconds());
+        output.writeBoolean(message.isShouldDelayWhileIdle());
+        output.writeBoolean(message.isDryRun());
+        output.writeInt(message.getMaximumRetries());
+        output.writeLong(message.getSendAt() != null ? message.getSendAt().getTime() : 0L);
+        output.writeLong(message.getAddedTime() != null ? message.getAddedTime().getTime() : 0L);
+        mJournal.append(RECORD_MESSAGE, bytes.toByteArray());
+    }
+
+    @Nonnull
+    private static Message readMessage(@Nonnull DataInput input) throws IOException {
+        Message message = new Message();
+        message.setId(input.readLong());
+
+        if (input.readBoolean()) {
+            Credentials credentials = new Credentials(PlatformType.valueOf(readString(input)));
+            credentials.setAlias(readString(input));
+            credentials.setAuthKey(readString(input));
+            credentials.setCertBody(readString(input));
+            credentials.setPackageUri(readString(input));
+            message.setCredentials(credentials);
+        }
+
+        int payloadCount = input.readInt();
+        List<PayloadElement> payloadData = new ArrayList<>();
+        for (int i = 0; i < payloadCount; i++) {
+            payloadData.add(new PayloadElement(readString(input), readString(input)));
+        }
+        message.setPayloadData(payloadData);
+
+        message.setPayload(readString(input));
+        message.setCollapseKey(readString(input));
+        String messagePriority = readString(input);
+        if (messagePriority != null) {
+            message.setMessagePriority(MessagePriority.valueOf(messagePriority));
+        }
+        message.setTtlSeconds(input.readInt());
+        message.setShouldDelayWhileIdle(input.readBoolean());
+        message.setDryRun(input.readBoolean());
+        message.setMaximumRetries(input.readInt());
+        long sendAt = input.readLong();
+        message.setSendAt(sendAt != 0L ? new Date(sendAt) : null);
+        long addedTime = input.readLong();
+        message.setAddedTime(addedTime != 0L ? new Date(addedTime) : null);
+        return message;
+    }
+
+    private void appendRecipients(long messageId, @Nonnull RecipientTable recipientTable, int fromRow, int toRow) throws IOException {
+        for (int chunkStart = fromRow; chunkStart < toRow; chunkStart += ROWS_PER_RECORD) {
+            int chunkEnd = Math.min(toRow, chunkStart + ROWS_PER_RECORD);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeLong(messageId);
+            output.writeInt(chunkEnd - chunkStart);
+            for (int row = chunkStart; row < chunkEnd; row++) {
+                output.writeByte(recipientTable.getType(row).ordinal());
+                writeString(output, recipientTable.getToken(row));
+                writeRow(output, recipientTable, row);
+            }
+            mJournal.append(RECORD_RECIPIENTS, bytes.toByteArray());
+        }
+    }
+
+    private void appendStates(long messageId, @Nonnull RecipientTable recipientTable, @Nonnull BitSet rows) throws IOException {
+        int row = rows.nextSetBit(0);
+        while (row >= 0) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeLong(messageId);
+
+            int[] chunk = new int[ROWS_PER_RECORD];
+            int chunkSize = 0;
+            while (row >= 0 && chunkSize < ROWS_PER_RECORD) {
+                chunk[chunkSize++] = row;
+                row = rows.nextSetBit(row + 1);
+            }
+
+            output.writeInt(chunkSize);
+            for (int i = 0; i < chunkSize; i++) {
+                output.writeInt(chunk[i]);
+                writeString(output, recipientTable.getToken(chunk[i]));
+                writeRow(output, recipientTable, chunk[i]);
+            }
+            mJournal.append(RECORD_STATES, bytes.toByteArray());
+        }
+    }
+
+    private void appendRelease(long messageId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeLong(messageId);
+        mJournal.append(RECORD_RELEASE, bytes.toByteArray());
+    }
+
+    private static void writeRow(@Nonnull DataOutputStream output, @Nonnull RecipientTable recipientTable, int row) throws IOException {
+        output.writeByte(recipientTable.getState(row).ordinal());
+        output.writeShort(recipientTable.getSendAttemptCount(row));
+        output.writeLong(recipientTable.getLastSendAttempt(row));
+        output.writeLong(recipientTable.getNextAttempt(row));
+
+        PlatformFailure failure = recipientTable.getFailure(row);
+        output.writeBoolean(failure != null);
+        if (failure != null) {
+            output.writeByte(failure.getFailureType() != null ? failure.getFailureType().ordinal() : -1);
+            writeString(output, failure.getFailureMessage());
+            output.writeLong(failure.getFailTime() != null ? failure.getFailTime().getTime() : 0L);
+        }
+    }
+
+    /**
+     * Read a recipient row, and apply it to the table unless the row is -1.
+     */
+    private static void readRow(@Nonnull DataInput input, @Nullable RecipientTable recipientTable, int row) throws IOException {
+        RecipientState state = STATES[input.readByte()];
+        int sendAttempts = input.readShort();
+        long lastAttempt = input.readLong();
+        long nextAttempt = input.readLong();
+
+        PlatformFailure failure = null;
+        if (input.readBoolean()) {
+            byte failureType = input.readByte();
+            String failureMessage = readString(input);
+            long failTime = input.readLong();
+            failure = new PlatformFailure(failureType >= 0 ? FAILURE_TYPES[failureType] : null, failureMessage,
+                    failTime != 0L ? new Date(failTime) : null);
+        }
+
+        if (recipientTable == null || row < 0) {
+            return;
+        }
+
+        recipientTable.setState(row, state);
+        recipientTable.setSendAttemptCount(row, sendAttempts);
+        recipientTable.setLastSendAttempt(row, lastAttempt);
+        recipientTable.setNextAttempt(row, nextAttempt);
+        if (failure != null) {
+            recipientTable.setFailure(row, failure);
+        }
+    }
+
+    private static void writeString(@Nonnull DataOutputStream output, @Nullable String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(valueBytes.length);
+        output.write(valueBytes);
+    }
+
+    @Nullable
+    private static String readString(@Nonnull DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] valueBytes = new byte[length];
+        input.readFully(valueBytes);
+        return new String(valueBytes, StandardCharsets.UTF_8);
+    }
+}
@@ -2,30 +2,56 @@ package dao.pushservices;
 
 import annotations.pushservices.PushServicesEbeanServer;
 import enums.pushservices.RecipientState;
+import enums.pushservices.RecipientType;
+import interfaces.pushservices.MessageStore;
 import io.ebean.EbeanServer;
 import io.ebean.FetchConfig;
+import io.ebean.SqlQuery;
+import io.ebean.SqlRow;
+import io.ebean.SqlUpdate;
+import io.ebean.Transaction;
+import models.pushservices.app.RecipientTable;
+import models.pushservices.db.Credentials;
 import models.pushservices.db.Message;
+import models.pushservices.db.PlatformFailure;
+import models.pushservices.db.Recipient;
 import play.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.StringJoiner;
 
 /**
- * Message persistence.
+ * Message persistence. The default, database backed {@link MessageStore}.
  * <p>
  * GNU General Public License v3.0.
  * (This means you can use it as you wish, host and share modifications.)
  * Copyright 5/10/16 Splendid Bits.
  */
-public class MessagesDao {
+public class MessagesDao implements MessageStore {
+    // A message can be claimed when it is unclaimed, or its claim lease has passed.
+    private static final String CLAIMABLE_SQL = "(dispatcher_id is null " +
+            "or claimed_at is null or claimed_at < now() - :claimLeaseSeconds * interval '1 second') ";
+    // A message can be reclaimed by the dispatcher that already holds it.
+    private static final String HELD_OR_CLAIMABLE_SQL = "(dispatcher_id = :dispatcherId or " + CLAIMABLE_SQL + ") ";
+
     private final EbeanServer mEbeanServer;
+    private final CredentialsDao mCredentialsDao;
 
     @Inject
-    public MessagesDao(@PushServicesEbeanServer EbeanServer ebeanServer) {
+    public MessagesDao(@PushServicesEbeanServer EbeanServer ebeanServer, CredentialsDao credentialsDao) {
         mEbeanServer = ebeanServer;
+        mCredentialsDao = credentialsDao;
     }
 
     /**
@@ -33,9 +59,17 @@ public class MessagesDao {
      * @return success boolean
      */
     public boolean wipeAll() {
-        try {
-            List<Message> messages = mEbeanServer.find(Message.class).findList();
-            mEbeanServer.deleteAllPermanent(messages);
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            mEbeanServer.createSqlUpdate("delete from pushservices.message_outbox").execute();
+            mEbeanServer.createSqlUpdate("delete from pushservices.payload_element").execute();
+            mEbeanServer.createSqlUpdate("delete from pushservices.recipients").execute();
+            mEbeanServer.createSqlUpdate("delete from pushservices.recipient_failures").execute();
+            mEbeanServer.createSqlUpdate("delete from pushservices.messages").execute();
+            mEbeanServer.createSqlUpdate("delete from pushservices.audience_members").execute();
+            mEbeanServer.createSqlUpdate("delete from pushservices.audiences").execute();
+            mEbeanServer.createSqlUpdate("delete from pushservices.credentials").execute();
+            transaction.commit();
+            mCredentialsDao.clearCache();
 
             return true;
         } catch (Exception e) {
@@ -44,6 +78,71 @@ public class MessagesDao {
         return false;
     }
 
+    /**
+     * Permanently delete a bounded chunk of finished messages (every recipient has completed or failed)
+     * that were added before a given time, along with their recipients, failures, payload and the
+     * unregistered credentials that were saved for them.
+     *
+     * @param addedBefore only delete messages added before this time.
+     * @param chunkSize   maximum number of messages to delete.
+     * @return the number of messages deleted, or -1 on an error.
+     */
+    public int deleteFinishedMessages(@Nonnull Date addedBefore, int chunkSize) {
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            List<SqlRow> messageRows = mEbeanServer.createSqlQuery(
+                    "select id from pushservices.messages " +
+                            "where added_time < :addedBefore " +
+                            "and recipients_pending = 0 and recipients_retrying = 0 " +
+                            "order by id limit :chunkSize")
+                    .setParameter("addedBefore", addedBefore)
+                    .setParameter("chunkSize", chunkSize)
+                    .findList();
+
+            if (messageRows.isEmpty()) {
+                return 0;
+            }
+
+            StringJoiner messageIds = new StringJoiner(",", "(", ")");
+            for (SqlRow messageRow : messageRows) {
+                messageIds.add(String.valueOf(messageRow.getLong("id")));
+            }
+
+            mEbeanServer.createSqlUpdate("delete from pushservices.payload_element where message_id in " + messageIds).execute();
+            mEbeanServer.createSqlUpdate(
+                    "with deleted_recipients as (" +
+                            "delete from pushservices.recipients where message_id in " + messageIds + " returning failure_id) " +
+                            "delete from pushservices.recipient_failures " +
+                            "where id in (select failure_id from deleted_recipients)")
+                    .execute();
+            List<SqlRow> credentialsRows = mEbeanServer.createSqlQuery(
+                    "select distinct c.id from pushservices.credentials c " +
+                            "join pushservices.messages m on m.credentials_id = c.id " +
+                            "where c.alias is null and m.id in " + messageIds)
+                    .findList();
+
+            mEbeanServer.createSqlUpdate("delete from pushservices.messages where id in " + messageIds).execute();
+            if (!credentialsRows.isEmpty()) {
+                StringJoiner credentialsIds = new StringJoiner(",", "(", ")");
+                for (SqlRow credentialsRow : credentialsRows) {
+                    credentialsIds.add(String.valueOf(credentialsRow.getLong("id")));
+                }
+
+                // Unregistered credentials belong to a single message, but are kept while anything still refers to them.
+                mEbeanServer.createSqlUpdate(
+                        "delete from pushservices.credentials c where c.alias is null and c.id in " + credentialsIds + " " +
+                                "and not exists (select 1 from pushservices.messages m where m.credentials_id = c.id)")
+                        .execute();
+            }
+            transaction.commit();
+
+            return messageRows.size();
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error deleting finished messages: %s.", e.getMessage()));
+        }
+        return -1;
+    }
+
     @Nullable
     public List<Message> fetchMessages() {
         try {
@@ -66,6 +165,7 @@ public class MessagesDao {
      * @param message the message to update.
      * @return true if the message was updated.
      */
+    @Override
     public boolean saveMessage(@Nonnull Message message) {
         try {
             mEbeanServer.save(message);
@@ -77,26 +177,327 @@ public class MessagesDao {
         return false;
     }
 
+    /**
+     * Saves a new message without recipients, then streams its recipients into the database in
+     * chunks, each in its own transaction, so that the full audience is never held in memory. The
+     * recipient counters are only written once every recipient has been saved, so a partially
+     * saved message is never picked up as pending. A message that fails to save completely is deleted,
+     * so that it does not hold its idempotency key.
+     *
+     * @param message   the new message, without recipients.
+     * @param tokens    the device tokens of the message recipients.
+     * @param chunkSize number of recipients to insert per transaction.
+     * @return the number of recipients saved, or -1 on an error.
+     */
+    @Override
+    public int saveStreamedMessage(@Nonnull Message message, @Nonnull Iterator<String> tokens, int chunkSize) {
+        try {
+            mEbeanServer.save(message);
+
+            int recipientCount = 0;
+            while (tokens.hasNext()) {
+                try (Transaction transaction = mEbeanServer.beginTransaction()) {
+                    transaction.setBatchMode(true);
+                    transaction.setBatchSize(chunkSize);
+
+                    int chunkCount = 0;
+                    while (chunkCount < chunkSize && tokens.hasNext()) {
+                        Recipient recipient = new Recipient(tokens.next());
+                        recipient.setMessage(message);
+                        mEbeanServer.save(recipient);
+                        chunkCount++;
+                    }
+
+                    transaction.commit();
+                    recipientCount += chunkCount;
+                }
+            }
+
+            if (recipientCount == 0) {
+                return deleteStreamedMessage(message) ? 0 : -1;
+            }
+
+            message.setPendingCount(recipientCount);
+            mEbeanServer.createSqlUpdate("update pushservices.messages set recipients_pending = :count where id = :id")
+                    .setParameter("count", recipientCount)
+                    .setParameter("id", message.getId())
+                    .execute();
+            return recipientCount;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error saving streamed message into database: %s.", e.getMessage()));
+
+            // The message never became pending, so it is removed rather than left holding its idempotency key.
+            if (message.getId() != null) {
+                deleteStreamedMessage(message);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Delete a streamed message that was not completely saved, along with the recipients saved so far and
+     * the unregistered credentials that were saved for it.
+     *
+     * @param message the partially saved message.
+     * @return true if the message was deleted.
+     */
+    private boolean deleteStreamedMessage(@Nonnull Message message) {
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            mEbeanServer.createSqlUpdate("delete from pushservices.recipients where message_id = :messageId")
+                    .setParameter("messageId", message.getId())
+                    .execute();
+            mEbeanServer.delete(message);
+
+            Credentials credentials = message.getCredentials();
+            if (credentials != null && credentials.getAlias() == null && credentials.getId() != null) {
+                mEbeanServer.delete(credentials);
+            }
+            transaction.commit();
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error deleting partially saved message %d: %s.", message.getId(), e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Load the recipients of a message into a compact in-flight {@link RecipientTable}. Rows are
+     * streamed straight from the result set into the table, so no recipient entities are created.
+     * Members of the message audience are included until the audience has been sent to, apart from
+     * those that have already completed.
+     *
+     * @param message the persisted message.
+     * @return the recipient table, or null on an error.
+     */
+    @Nullable
+    @Override
+    public RecipientTable fetchRecipientTable(@Nonnull Message message) {
+        try {
+            int expectedSize = message.getPendingCount() + message.getRetryingCount() +
+                    message.getCompleteCount() + message.getFailedCount();
+            RecipientTable recipientTable = new RecipientTable(expectedSize);
+
+            mEbeanServer.createSqlQuery(
+                    "select id, token, type, state, send_attempts, last_attempt, next_attempt " +
+                            "from pushservices.recipients where message_id = :messageId order by id")
+                    .setParameter("messageId", message.getId())
+                    .findEachRow((resultSet, rowNumber) -> recipientTable.add(
+                            resultSet.getLong("id"),
+                            resultSet.getString("token"),
+                            toRecipientType(resultSet.getString("type")),
+                            toRecipientState(resultSet.getString("state")),
+                            resultSet.getInt("send_attempts"),
+                            toEpochMillis(resultSet.getTimestamp("last_attempt")),
+                            toEpochMillis(resultSet.getTimestamp("next_attempt"))));
+
+            // Until the audience has been sent to, its members are in-flight alongside the stored recipients.
+            // Members that have completed are only counted, and those stored as recipients are already loaded.
+            if (message.getAudience() != null && !message.isAudienceSent()) {
+                SqlRow progressRow = mEbeanServer.createSqlQuery(
+                        "select audience_sent_base, audience_sent_members from pushservices.messages where id = :id")
+                        .setParameter("id", message.getId())
+                        .findOne();
+                if (progressRow != null && progressRow.getLong("audience_sent_base") != null) {
+                    recipientTable.setSentMembers(progressRow.getLong("audience_sent_base"),
+                            (byte[]) progressRow.get("audience_sent_members"));
+                }
+
+                mEbeanServer.createSqlQuery("select id, token from pushservices.audience_members where audience_id = :audienceId order by id")
+                        .setParameter("audienceId", message.getAudience().getId())
+                        .findEachRow((resultSet, rowNumber) -> {
+                            long memberId = resultSet.getLong("id");
+                            String token = resultSet.getString("token");
+                            if (recipientTable.isMemberSent(memberId)) {
+                                recipientTable.addSentMember();
+
+                            } else if (!recipientTable.containsToken(token)) {
+                                recipientTable.addAudienceMember(memberId, token);
+                            }
+                        });
+            }
+
+            return recipientTable;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching recipients of message %d: %s.", message.getId(), e.getMessage()));
+        }
+        return null;
+    }
+
+    /**
+     * Persist the in-flight recipient changes of a message, its recipient progress counters and the
+     * audience members it has sent to, in a single batched transaction. Only recipients changed since
+     * the last save are written. Audience members are only stored as recipients once they fail or wait
+     * for a retry, and the ids of new recipients and failures are only assigned once they are committed.
+     *
+     * @param message the message, with a {@link RecipientTable}.
+     * @return true if the changes were saved.
+     */
+    @Override
+    public boolean saveRecipientStates(@Nonnull Message message) {
+        RecipientTable recipientTable = message.getRecipientTable();
+        if (recipientTable == null) {
+            return saveMessage(message);
+        }
+
+        BitSet changedRows = recipientTable.takeChangedRows();
+        recipientTable.markSentMembers(changedRows);
+        byte[] sentMembers = recipientTable.takeSentMembers();
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            // New failures and new audience member exceptions are inserted first, so that their ids are known.
+            BitSet newFailureRows = new BitSet();
+            BitSet newRecipientRows = new BitSet();
+            for (int row = changedRows.nextSetBit(0); row >= 0; row = changedRows.nextSetBit(row + 1)) {
+                boolean isStored = recipientTable.getRecipientId(row) != RecipientTable.NO_RECIPIENT_ID;
+                if (!isStored && isAudienceException(recipientTable.getState(row))) {
+                    newRecipientRows.set(row);
+                    isStored = true;
+                }
+
+                PlatformFailure failure = recipientTable.getFailure(row);
+                if (isStored && failure != null && failure.getId() == null) {
+                    newFailureRows.set(row);
+                }
+            }
+
+            long[] failureIds = nextSequenceValues("pushservices.failure_id_seq", newFailureRows.cardinality());
+            long[] recipientIds = nextSequenceValues("pushservices.recipient_id_seq", newRecipientRows.cardinality());
+            Long[] rowFailureIds = new Long[recipientTable.size()];
+            List<PlatformFailure> newFailures = new ArrayList<>();
+
+            transaction.setBatchMode(true);
+            int failureIndex = 0;
+            for (int row = newFailureRows.nextSetBit(0); row >= 0; row = newFailureRows.nextSetBit(row + 1)) {
+                PlatformFailure failure = recipientTable.getFailure(row);
+                rowFailureIds[row] = failureIds[failureIndex++];
+                newFailures.add(failure);
+
+                mEbeanServer.createSqlUpdate(
+                        "insert into pushservices.recipient_failures (id, type, message, fail_time) " +
+                                "values (:id, :type, :message, :failTime)")
+                        .setParameter("id", rowFailureIds[row])
+                        .setParameter("type", failure.getFailureType() != null ? failure.getFailureType().name() : null)
+                        .setParameter("message", failure.getFailureMessage())
+                        .setParameter("failTime", new Timestamp(failure.getFailTime() != null
+                                ? failure.getFailTime().getTime()
+                                : System.currentTimeMillis()))
+                        .execute();
+            }
+            transaction.flush();
+
+            int recipientIndex = 0;
+            for (int row = changedRows.nextSetBit(0); row >= 0; row = changedRows.nextSetBit(row + 1)) {
+                PlatformFailure failure = recipientTable.getFailure(row);
+                Long failureId = rowFailureIds[row] != null ? rowFailureIds[row] : failure != null ? failure.getId() : null;
+
+                SqlUpdate recipientUpdate;
+                if (newRecipientRows.get(row)) {
+                    recipientUpdate = mEbeanServer.createSqlUpdate(
+                            "insert into pushservices.recipients " +
+                                    "(id, message_id, token, type, state, send_attempts, last_attempt, next_attempt, failure_id) " +
+                                    "values (:id, :messageId, :token, 'TOKEN', :state, :sendAttempts, :lastAttempt, :nextAttempt, :failureId)")
+                            .setParameter("id", recipientIds[recipientIndex++])
+                            .setParameter("messageId", message.getId());
+
+                } else if (recipientTable.getRecipientId(row) != RecipientTable.NO_RECIPIENT_ID) {
+                    recipientUpdate = mEbeanServer.createSqlUpdate(
+                            "update pushservices.recipients set token = :token, state = :state, send_attempts = :sendAttempts, " +
+                                    "last_attempt = :lastAttempt, next_attempt = :nextAttempt, " +
+                                    "failure_id = coalesce(:failureId, failure_id) where id = :id")
+                            .setParameter("id", recipientTable.getRecipientId(row));
+
+                } else {
+                    continue;
+                }
+
+                recipientUpdate.setParameter("token", recipientTable.getToken(row))
+                        .setParameter("state", toStateValue(recipientTable.getState(row)))
+                        .setParameter("sendAttempts", recipientTable.getSendAttemptCount(row));
+                setTimestampParameter(recipientUpdate, "lastAttempt", recipientTable.getLastSendAttempt(row));
+                setTimestampParameter(recipientUpdate, "nextAttempt", recipientTable.getNextAttempt(row));
+                if (failureId != null) {
+                    recipientUpdate.setParameter("failureId", failureId);
+                } else {
+                    recipientUpdate.setNullParameter("failureId", Types.BIGINT);
+                }
+                recipientUpdate.execute();
+            }
+            transaction.flush();
+
+            if (message.getAudience() != null && !message.isAudienceSent() && !hasUnsentAudienceMembers(recipientTable)) {
+                message.setAudienceSent(true);
+            }
+
+            // Audience members that have been sent to are saved with the counters, so that they are not sent to again.
+            if (sentMembers != null) {
+                mEbeanServer.createSqlUpdate(
+                        "update pushservices.messages set audience_sent_base = :sentMemberBase, " +
+                                "audience_sent_members = :sentMembers where id = :id")
+                        .setParameter("sentMemberBase", recipientTable.getSentMemberBase())
+                        .setParameter("sentMembers", sentMembers)
+                        .setParameter("id", message.getId())
+                        .execute();
+            }
+
+            synchronized (message) {
+                mEbeanServer.createSqlUpdate(
+                        "update pushservices.messages set recipients_pending = :pending, recipients_complete = :complete, " +
+                                "recipients_failed = :failed, recipients_retrying = :retrying, recipients_cancelled = :cancelled, " +
+                                "recipients_expired = :expired, audience_sent = :audienceSent where id = :id")
+                        .setParameter("audienceSent", message.isAudienceSent())
+                        .setParameter("pending", message.getPendingCount())
+                        .setParameter("complete", message.getCompleteCount())
+                        .setParameter("failed", message.getFailedCount())
+                        .setParameter("retrying", message.getRetryingCount())
+                        .setParameter("cancelled", message.getCancelledCount())
+                        .setParameter("expired", message.getExpiredCount())
+                        .setParameter("id", message.getId())
+                        .execute();
+            }
+            transaction.commit();
+
+            recipientIndex = 0;
+            for (int row = newRecipientRows.nextSetBit(0); row >= 0; row = newRecipientRows.nextSetBit(row + 1)) {
+                recipientTable.setRecipientId(row, recipientIds[recipientIndex++]);
+            }
+            for (int i = 0; i < newFailures.size(); i++) {
+                newFailures.get(i).setId(failureIds[i]);
+            }
+            return true;
+
+        } catch (Exception e) {
+            recipientTable.restoreChangedRows(changedRows);
+            if (sentMembers != null) {
+                recipientTable.restoreSentMembers();
+            }
+            Logger.error(String.format("Error saving recipients of message %d: %s.", message.getId(), e.getMessage()));
+        }
+        return false;
+    }
+
     /**
      * Get a list of all {@link Message}s from the database which contains recipients who
-     * have not yet fully taskCompleted the push lifecycle. Do not filter out message properties,
-     * as we want them to remain completely unadulterated, as a later .save()
-     * will need to persist the entire bean children.
+     * have not yet fully taskCompleted the push lifecycle, using the message progress counters.
+     * Recipients are not fetched. Load them with {@link #fetchRecipientTable(Message)} when the
+     * message is dispatched. Deferred messages are only fetched once their send time has passed.
      */
     @Nonnull
+    @Override
     public List<Message> fetchPendingMessages() {
         List<Message> pendingMessages = new ArrayList<>();
         try {
             pendingMessages = mEbeanServer.find(Message.class)
-                    .fetch("recipients", new FetchConfig().lazy())
-                    .fetch("recipients.failure", new FetchConfig().lazy())
-                    .fetch("credentials", new FetchConfig().lazy())
                     .fetch("payloadData", new FetchConfig().lazy())
                     .where()
                     .disjunction()
-                    .eq("recipients.state", RecipientState.STATE_IDLE)
-                    .eq("recipients.state", RecipientState.STATE_PROCESSING)
-                    .eq("recipients.state", RecipientState.STATE_WAITING_RETRY)
+                    .gt("pendingCount", 0)
+                    .gt("retryingCount", 0)
+                    .endJunction()
+                    .disjunction()
+                    .isNull("sendAt")
+                    .le("sendAt", new Date())
                     .endJunction()
                     .findList();
 
@@ -106,4 +507,482 @@ public class MessagesDao {
         return pendingMessages;
     }
 
+    /**
+     * Cancel the unsent recipients of a message with one set-based update. The recipients of a message
+     * that is being dispatched by this process are already cancelled in memory, and only its
+     * counters are written. Otherwise, every pending recipient is cancelled.
+     *
+     * @param messageId     the message id.
+     * @param activeMessage the message, if it is queued in this process.
+     * @return true if the message was cancelled.
+     */
+    @Override
+    public boolean cancelMessage(long messageId, @Nullable Message activeMessage) {
+        boolean isInFlight = activeMessage != null && activeMessage.getRecipientTable() != null;
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            mEbeanServer.createSqlUpdate(
+                    "update pushservices.recipients set state = 'CANCELLED' where message_id = :messageId and state in " +
+                            (isInFlight ? "('IDLE', 'WAITING_RETRY')" : "('IDLE', 'PROCESSING', 'WAITING_RETRY')"))
+                    .setParameter("messageId", messageId)
+                    .execute();
+
+            if (isInFlight) {
+                synchronized (activeMessage) {
+                    mEbeanServer.createSqlUpdate(
+                            "update pushservices.messages set recipients_pending = :pending, recipients_retrying = :retrying, " +
+                                    "recipients_cancelled = :cancelled, audience_sent = true where id = :id")
+                            .setParameter("pending", activeMessage.getPendingCount())
+                            .setParameter("retrying", activeMessage.getRetryingCount())
+                            .setParameter("cancelled", activeMessage.getCancelledCount())
+                            .setParameter("id", messageId)
+                            .execute();
+                }
+
+            } else {
+                // Audience members that were never stored are cancelled along with the stored recipients.
+                mEbeanServer.createSqlUpdate(
+                        "update pushservices.messages set " +
+                                "recipients_cancelled = recipients_cancelled + recipients_pending + recipients_retrying, " +
+                                "recipients_pending = 0, recipients_retrying = 0, audience_sent = true where id = :id")
+                        .setParameter("id", messageId)
+                        .execute();
+            }
+            transaction.commit();
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error cancelling message %d: %s.", messageId, e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Expire the unsent recipients of a message with one set-based update, and write its counters.
+     *
+     * @param message the expired message, which is not in flight.
+     * @return true if the message was expired.
+     */
+    @Override
+    public boolean expireMessage(@Nonnull Message message) {
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            mEbeanServer.createSqlUpdate(
+                    "update pushservices.recipients set state = 'EXPIRED', next_attempt = null " +
+                            "where message_id = :messageId and state in ('IDLE', 'PROCESSING', 'WAITING_RETRY')")
+                    .setParameter("messageId", message.getId())
+                    .execute();
+
+            synchronized (message) {
+                mEbeanServer.createSqlUpdate(
+                        "update pushservices.messages set recipients_pending = :pending, recipients_retrying = :retrying, " +
+                                "recipients_expired = :expired, audience_sent = true where id = :id")
+                        .setParameter("pending", message.getPendingCount())
+                        .setParameter("retrying", message.getRetryingCount())
+                        .setParameter("expired", message.getExpiredCount())
+                        .setParameter("id", message.getId())
+                        .execute();
+            }
+            transaction.commit();
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error expiring message %d: %s.", message.getId(), e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Get the message saved with an idempotency key within a window.
+     *
+     * @param idempotencyKey the message idempotency key.
+     * @param windowSeconds  how long ago the message may have been added.
+     * @return the message, without its recipients, or null if there is none within the window.
+     */
+    @Nullable
+    public Message fetchMessage(@Nonnull String idempotencyKey, long windowSeconds) {
+        try {
+            return mEbeanServer.find(Message.class)
+                    .fetch("payloadData", new FetchConfig().lazy())
+                    .where()
+                    .eq("idempotencyKey", idempotencyKey)
+                    .raw("added_time > now() - ? * interval '1 second'", windowSeconds)
+                    .findOne();
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching message by idempotency key: %s.", e.getMessage()));
+        }
+        return null;
+    }
+
+    /**
+     * Release an idempotency key from a message added before a window, so that a new message can be saved
+     * with the same key while the old message is still retained.
+     *
+     * @param idempotencyKey the message idempotency key.
+     * @param windowSeconds  how long ago the message may have been added and still hold its key.
+     * @return the number of messages the key was released from, or -1 on error.
+     */
+    public int releaseIdempotencyKey(@Nonnull String idempotencyKey, long windowSeconds) {
+        try {
+            return mEbeanServer.createSqlUpdate(
+                    "update pushservices.messages set idempotency_key = null where idempotency_key = :idempotencyKey " +
+                            "and (added_time is null or added_time <= now() - :windowSeconds * interval '1 second')")
+                    .setParameter("idempotencyKey", idempotencyKey)
+                    .setParameter("windowSeconds", windowSeconds)
+                    .execute();
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error releasing idempotency key: %s.", e.getMessage()));
+        }
+        return -1;
+    }
+
+    /**
+     * Claim a chunk of pending messages for a dispatcher, in id order after a given message. Messages that no
+     * dispatcher has claimed, and messages whose claim lease has passed without being renewed, such as those of
+     * a node that has stopped, are claimed. Messages the dispatcher already holds are only reclaimed when asked,
+     * such as at startup. Rows locked by another claim are skipped, and deferred messages are left until their
+     * send time has passed.
+     *
+     * @param dispatcherId      the claiming dispatcher.
+     * @param includeHeld       true to also reclaim the messages the dispatcher already holds.
+     * @param afterId           only claim messages with a greater id, to page through the pending messages.
+     * @param chunkSize         maximum number of messages to claim.
+     * @param claimLeaseSeconds how long a claim lasts without being renewed.
+     * @return the claimed messages in id order, without their recipients, or null on error.
+     */
+    @Nullable
+    public List<Message> claimPendingMessages(@Nonnull String dispatcherId, boolean includeHeld, long afterId, int chunkSize,
+                                              long claimLeaseSeconds) {
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            List<SqlRow> messageRows = mEbeanServer.createSqlQuery(
+                    "update pushservices.messages set dispatcher_id = :dispatcherId, claimed_at = now() " +
+                            "where id in (select id from pushservices.messages " +
+                            "where (recipients_pending > 0 or recipients_retrying > 0) and id > :afterId " +
+                            "and " + (includeHeld ? HELD_OR_CLAIMABLE_SQL : CLAIMABLE_SQL) +
+                            "and (send_at is null or send_at <= now()) " +
+                            "order by id limit :chunkSize for update skip locked) " +
+                            "returning id")
+                    .setParameter("dispatcherId", dispatcherId)
+                    .setParameter("claimLeaseSeconds", claimLeaseSeconds)
+                    .setParameter("afterId", afterId)
+                    .setParameter("chunkSize", chunkSize)
+                    .findList();
+            transaction.commit();
+
+            List<Message> claimedMessages = new ArrayList<>(fetchMessages(messageRows));
+            claimedMessages.sort(Comparator.comparing(Message::getId));
+            return claimedMessages;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error claiming pending messages %s.", e.getMessage()));
+        }
+        return null;
+    }
+
+    /**
+     * Get the pending deferred messages with a send time within a window, using the send time index.
+     * With a dispatcher, the messages are claimed for it, including those it already holds.
+     *
+     * @param dispatcherId      the claiming dispatcher, or null if messages are not claimed.
+     * @param sendAfter         the exclusive start of the window.
+     * @param sendBefore        the inclusive end of the window.
+     * @param claimLeaseSeconds how long a claim lasts without being renewed.
+     * @return the deferred messages, without their recipients.
+     */
+    @Nonnull
+    public List<Message> fetchScheduledMessages(@Nullable String dispatcherId, @Nonnull Date sendAfter, @Nonnull Date sendBefore,
+                                                long claimLeaseSeconds) {
+        List<Message> scheduledMessages = new ArrayList<>();
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            String scheduledSql = "select id from pushservices.messages " +
+                    "where send_at > :sendAfter and send_at <= :sendBefore " +
+                    "and (recipients_pending > 0 or recipients_retrying > 0) ";
+
+            SqlQuery scheduledQuery = mEbeanServer.createSqlQuery(dispatcherId != null
+                    ? "update pushservices.messages set dispatcher_id = :dispatcherId, claimed_at = now() where id in (" + scheduledSql +
+                    "and " + HELD_OR_CLAIMABLE_SQL + "for update skip locked) returning id"
+                    : scheduledSql)
+                    .setParameter("sendAfter", new Timestamp(sendAfter.getTime()))
+                    .setParameter("sendBefore", new Timestamp(sendBefore.getTime()));
+            if (dispatcherId != null) {
+                scheduledQuery.setParameter("dispatcherId", dispatcherId);
+                scheduledQuery.setParameter("claimLeaseSeconds", claimLeaseSeconds);
+            }
+
+            List<SqlRow> messageRows = scheduledQuery.findList();
+            transaction.commit();
+            scheduledMessages = fetchMessages(messageRows);
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching deferred messages %s.", e.getMessage()));
+        }
+        return scheduledMessages;
+    }
+
+    /**
+     * Renew the claim lease on every pending message a dispatcher holds, including deferred messages held
+     * until their send time and messages in flight, so that other nodes do not take them over. Claims that
+     * have been left to lapse are not renewed.
+     *
+     * @param dispatcherId the dispatcher that holds the messages.
+     * @return the number of claims renewed, or -1 on error.
+     */
+    public int renewClaimedMessages(@Nonnull String dispatcherId) {
+        try {
+            return mEbeanServer.createSqlUpdate(
+                    "update pushservices.messages set claimed_at = now() where dispatcher_id = :dispatcherId " +
+                            "and claimed_at is not null and (recipients_pending > 0 or recipients_retrying > 0)")
+                    .setParameter("dispatcherId", dispatcherId)
+                    .execute();
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error renewing claimed messages %s.", e.getMessage()));
+        }
+        return -1;
+    }
+
+    /**
+     * Let the claim a dispatcher holds on a message lapse, such as when it could not be dispatched after a
+     * store error. The dispatcher id is kept, so that no notification is raised, and the message is claimed
+     * again by the next poll of any node.
+     *
+     * @param dispatcherId the dispatcher that holds the message.
+     * @param messageId    the message id.
+     * @return true if the claim was left to lapse.
+     */
+    public boolean lapseClaimedMessage(@Nonnull String dispatcherId, long messageId) {
+        try {
+            mEbeanServer.createSqlUpdate(
+                    "update pushservices.messages set claimed_at = null where id = :id and dispatcher_id = :dispatcherId")
+                    .setParameter("id", messageId)
+                    .setParameter("dispatcherId", dispatcherId)
+                    .execute();
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error releasing the claim on message %d: %s.", messageId, e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Release the claims a dispatcher holds on its pending messages, so that other nodes can pick them up
+     * while it is stopped.
+     *
+     * @param dispatcherId     the dispatcher that is stopping.
+     * @param keptMessageIds   messages that stay claimed, such as those still in flight.
+     * @return the number of messages released, or -1 on error.
+     */
+    public int releaseClaimedMessages(@Nonnull String dispatcherId, @Nonnull Collection<Long> keptMessageIds) {
+        try {
+            String keptSql = "";
+            if (!keptMessageIds.isEmpty()) {
+                StringJoiner messageIds = new StringJoiner(",", "(", ")");
+                for (Long messageId : keptMessageIds) {
+                    messageIds.add(String.valueOf(messageId));
+                }
+                keptSql = "and id not in " + messageIds;
+            }
+
+            return mEbeanServer.createSqlUpdate(
+                    "update pushservices.messages set dispatcher_id = null, claimed_at = null where dispatcher_id = :dispatcherId " +
+                            "and (recipients_pending > 0 or recipients_retrying > 0) " + keptSql)
+                    .setParameter("dispatcherId", dispatcherId)
+                    .execute();
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error releasing claimed messages %s.", e.getMessage()));
+        }
+        return -1;
+    }
+
+    /**
+     * Save a new message and add it to the outbox, in the caller's transaction.
+     *
+     * @param message     the new message.
+     * @param transaction the caller's open transaction.
+     * @return true if the message was saved.
+     */
+    public boolean saveOutboxMessage(@Nonnull Message message, @Nonnull Transaction transaction) {
+        try {
+            mEbeanServer.save(message, transaction);
+            mEbeanServer.execute(mEbeanServer.createSqlUpdate(
+                    "insert into pushservices.message_outbox (message_id, added_time) values (:messageId, now())")
+                    .setParameter("messageId", message.getId()), transaction);
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error saving message to the outbox: %s.", e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Take a chunk of messages from the outbox and claim them for a dispatcher. Outbox rows locked by
+     * another relay are skipped, and messages already claimed by another dispatcher are left to it.
+     *
+     * @param dispatcherId the claiming dispatcher, or null if messages are not claimed.
+     * @param chunkSize    maximum number of outbox messages to take.
+     * @return the taken messages, without their recipients.
+     */
+    @Nonnull
+    public List<Message> takeOutboxMessages(@Nullable String dispatcherId, int chunkSize) {
+        List<Message> takenMessages = new ArrayList<>();
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            // Without a dispatcher, messages are taken as long as no dispatcher has claimed them.
+            String claimSql = dispatcherId != null
+                    ? "update pushservices.messages set dispatcher_id = :dispatcherId, claimed_at = now() " +
+                    "where id in (select message_id from taken_messages) " +
+                    "and (dispatcher_id is null or dispatcher_id = :dispatcherId) "
+                    : "update pushservices.messages set dispatcher_id = null " +
+                    "where id in (select message_id from taken_messages) and dispatcher_id is null ";
+
+            SqlQuery takeQuery = mEbeanServer.createSqlQuery(
+                    "with taken_messages as (" +
+                            "delete from pushservices.message_outbox where message_id in (" +
+                            "select message_id from pushservices.message_outbox " +
+                            "order by message_id limit :chunkSize for update skip locked) " +
+                            "returning message_id) " +
+                            claimSql +
+                            "returning id")
+                    .setParameter("chunkSize", chunkSize);
+            if (dispatcherId != null) {
+                takeQuery.setParameter("dispatcherId", dispatcherId);
+            }
+
+            List<SqlRow> messageRows = takeQuery.findList();
+            transaction.commit();
+            takenMessages = fetchMessages(messageRows);
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error taking messages from the outbox %s.", e.getMessage()));
+        }
+        return takenMessages;
+    }
+
+    /**
+     * Take a number of ids from a sequence in one query.
+     */
+    @Nonnull
+    private long[] nextSequenceValues(@Nonnull String sequenceName, int count) {
+        long[] ids = new long[count];
+        if (count == 0) {
+            return ids;
+        }
+
+        List<SqlRow> idRows = mEbeanServer.createSqlQuery(
+                "select nextval('" + sequenceName + "') as id from generate_series(1, :count)")
+                .setParameter("count", count)
+                .findList();
+        for (int i = 0; i < count; i++) {
+            ids[i] = idRows.get(i).getLong("id");
+        }
+        return ids;
+    }
+
+    @Nonnull
+    private List<Message> fetchMessages(@Nonnull List<SqlRow> messageRows) {
+        if (messageRows.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<Long> messageIds = new ArrayList<>();
+        for (SqlRow messageRow : messageRows) {
+            messageIds.add(messageRow.getLong("id"));
+        }
+
+        return mEbeanServer.find(Message.class)
+                .fetch("payloadData", new FetchConfig().lazy())
+                .where()
+                .idIn(messageIds)
+                .findList();
+    }
+
+    @Nonnull
+    private static RecipientState toRecipientState(@Nullable String stateValue) {
+        if (stateValue == null) {
+            return RecipientState.STATE_IDLE;
+        }
+
+        switch (stateValue) {
+            case "PROCESSING":
+                return RecipientState.STATE_PROCESSING;
+            case "FAILED":
+                return RecipientState.STATE_FAILED;
+            case "WAITING_RETRY":
+                return RecipientState.STATE_WAITING_RETRY;
+            case "COMPLETE":
+                return RecipientState.STATE_COMPLETE;
+            case "CANCELLED":
+                return RecipientState.STATE_CANCELLED;
+            case "EXPIRED":
+                return RecipientState.STATE_EXPIRED;
+            default:
+                return RecipientState.STATE_IDLE;
+        }
+    }
+
+    @Nonnull
+    private static RecipientType toRecipientType(@Nullable String typeValue) {
+        if ("TOPIC".equals(typeValue)) {
+            return RecipientType.TYPE_TOPIC;
+
+        } else if ("CONDITION".equals(typeValue)) {
+            return RecipientType.TYPE_CONDITION;
+        }
+        return RecipientType.TYPE_TOKEN;
+    }
+
+    @Nonnull
+    private static String toStateValue(@Nonnull RecipientState state) {
+        switch (state) {
+            case STATE_PROCESSING:
+                return "PROCESSING";
+            case STATE_FAILED:
+                return "FAILED";
+            case STATE_WAITING_RETRY:
+                return "WAITING_RETRY";
+            case STATE_COMPLETE:
+                return "COMPLETE";
+            case STATE_CANCELLED:
+                return "CANCELLED";
+            case STATE_EXPIRED:
+                return "EXPIRED";
+            default:
+                return "IDLE";
+        }
+    }
+
+    /**
+     * An audience member is stored as a recipient once it has failed or is waiting for a retry.
+     */
+    private static boolean isAudienceException(@Nonnull RecipientState state) {
+        return state == RecipientState.STATE_FAILED || state == RecipientState.STATE_WAITING_RETRY;
+    }
+
+    /**
+     * Returns true if any audience member has not yet been sent to (or is being sent to).
+     */
+    private static boolean hasUnsentAudienceMembers(@Nonnull RecipientTable recipientTable) {
+        for (int row = 0; row < recipientTable.size(); row++) {
+            RecipientState state = recipientTable.getState(row);
+            if (recipientTable.getRecipientId(row) == RecipientTable.NO_RECIPIENT_ID &&
+                    (state == RecipientState.STATE_IDLE || state == RecipientState.STATE_PROCESSING)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long toEpochMillis(@Nullable Timestamp timestamp) {
+        return timestamp != null ? timestamp.getTime() : 0L;
+    }
+
+    private static void setTimestampParameter(@Nonnull SqlUpdate sqlUpdate, @Nonnull String name, long epochMillis) {
+        if (epochMillis != 0L) {
+            sqlUpdate.setParameter(name, new Timestamp(epochMillis));
+        } else {
+            sqlUpdate.setNullParameter(name, Types.TIMESTAMP);
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package dao.pushservices;
+
+import annotations.pushservices.PushServicesEbeanServer;
+import io.ebean.EbeanServer;
+import io.ebean.Transaction;
+import models.pushservices.db.CanonicalToken;
+import models.pushservices.db.SuppressedToken;
+import play.Logger;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Device token registry persistence.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class TokensDao {
+    private final EbeanServer mEbeanServer;
+
+    @Inject
+    public TokensDao(@PushServicesEbeanServer EbeanServer ebeanServer) {
+        mEbeanServer = ebeanServer;
+    }
+
+    /**
+     * Stream every suppressed token in the database to a consumer, without loading them
+     * all into memory at once.
+     *
+     * @param consumer consumer of each suppressed token.
+     * @return true if all tokens were read.
+     */
+    public boolean fetchSuppressedTokens(@Nonnull Consumer<SuppressedToken> consumer) {
+        try {
+            mEbeanServer.find(SuppressedToken.class)
+                    .select("token, failureType")
+                    .findEach(consumer);
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching suppressed tokens: %s.", e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Save a batch of suppressed tokens. Tokens which are already suppressed are left as they are.
+     *
+     * @param suppressedTokens tokens to suppress.
+     * @return true if the tokens were saved.
+     */
+    public boolean saveSuppressedTokens(@Nonnull List<SuppressedToken> suppressedTokens) {
+        if (suppressedTokens.isEmpty()) {
+            return true;
+        }
+
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            transaction.setBatchMode(true);
+
+            for (SuppressedToken suppressedToken : suppressedTokens) {
+                mEbeanServer.createSqlUpdate(
+                        "insert into pushservices.suppressed_tokens (id, token, type, added_time) " +
+                                "values (nextval('pushservices.suppressed_token_id_seq'), :token, :type, now()) " +
+                                "on conflict (token) do nothing")
+                        .setParameter("token", suppressedToken.getToken())
+                        .setParameter("type", suppressedToken.getFailureType().name())
+                        .execute();
+            }
+            transaction.commit();
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error saving suppressed tokens: %s.", e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Remove a token from the suppressed tokens.
+     *
+     * @param token the device token.
+     * @return true if the token was removed or was not suppressed.
+     */
+    public boolean deleteSuppressedToken(@Nonnull String token) {
+        try {
+            mEbeanServer.find(SuppressedToken.class)
+                    .where()
+                    .eq("token", token)
+                    .delete();
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error deleting suppressed token: %s.", e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Stream every stale to canonical token mapping in the database to a consumer.
+     *
+     * @param consumer consumer of each canonical token mapping.
+     * @return true if all mappings were read.
+     */
+    public boolean fetchCanonicalTokens(@Nonnull Consumer<CanonicalToken> consumer) {
+        try {
+            mEbeanServer.find(CanonicalToken.class)
+                    .select("staleToken, canonicalToken")
+                    .findEach(consumer);
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error fetching canonical tokens: %s.", e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Save a batch of stale to canonical token mappings, replacing any existing mapping
+     * for the same stale token.
+     *
+     * @param canonicalTokens token mappings to save.
+     * @return true if the mappings were saved.
+     */
+    public boolean saveCanonicalTokens(@Nonnull List<CanonicalToken> canonicalTokens) {
+        if (canonicalTokens.isEmpty()) {
+            return true;
+        }
+
+        try (Transaction transaction = mEbeanServer.beginTransaction()) {
+            transaction.setBatchMode(true);
+
+            for (CanonicalToken canonicalToken : canonicalTokens) {
+                mEbeanServer.createSqlUpdate(
+                        "insert into pushservices.canonical_tokens (id, stale_token, canonical_token, updated_time) " +
+                                "values (nextval('pushservices.canonical_token_id_seq'), :staleToken, :canonicalToken, now()) " +
+                                "on conflict (stale_token) do update " +
+                                "set canonical_token = excluded.canonical_token, updated_time = excluded.updated_time")
+                        .setParameter("staleToken", canonicalToken.getStaleToken())
+                        .setParameter("canonicalToken", canonicalToken.getCanonicalToken())
+                        .execute();
+            }
+            transaction.commit();
+            return true;
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error saving canonical tokens: %s.", e.getMessage()));
+        }
+        return false;
+    }
+}
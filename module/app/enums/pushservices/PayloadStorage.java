@@ -0,0 +1,20 @@
+package enums.pushservices;
+
+/**
+ * How the payload data of a message is persisted.
+ *
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public enum PayloadStorage {
+    /**
+     * Each payload key and value is stored as a separate payload element row.
+     */
+    STORAGE_ELEMENTS,
+
+    /**
+     * The payload is stored pre-encoded in a single JSON column of the message.
+     */
+    STORAGE_JSON
+}
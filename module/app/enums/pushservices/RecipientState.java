@@ -23,7 +23,13 @@ public enum RecipientState {
     STATE_WAITING_RETRY,
 
     @EnumValue("COMPLETE")
-    STATE_COMPLETE;
+    STATE_COMPLETE,
+
+    @EnumValue("CANCELLED")
+    STATE_CANCELLED,
+
+    @EnumValue("EXPIRED")
+    STATE_EXPIRED;
 
     RecipientState() {
     }
@@ -0,0 +1,25 @@
+package enums.pushservices;
+
+import io.ebean.annotation.EnumValue;
+
+/**
+ * An enum defining the kind of target a Message Recipient is. A topic or condition recipient
+ * reaches every device subscribed to it with a single platform request.
+ *
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public enum RecipientType {
+    @EnumValue("TOKEN")
+    TYPE_TOKEN,
+
+    @EnumValue("TOPIC")
+    TYPE_TOPIC,
+
+    @EnumValue("CONDITION")
+    TYPE_CONDITION;
+
+    RecipientType() {
+    }
+}
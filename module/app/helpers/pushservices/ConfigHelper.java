@@ -0,0 +1,36 @@
+package helpers.pushservices;
+
+import com.typesafe.config.Config;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Read optional push services module settings from the Play configuration, falling
+ * back to a default when a setting is missing.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class ConfigHelper {
+
+    public static boolean getBoolean(@Nonnull Config config, @Nonnull String path, boolean defaultValue) {
+        return config.hasPath(path) ? config.getBoolean(path) : defaultValue;
+    }
+
+    public static int getInt(@Nonnull Config config, @Nonnull String path, int defaultValue) {
+        return config.hasPath(path) ? config.getInt(path) : defaultValue;
+    }
+
+    public static long getLong(@Nonnull Config config, @Nonnull String path, long defaultValue) {
+        return config.hasPath(path) ? config.getLong(path) : defaultValue;
+    }
+
+    public static double getDouble(@Nonnull Config config, @Nonnull String path, double defaultValue) {
+        return config.hasPath(path) ? config.getDouble(path) : defaultValue;
+    }
+
+    public static String getString(@Nonnull Config config, @Nonnull String path, String defaultValue) {
+        return config.hasPath(path) ? config.getString(path) : defaultValue;
+    }
+}
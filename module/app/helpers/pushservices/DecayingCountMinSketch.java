@@ -0,0 +1,122 @@
+package helpers.pushservices;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A count-min sketch over a sliding time window, for estimating how often a key, such as a device token,
+ * has been seen recently in a fixed amount of memory. The window is split into time buckets, each with
+ * its own counters, and a bucket is cleared when it is reused, so counts decay as the window moves on.
+ * <p>
+ * Like any count-min sketch, estimates never undercount, but can overcount when keys collide in every
+ * row. Collisions are kept rare by sizing the width well above the number of keys seen in a window.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class DecayingCountMinSketch {
+    private static final HashFunction KEY_HASH_FUNCTION = Hashing.murmur3_128();
+    private static final int DEPTH = 4;
+
+    private final int mWidthMask;
+    private final long mBucketMillis;
+    private final int[][] mCounters;
+    private final long[] mBucketEpochs;
+
+    /**
+     * @param width        the counters in each row, rounded up to a power of two.
+     * @param bucketCount  the number of time buckets the window is split into.
+     * @param windowMillis the length of the window.
+     */
+    public DecayingCountMinSketch(int width, int bucketCount, long windowMillis) {
+        int tableWidth = Integer.highestOneBit(Math.max(16, width) * 2 - 1);
+        int buckets = Math.max(1, bucketCount);
+        mWidthMask = tableWidth - 1;
+        mBucketMillis = Math.max(1, windowMillis / buckets);
+        mCounters = new int[buckets][DEPTH * tableWidth];
+        mBucketEpochs = new long[buckets];
+        Arrays.fill(mBucketEpochs, -1L);
+    }
+
+    /**
+     * @return the length of a time bucket, which is how long it takes for a count to start decaying.
+     */
+    public long getBucketMillis() {
+        return mBucketMillis;
+    }
+
+    /**
+     * Add to the count of a key.
+     *
+     * @param key         the key.
+     * @param count       the amount to add.
+     * @param currentTime the current time in epoch millis.
+     */
+    public synchronized void add(@Nonnull String key, int count, long currentTime) {
+        int[] counters = currentBucket(currentTime);
+        long hash1 = hash(key).asLong();
+        long hash2 = hash1 >>> 32 | hash1 << 32;
+
+        for (int row = 0; row < DEPTH; row++) {
+            int column = index(row, hash1, hash2);
+            counters[column] = (int) Math.min(Integer.MAX_VALUE, (long) counters[column] + count);
+        }
+    }
+
+    /**
+     * Estimate the count of a key over the window.
+     *
+     * @param key         the key.
+     * @param currentTime the current time in epoch millis.
+     * @return the estimated count, which may overcount but never undercounts.
+     */
+    public synchronized int estimate(@Nonnull String key, long currentTime) {
+        long currentEpoch = currentTime / mBucketMillis;
+        long hash1 = hash(key).asLong();
+        long hash2 = hash1 >>> 32 | hash1 << 32;
+
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int column = index(row, hash1, hash2);
+
+            long rowCount = 0;
+            for (int bucket = 0; bucket < mCounters.length; bucket++) {
+                if (currentEpoch - mBucketEpochs[bucket] < mCounters.length) {
+                    rowCount += mCounters[bucket][column];
+                }
+            }
+            estimate = Math.min(estimate, rowCount);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, estimate);
+    }
+
+    /**
+     * Get the counters of the bucket for the current time, clearing them if they were last used for an
+     * earlier turn of the window.
+     */
+    @Nonnull
+    private int[] currentBucket(long currentTime) {
+        long currentEpoch = currentTime / mBucketMillis;
+        int bucket = (int) (currentEpoch % mCounters.length);
+        if (mBucketEpochs[bucket] != currentEpoch) {
+            Arrays.fill(mCounters[bucket], 0);
+            mBucketEpochs[bucket] = currentEpoch;
+        }
+        return mCounters[bucket];
+    }
+
+    private int index(int row, long hash1, long hash2) {
+        return row * (mWidthMask + 1) + (int) ((hash1 + row * hash2) & mWidthMask);
+    }
+
+    @Nonnull
+    private static HashCode hash(@Nonnull String key) {
+        return KEY_HASH_FUNCTION.hashString(key, StandardCharsets.UTF_8);
+    }
+}
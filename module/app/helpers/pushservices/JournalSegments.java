@@ -0,0 +1,224 @@
+package helpers.pushservices;
+
+import play.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records, kept in a directory of fixed size, memory-mapped segment files.
+ * A new segment is started when a record does not fit in the current one, and whole segments
+ * are deleted once their records have been compacted into a later segment.
+ * <p>
+ * Each record is its length, a CRC32 checksum and then a type byte and payload. The length is
+ * written last, so a record that was torn by a crash is never replayed.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class JournalSegments implements Closeable {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    public interface RecordConsumer {
+        void accept(byte type, @Nonnull DataInput payload) throws IOException;
+    }
+
+    private final Path mDirectory;
+    private final int mSegmentSize;
+    private final TreeMap<Long, Path> mSegments = new TreeMap<>();
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+
+    public JournalSegments(@Nonnull Path directory, int segmentSize) throws IOException {
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> segmentPaths = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segmentPath : segmentPaths) {
+                String fileName = segmentPath.getFileName().toString();
+                try {
+                    mSegments.put(Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(),
+                            fileName.length() - SEGMENT_SUFFIX.length())), segmentPath);
+
+                } catch (NumberFormatException e) {
+                    Logger.warn(String.format("Ignoring unknown journal file %s.", segmentPath));
+                }
+            }
+        }
+    }
+
+    /**
+     * Read every record in the journal, oldest first, and open the journal for appending.
+     *
+     * @param consumer consumer of each record.
+     */
+    public void replay(@Nonnull RecordConsumer consumer) throws IOException {
+        int appendPosition = 0;
+        boolean isTorn = false;
+
+        for (Map.Entry<Long, Path> segment : mSegments.entrySet()) {
+            try (FileChannel channel = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                appendPosition = readRecords(buffer, consumer);
+                isTorn = buffer.remaining() >= 4 && buffer.getInt(appendPosition) != 0;
+
+                if (isTorn && !segment.getKey().equals(mSegments.lastKey())) {
+                    Logger.error(String.format("Journal segment %s is corrupt after %d bytes.", segment.getValue(), appendPosition));
+                }
+            }
+        }
+
+        if (mSegments.isEmpty()) {
+            openSegment(1, 0);
+
+        } else {
+            openSegment(mSegments.lastKey(), appendPosition);
+            if (isTorn) {
+                Logger.warn(String.format("Discarding a torn record at the end of journal segment %s.", mSegments.lastEntry().getValue()));
+                while (mBuffer.hasRemaining()) {
+                    mBuffer.put((byte) 0);
+                }
+                mBuffer.position(appendPosition);
+            }
+        }
+    }
+
+    /**
+     * Append a record to the journal, starting a new segment if it does not fit in the current one.
+     *
+     * @param type    the record type.
+     * @param payload the record payload.
+     */
+    public void append(byte type, @Nonnull byte[] payload) throws IOException {
+        int length = payload.length + 1;
+        if (RECORD_HEADER_SIZE + length > mSegmentSize) {
+            throw new IOException(String.format("Journal record of %d bytes does not fit in a segment.", length));
+        }
+
+        if (mBuffer.remaining() < RECORD_HEADER_SIZE + length) {
+            rotate();
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(type);
+        checksum.update(payload);
+
+        int start = mBuffer.position();
+        mBuffer.position(start + RECORD_HEADER_SIZE);
+        mBuffer.put(type);
+        mBuffer.put(payload);
+        int end = mBuffer.position();
+
+        mBuffer.putInt(start + 4, (int) checksum.getValue());
+        mBuffer.putInt(start, length);
+        mBuffer.position(end);
+    }
+
+    /**
+     * Start a new segment.
+     *
+     * @return the sequence number of the new segment.
+     */
+    public long rotate() throws IOException {
+        long sequence = mSegments.lastKey() + 1;
+        closeSegment();
+        openSegment(sequence, 0);
+        return sequence;
+    }
+
+    /**
+     * Flush appended records to disk.
+     */
+    public void sync() {
+        mBuffer.force();
+    }
+
+    /**
+     * Delete the segments before a segment, once their records are no longer needed.
+     *
+     * @param sequence the first segment to keep.
+     */
+    public void deleteSegmentsBefore(long sequence) {
+        Map<Long, Path> retiredSegments = mSegments.headMap(sequence);
+        for (Path segmentPath : retiredSegments.values()) {
+            try {
+                Files.deleteIfExists(segmentPath);
+
+            } catch (IOException e) {
+                Logger.error(String.format("Error deleting journal segment %s.", segmentPath), e);
+            }
+        }
+        retiredSegments.clear();
+    }
+
+    public int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+
+    private int readRecords(@Nonnull MappedByteBuffer buffer, @Nonnull RecordConsumer consumer) throws IOException {
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining() - 4) {
+                buffer.position(start);
+                break;
+            }
+
+            int expectedChecksum = buffer.getInt();
+            byte[] record = new byte[length];
+            buffer.get(record);
+
+            CRC32 checksum = new CRC32();
+            checksum.update(record);
+            if ((int) checksum.getValue() != expectedChecksum) {
+                buffer.position(start);
+                break;
+            }
+
+            consumer.accept(record[0], new DataInputStream(new ByteArrayInputStream(record, 1, length - 1)));
+        }
+        return buffer.position();
+    }
+
+    private void openSegment(long sequence, int position) throws IOException {
+        Path segmentPath = mDirectory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        mChannel = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(mSegmentSize, mChannel.size()));
+        mBuffer.position(position);
+        mSegments.put(sequence, segmentPath);
+    }
+
+    private void closeSegment() throws IOException {
+        if (mBuffer != null) {
+            mBuffer.force();
+            mBuffer = null;
+        }
+
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package helpers.pushservices;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent latency histogram with HdrHistogram-style log-linear buckets. Each power of two range of
+ * values is split into a fixed number of linear sub-buckets, so every recorded value is kept to within
+ * a fixed relative precision (about 3%) across the whole range, in a fixed amount of memory.
+ * <p>
+ * Recording is lock-free and allocation-free, so it can be used on the dispatch path. Values are
+ * recorded in microseconds, and values above the highest trackable value are clamped to it.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class LatencyHistogram {
+    // Linear sub-buckets in each power of two range. 2^5 keeps values within 1/32 of their true value.
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private final long mHighestTrackableMicros;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    /**
+     * @param highestTrackable the highest latency that is told apart from higher latencies.
+     * @param unit             the unit of highestTrackable.
+     */
+    public LatencyHistogram(long highestTrackable, @Nonnull TimeUnit unit) {
+        mHighestTrackableMicros = Math.max(SUB_BUCKET_COUNT * 2, unit.toMicros(highestTrackable));
+        mCounts = new AtomicLongArray(bucketIndex(mHighestTrackableMicros) + 1);
+    }
+
+    /**
+     * Record the time elapsed since a start time.
+     *
+     * @param startNanos the start time, from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param micros the latency in microseconds.
+     */
+    public void record(long micros) {
+        long value = Math.min(Math.max(0, micros), mHighestTrackableMicros);
+        mCounts.incrementAndGet(bucketIndex(value));
+        mTotalCount.incrementAndGet();
+        mTotalMicros.addAndGet(value);
+
+        long max = mMaxMicros.get();
+        while (value > max && !mMaxMicros.compareAndSet(max, value)) {
+            max = mMaxMicros.get();
+        }
+    }
+
+    /**
+     * Take a consistent enough copy of the histogram for reporting. Recording carries on meanwhile, so
+     * the counts may include values recorded while the copy was taken.
+     *
+     * @return the histogram snapshot.
+     */
+    @Nonnull
+    public Snapshot getSnapshot() {
+        long[] counts = new long[mCounts.length()];
+        long totalCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+            totalCount += counts[i];
+        }
+        return new Snapshot(counts, totalCount, mTotalMicros.get(), mMaxMicros.get());
+    }
+
+    /**
+     * Find the bucket for a value. Values below twice the sub-bucket count have a bucket each. Above that,
+     * each power of two range has the same number of sub-buckets.
+     */
+    private static int bucketIndex(long value) {
+        int magnitude = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return magnitude * SUB_BUCKET_COUNT + (int) (value >>> magnitude);
+    }
+
+    /**
+     * @return the highest value that falls into a bucket.
+     */
+    private static long bucketHighestValue(int index) {
+        int magnitude = Math.max(0, index / SUB_BUCKET_COUNT - 1);
+        long lowestValue = (long) (index - magnitude * SUB_BUCKET_COUNT) << magnitude;
+        return lowestValue + (1L << magnitude) - 1;
+    }
+
+    /**
+     * A point in time copy of a {@link LatencyHistogram}.
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mTotalCount;
+        private final long mTotalMicros;
+        private final long mMaxMicros;
+
+        private Snapshot(@Nonnull long[] counts, long totalCount, long totalMicros, long maxMicros) {
+            mCounts = counts;
+            mTotalCount = totalCount;
+            mTotalMicros = totalMicros;
+            mMaxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return mTotalCount;
+        }
+
+        public long getMaxMicros() {
+            return mMaxMicros;
+        }
+
+        public double getMeanMicros() {
+            return mTotalCount > 0 ? (double) mTotalMicros / mTotalCount : 0;
+        }
+
+        /**
+         * @param percentile the percentile, from 0 to 100.
+         * @return the latency at or below which the percentile of recorded latencies fall, in microseconds.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mTotalCount == 0) {
+                return 0;
+            }
+
+            long targetCount = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * mTotalCount));
+            long count = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                count += mCounts[i];
+                if (count >= targetCount) {
+                    return Math.min(bucketHighestValue(i), mMaxMicros);
+                }
+            }
+            return mMaxMicros;
+        }
+    }
+}
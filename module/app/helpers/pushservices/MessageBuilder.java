@@ -1,7 +1,13 @@
 package helpers.pushservices;
 
+import com.google.common.collect.Iterators;
+import com.google.gson.Gson;
 import enums.pushservices.MessagePriority;
+import enums.pushservices.PayloadStorage;
+import enums.pushservices.RecipientType;
 import exceptions.pushservices.MessageValidationException;
+import models.pushservices.app.StreamedMessage;
+import models.pushservices.db.Audience;
 import models.pushservices.db.Credentials;
 import models.pushservices.db.Message;
 import models.pushservices.db.PayloadElement;
@@ -9,7 +15,10 @@ import models.pushservices.db.Recipient;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.Reader;
 import java.util.*;
+import java.util.stream.Stream;
 
 /**
  * Easily build a Push Service's Platform {@link Message} which can be then
@@ -19,14 +28,23 @@ public class MessageBuilder {
     public static class Builder {
         private final int ONE_WEEK_IN_SECONDS = 60 * 60 * 24 * 7;
         private final String DEFAULT_COLLAPSE_KEY = "default_collapse";
+        private final String TOPIC_PREFIX = "/topics/";
         private Credentials mCredentials;
+        private Audience mAudience;
         private Set<String> mMessageTokens = new HashSet<>();
+        private Set<String> mMessageTopics = new HashSet<>();
+        private Set<String> mMessageConditions = new HashSet<>();
+        private Iterator<String> mMessageTokenStream;
         private Map<String, String> mMessageData = new HashMap<>();
         private MessagePriority mMessagePriority = MessagePriority.PRIORITY_LOW;
+        private PayloadStorage mPayloadStorage = PayloadStorage.STORAGE_ELEMENTS;
         private int mTtl = ONE_WEEK_IN_SECONDS;
         private boolean mShouldDelayWhileIdle = true;
         private boolean mIsDryRun = false;
+        private boolean mIsDurable = true;
         private String mCollapseKey;
+        private String mIdempotencyKey;
+        private Date mSendAt;
         private int mMaxMessageRetries = 3;
 
         /**
@@ -36,29 +54,86 @@ public class MessageBuilder {
          */
         @Nullable
         public Message build() throws MessageValidationException {
+            if (mMessageTokenStream != null) {
+                while (mMessageTokenStream.hasNext()) {
+                    String token = mMessageTokenStream.next();
+                    if (token != null) {
+                        mMessageTokens.add(token);
+                    }
+                }
+                mMessageTokenStream = null;
+            }
+
             List<Recipient> recipients = new ArrayList<>();
             for (String token : mMessageTokens) {
                 Recipient recipient = new Recipient(token);
                 recipients.add(recipient);
             }
 
+            for (String topic : mMessageTopics) {
+                recipients.add(new Recipient(topic, RecipientType.TYPE_TOPIC));
+            }
+
+            for (String condition : mMessageConditions) {
+                recipients.add(new Recipient(condition, RecipientType.TYPE_CONDITION));
+            }
+
+            Message message = buildMessage();
+            message.setRecipients(recipients);
+
+            MessageHelper.verifyMessage(message);
+            MessageHelper.countRecipientStates(message);
+            return message;
+        }
+
+        /**
+         * Build a platform message whose device tokens are streamed from the token iterator, stream
+         * or reader given to the builder. The tokens are consumed (de-duplicated and validated) as the
+         * message is queued with {@link services.pushservices.TaskQueue#queueStreamedMessage}, so the
+         * full audience is never held in memory at once.
+         *
+         * @return Push Service {@link StreamedMessage} for a push platform.
+         */
+        @Nonnull
+        public StreamedMessage buildStreamed() throws MessageValidationException {
+            Message message = buildMessage();
+            MessageHelper.verifyMessageHeader(message);
+
+            Iterator<String> tokens = mMessageTokens.iterator();
+            if (mMessageTokenStream != null) {
+                tokens = Iterators.concat(tokens, mMessageTokenStream);
+            }
+            return new StreamedMessage(message, tokens);
+        }
+
+        /**
+         * Build the message attributes, without recipients.
+         */
+        @Nonnull
+        private Message buildMessage() {
             List<PayloadElement> payload = new ArrayList<>();
-            for (Map.Entry<String, String> datum : mMessageData.entrySet()) {
-                payload.add(new PayloadElement(datum.getKey(), datum.getValue()));
+            if (mPayloadStorage == PayloadStorage.STORAGE_ELEMENTS) {
+                for (Map.Entry<String, String> datum : mMessageData.entrySet()) {
+                    payload.add(new PayloadElement(datum.getKey(), datum.getValue()));
+                }
             }
 
             Message message = new Message();
-            message.setRecipients(recipients);
             message.setCredentials(mCredentials);
+            message.setAudience(mAudience);
             message.setCollapseKey(mCollapseKey != null ? mCollapseKey : DEFAULT_COLLAPSE_KEY);
             message.setTtlSeconds(mTtl);
             message.setDryRun(mIsDryRun);
+            message.setDurable(mIsDurable);
+            message.setIdempotencyKey(mIdempotencyKey);
+            message.setSendAt(mSendAt);
             message.setPayloadData(payload);
+            if (mPayloadStorage == PayloadStorage.STORAGE_JSON) {
+                message.setPayload(new Gson().toJson(mMessageData));
+            }
             message.setMaximumRetries(mMaxMessageRetries);
             message.setShouldDelayWhileIdle(mShouldDelayWhileIdle);
             message.setMessagePriority(mMessagePriority);
-
-            MessageHelper.verifyMessage(message);
             return message;
         }
 
@@ -72,6 +147,54 @@ public class MessageBuilder {
             return this;
         }
 
+        /**
+         * Set an iterator of platform device tokens for the message to be sent to. Use with
+         * {@link #buildStreamed()} for very large audiences.
+         *
+         * @param tokens device tokens to send message to.
+         */
+        public Builder setDeviceTokens(@Nonnull Iterator<String> tokens) {
+            mMessageTokenStream = tokens;
+            return this;
+        }
+
+        /**
+         * Set a stream of platform device tokens for the message to be sent to. Use with
+         * {@link #buildStreamed()} for very large audiences.
+         *
+         * @param tokens device tokens to send message to.
+         */
+        public Builder setDeviceTokens(@Nonnull Stream<String> tokens) {
+            mMessageTokenStream = tokens.iterator();
+            return this;
+        }
+
+        /**
+         * Set a reader of platform device tokens (one per line) for the message to be sent to, such
+         * as a token file. Use with {@link #buildStreamed()} for very large audiences.
+         *
+         * @param tokenReader reader of device tokens to send message to.
+         */
+        public Builder setDeviceTokens(@Nonnull Reader tokenReader) {
+            mMessageTokenStream = new BufferedReader(tokenReader).lines()
+                    .map(String::trim)
+                    .filter(token -> !token.isEmpty())
+                    .iterator();
+            return this;
+        }
+
+        /**
+         * Send the message to every member of a stored audience, created and maintained with the
+         * {@link dao.pushservices.AudienceDao}. The audience tokens are not copied into the message.
+         * Device tokens can also be added, and are sent to alongside the audience. Use with {@link #build()}.
+         *
+         * @param audience persisted audience to send the message to.
+         */
+        public Builder setAudience(@Nonnull Audience audience) {
+            mAudience = audience;
+            return this;
+        }
+
         /**
          * Add platform device token for the message to be sent to.
          *
@@ -83,6 +206,29 @@ public class MessageBuilder {
         }
 
 
+        /**
+         * Add a topic for the message to be sent to. The message reaches every device subscribed
+         * to the topic with a single platform request, and the topic is tracked as one recipient.
+         *
+         * @param topic topic name, with or without the /topics/ prefix.
+         */
+        public Builder addTopic(@Nonnull String topic) {
+            mMessageTopics.add(topic.startsWith(TOPIC_PREFIX) ? topic : TOPIC_PREFIX + topic);
+            return this;
+        }
+
+        /**
+         * Add a topic condition for the message to be sent to, such as
+         * "'piccadilly' in topics || 'victoria' in topics". Like a topic, the condition is sent with
+         * a single platform request and tracked as one recipient.
+         *
+         * @param condition topic condition expression.
+         */
+        public Builder addCondition(@Nonnull String condition) {
+            mMessageConditions.add(condition);
+            return this;
+        }
+
         /**
          * Setting this to true allows a response back from the server for a sent message,
          * but it not to end up on the devices.
@@ -94,6 +240,18 @@ public class MessageBuilder {
             return this;
         }
 
+        /**
+         * Setting this to false keeps the message in memory only. It is dispatched without any database
+         * I/O, but is lost if the server restarts before it is sent. Use for ephemeral messages, such as
+         * live position updates.
+         *
+         * @param isDurable false if the message should not be persisted. defaults to true.
+         */
+        public Builder setIsDurable(boolean isDurable) {
+            mIsDurable = isDurable;
+            return this;
+        }
+
         /**
          * Add a set of key/value payload attributes to the message. This can be anything you want,
          * but is limited to 4096 bytes for all payload.
@@ -119,13 +277,32 @@ public class MessageBuilder {
             return this;
         }
 
+        /**
+         * Set how the message payload data is persisted. {@link PayloadStorage} STORAGE_JSON keeps the
+         * encoded payload in a single column, which avoids a row per payload key on save and load.
+         *
+         * @param payloadStorage payload storage mode. Default is STORAGE_ELEMENTS.
+         */
+        public Builder setPayloadStorage(@Nonnull PayloadStorage payloadStorage) {
+            mPayloadStorage = payloadStorage;
+            return this;
+        }
+
         /**
          * Set the platform account (push services) that contains endpoints, platform type,
          * and authorisation keys, etc for that provider.
+         * <p>
+         * Credentials registered with {@link dao.pushservices.CredentialsDao} are shared by reference.
+         * Unregistered credentials are copied and stored alongside this message only.
          *
          * @param credentials push service platform credentials.
          */
         public Builder setPlatformCredentials(@Nonnull Credentials credentials) {
+            if (credentials.getId() != null) {
+                mCredentials = credentials;
+                return this;
+            }
+
             Credentials credentialsCopy = new Credentials(credentials.getPlatformType());
             credentialsCopy.setAuthKey(credentials.getAuthKey());
             credentialsCopy.setCertBody(credentials.getCertBody());
@@ -197,5 +374,28 @@ public class MessageBuilder {
             return this;
         }
 
+        /**
+         * Set a key for the event the message is sent for, such as an alert id. If a message has already
+         * been queued with the same key, queueing this message returns the existing message instead of
+         * sending it again.
+         *
+         * @param idempotencyKey idempotency key string, of up to 255 characters.
+         */
+        public Builder setIdempotencyKey(@Nonnull String idempotencyKey) {
+            mIdempotencyKey = idempotencyKey;
+            return this;
+        }
+
+        /**
+         * Defer the message until a later time. The message is saved when it is queued, but is not
+         * sent until the time has passed. A time in the past sends the message straight away.
+         *
+         * @param sendAt the time to first send the message at.
+         */
+        public Builder setSendAt(@Nonnull Date sendAt) {
+            mSendAt = sendAt;
+            return this;
+        }
+
     }
 }
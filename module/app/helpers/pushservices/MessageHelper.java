@@ -1,16 +1,20 @@
 package helpers.pushservices;
 
-import enums.pushservices.PlatformType;
 import enums.pushservices.RecipientState;
+import enums.pushservices.RecipientType;
 import exceptions.pushservices.MessageValidationException;
+import models.pushservices.app.RecipientTable;
 import models.pushservices.db.Message;
 import models.pushservices.db.PlatformFailure;
 import models.pushservices.db.Recipient;
 import play.shaded.ahc.io.netty.util.internal.StringUtil;
 
 import javax.annotation.Nonnull;
-import java.util.Calendar;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
  * A set of general-purpose functions for {@link Message}s and Message children.
@@ -20,6 +24,9 @@ import java.util.Date;
  * Copyright 5/6/16 Splendid Bits.
  */
 public class MessageHelper {
+    private static final int MAX_TOKEN_LENGTH = 4096;
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    private static final Pattern TOPIC_PATTERN = Pattern.compile("/topics/[a-zA-Z0-9-_.~%]+");
 
     /**
      * Verifies a message and throws an exception on fatal errors with the message.
@@ -28,35 +35,18 @@ public class MessageHelper {
      * @throws MessageValidationException fired when there are irrecoverable problems with the message.
      */
     public static void verifyMessage(Message message) throws MessageValidationException {
-        if (message == null) {
-            throw new MessageValidationException("message is null.");
-        }
-
-        if (message.getId() != null) {
-            throw new MessageValidationException("message.id should not be set. A message and all children behave atomically.");
-        }
-
-        if (message.getCredentials() == null) {
-            throw new MessageValidationException("message is missing a credentials model.");
-        }
-
-        if (message.getCredentials().getMessage() != null) {
-            throw new MessageValidationException("credentials.message should not be set.");
-        }
-
-        if (message.getCredentials().getId() != null) {
-            throw new MessageValidationException("credentials.id should not be set. A message and all children behave atomically.");
-        }
+        verifyMessageHeader(message);
 
-        if (message.getCredentials().getPlatformType() == null) {
-            throw new MessageValidationException("credentials is missing a PlatformType.");
+        if (message.getAudience() != null && message.getAudience().getId() == null) {
+            throw new MessageValidationException("message audience must be created with the AudienceDao.");
         }
 
-        if (message.getRecipients() == null || message.getRecipients().isEmpty()) {
+        boolean hasRecipients = message.getRecipients() != null && !message.getRecipients().isEmpty();
+        if (!hasRecipients && message.getAudience() == null) {
             throw new MessageValidationException("message has no recipients. did you forget to add tokens using the builder?");
         }
 
-        for (Recipient recipient : message.getRecipients()) {
+        for (Recipient recipient : hasRecipients ? message.getRecipients() : Collections.<Recipient>emptyList()) {
             if (recipient.getId() != null) {
                 throw new MessageValidationException("recipient.id should not be set. A message and all children behave atomically.");
             }
@@ -69,14 +59,59 @@ public class MessageHelper {
                 throw new MessageValidationException(String.format("recipient %d has no device token.", recipient.getId()));
             }
 
+            if (recipient.getType() == RecipientType.TYPE_TOPIC && !TOPIC_PATTERN.matcher(recipient.getToken()).matches()) {
+                throw new MessageValidationException(String.format("recipient topic %s is not a valid topic name.", recipient.getToken()));
+            }
+
             if (recipient.getPlatformFailure() != null) {
                 throw new MessageValidationException("message must not have a PlatformFailure.");
             }
         }
+    }
+
+    /**
+     * Verifies the attributes of a message other than its recipients, and throws an exception on
+     * fatal errors with the message.
+     *
+     * @param message The message to validate.
+     * @throws MessageValidationException fired when there are irrecoverable problems with the message.
+     */
+    public static void verifyMessageHeader(Message message) throws MessageValidationException {
+        if (message == null) {
+            throw new MessageValidationException("message is null.");
+        }
+
+        if (message.getId() != null) {
+            throw new MessageValidationException("message.id should not be set. A message and all children behave atomically.");
+        }
+
+        if (message.getCredentials() == null) {
+            throw new MessageValidationException("message is missing a credentials model.");
+        }
+
+        if (message.getCredentials().getPlatformType() == null) {
+            throw new MessageValidationException("credentials is missing a PlatformType.");
+        }
 
         if (StringUtil.isNullOrEmpty(message.getCredentials().getAuthKey()) && StringUtil.isNullOrEmpty(message.getCredentials().getCertBody())) {
             throw new MessageValidationException("A Message's Credentials has no AuthorisationKey or CertificateBody.");
         }
+
+        if (message.getIdempotencyKey() != null && (message.getIdempotencyKey().isEmpty() ||
+                message.getIdempotencyKey().length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+            throw new MessageValidationException(String.format("message idempotency key must be 1 to %d characters.",
+                    MAX_IDEMPOTENCY_KEY_LENGTH));
+        }
+    }
+
+    /**
+     * Returns true if a device token is well formed enough to be sent to.
+     *
+     * @param token device token.
+     * @return true if the token is valid.
+     */
+    public static boolean isTokenValid(String token) {
+        return !StringUtil.isNullOrEmpty(token) && token.length() <= MAX_TOKEN_LENGTH && token.trim().length() == token.length();
     }
 
     /**
@@ -111,43 +146,312 @@ public class MessageHelper {
     }
 
     /**
-     * Marks a recipient as cooling-off. The next cooling-off time will be set on a factor *2 compared
-     * to the previous cooling off minutes wait.
+     * Move a recipient into a new state, keeping the denormalised recipient progress
+     * counters of the message in step with the transition.
+     *
+     * @param message   the message the recipient belongs to.
+     * @param recipient recipient to update.
+     * @param state     new recipient state.
+     */
+    public static void setRecipientState(@Nonnull Message message, @Nonnull Recipient recipient, @Nonnull RecipientState state) {
+        synchronized (message) {
+            RecipientState previousState = recipient.getState() != null
+                    ? recipient.getState()
+                    : RecipientState.STATE_IDLE;
+
+            if (previousState != state) {
+                adjustRecipientCount(message, previousState, -1);
+                adjustRecipientCount(message, state, 1);
+            }
+            recipient.setState(state);
+        }
+    }
+
+    /**
+     * Returns true if an in-flight recipient is in a non-complete send state.
+     *
+     * @param recipients in-flight recipients of a message.
+     * @param row        recipient row to check.
+     * @return true if the recipient is ready to be included in a platform message.
+     */
+    public static boolean isRecipientPending(@Nonnull RecipientTable recipients, int row) {
+        RecipientState state = recipients.getState(row);
+        return state == RecipientState.STATE_WAITING_RETRY ||
+                state == RecipientState.STATE_PROCESSING ||
+                state == RecipientState.STATE_IDLE;
+    }
+
+    /**
+     * Returns true if an in-flight recipient is within the cool-down backoff period.
+     *
+     * @param recipients  in-flight recipients of a message.
+     * @param row         recipient row to check.
+     * @param currentTime current time in epoch millis.
+     * @return true if the recipient is still within the backoff period.
+     */
+    public static boolean isRecipientCoolingOff(@Nonnull RecipientTable recipients, int row, long currentTime) {
+        return recipients.getState(row) == RecipientState.STATE_WAITING_RETRY &&
+                recipients.getNextAttempt(row) >= currentTime;
+    }
+
+    /**
+     * Marks an in-flight recipient as cooling-off, for a delay picked by a
+     * {@link interfaces.pushservices.RetryPolicy}. The recipient is failed once the message maximum
+     * retries are used up, or if the policy does not retry it.
      *
-     * @param recipient recipient to mark as cooling off..
+     * @param message          the message the recipient belongs to.
+     * @param recipients       in-flight recipients of the message.
+     * @param row              recipient row to mark as cooling off.
+     * @param retryDelayMillis delay before the next attempt, or {@link interfaces.pushservices.RetryPolicy#NO_RETRY}.
      */
-    public static void setRecipientRetry(PlatformType platformType, @Nonnull Recipient recipient, int retryLimit) {
-        if (recipient.getSendAttemptCount() >= retryLimit) {
-            recipient.setState(RecipientState.STATE_FAILED);
-            recipient.setNextAttempt(null);
+    public static void setRecipientRetry(@Nonnull Message message, @Nonnull RecipientTable recipients, int row, long retryDelayMillis) {
+        if (recipients.getSendAttemptCount(row) >= message.getMaximumRetries() || retryDelayMillis < 0) {
+            setRecipientState(message, recipients, row, RecipientState.STATE_FAILED);
+            recipients.setNextAttempt(row, 0L);
 
-        } else if (!recipient.getState().equals(RecipientState.STATE_WAITING_RETRY)) {
-            int newRetryCount = recipient.getSendAttemptCount() + 1;
-            Calendar nextSendDate = Calendar.getInstance();
-            nextSendDate.add(Calendar.MINUTE, 2 * newRetryCount);
+        } else if (recipients.getState(row) != RecipientState.STATE_WAITING_RETRY) {
+            int newRetryCount = recipients.getSendAttemptCount(row) + 1;
+            long nextAttempt = System.currentTimeMillis() + retryDelayMillis;
 
-            recipient.setSendAttemptCount(newRetryCount);
-            recipient.setState(RecipientState.STATE_WAITING_RETRY);
-            recipient.setNextAttempt(nextSendDate.getTime());
+            // The retry would only be sent after the message has expired.
+            if (nextAttempt >= getExpiryTime(message)) {
+                setRecipientState(message, recipients, row, RecipientState.STATE_EXPIRED);
+                recipients.setNextAttempt(row, 0L);
+                return;
+            }
+
+            recipients.setSendAttemptCount(row, newRetryCount);
+            setRecipientState(message, recipients, row, RecipientState.STATE_WAITING_RETRY);
+            recipients.setNextAttempt(row, nextAttempt);
         }
     }
 
     /**
-     * Check to see if the message has completed (every recipient has failed or succeeded).
+     * Hold an in-flight recipient back until a later attempt, without using up a send attempt. The
+     * recipient is expired if the message would have expired by then.
+     *
+     * @param message     the message the recipient belongs to.
+     * @param recipients  in-flight recipients of the message.
+     * @param row         recipient row to hold back.
+     * @param nextAttempt the time to try the recipient again, in epoch millis.
      */
-    public static boolean hasMessageCompleted(@Nonnull Message message) {
-        if (message.getRecipients() != null) {
-            for (Recipient recipient : message.getRecipients()) {
-                if (recipient.getState() != null &&
-                        (recipient.getState().equals(RecipientState.STATE_PROCESSING) ||
-                        recipient.getState().equals(RecipientState.STATE_WAITING_RETRY) ||
-                        recipient.getState().equals(RecipientState.STATE_IDLE))) {
-                    return false;
+    public static void holdRecipient(@Nonnull Message message, @Nonnull RecipientTable recipients, int row, long nextAttempt) {
+        if (nextAttempt >= getExpiryTime(message)) {
+            setRecipientState(message, recipients, row, RecipientState.STATE_EXPIRED);
+            recipients.setNextAttempt(row, 0L);
+            return;
+        }
+
+        setRecipientState(message, recipients, row, RecipientState.STATE_WAITING_RETRY);
+        recipients.setNextAttempt(row, nextAttempt);
+    }
+
+    /**
+     * Move an in-flight recipient into a new state, keeping the denormalised recipient progress
+     * counters of the message in step with the transition.
+     *
+     * @param message    the message the recipient belongs to.
+     * @param recipients in-flight recipients of the message.
+     * @param row        recipient row to update.
+     * @param state      new recipient state.
+     */
+    public static void setRecipientState(@Nonnull Message message, @Nonnull RecipientTable recipients, int row,
+                                         @Nonnull RecipientState state) {
+        synchronized (message) {
+            RecipientState previousState = recipients.getState(row);
+            if (previousState != state) {
+                adjustRecipientCount(message, previousState, -1);
+                adjustRecipientCount(message, state, 1);
+                recipients.setState(row, state);
+            }
+        }
+    }
+
+    /**
+     * Recount the recipient progress counters of a message. This walks every recipient so
+     * should only be used when a message is first accepted.
+     *
+     * @param message the message to count recipients for.
+     */
+    public static void countRecipientStates(@Nonnull Message message) {
+        synchronized (message) {
+            message.setPendingCount(0);
+            message.setCompleteCount(0);
+            message.setFailedCount(0);
+            message.setRetryingCount(0);
+            message.setCancelledCount(0);
+            message.setExpiredCount(0);
+
+            if (message.getRecipients() != null) {
+                for (Recipient recipient : message.getRecipients()) {
+                    adjustRecipientCount(message, recipient.getState() != null
+                            ? recipient.getState()
+                            : RecipientState.STATE_IDLE, 1);
                 }
             }
         }
+    }
+
+    /**
+     * Recount the recipient progress counters of a message from its in-flight recipients, and the
+     * audience members that had already been sent to when they were loaded.
+     *
+     * @param message    the message to count recipients for.
+     * @param recipients in-flight recipients of the message.
+     */
+    public static void countRecipientStates(@Nonnull Message message, @Nonnull RecipientTable recipients) {
+        synchronized (message) {
+            message.setPendingCount(0);
+            message.setCompleteCount(0);
+            message.setFailedCount(0);
+            message.setRetryingCount(0);
+            message.setCancelledCount(0);
+            message.setExpiredCount(0);
+
+            for (int row = 0; row < recipients.size(); row++) {
+                adjustRecipientCount(message, recipients.getState(row), 1);
+            }
+
+            // Audience members that had already been sent to are not held as rows.
+            message.setCompleteCount(message.getCompleteCount() + recipients.getSentMemberCount());
+        }
+    }
+
+    /**
+     * Add or remove a single recipient from the message counter for a given state.
+     */
+    private static void adjustRecipientCount(@Nonnull Message message, @Nonnull RecipientState state, int delta) {
+        switch (state) {
+            case STATE_IDLE:
+            case STATE_PROCESSING:
+                message.setPendingCount(Math.max(0, message.getPendingCount() + delta));
+                break;
+
+            case STATE_WAITING_RETRY:
+                message.setRetryingCount(Math.max(0, message.getRetryingCount() + delta));
+                break;
+
+            case STATE_COMPLETE:
+                message.setCompleteCount(Math.max(0, message.getCompleteCount() + delta));
+                break;
+
+            case STATE_FAILED:
+                message.setFailedCount(Math.max(0, message.getFailedCount() + delta));
+                break;
+
+            case STATE_CANCELLED:
+                message.setCancelledCount(Math.max(0, message.getCancelledCount() + delta));
+                break;
+
+            case STATE_EXPIRED:
+                message.setExpiredCount(Math.max(0, message.getExpiredCount() + delta));
+                break;
+        }
+    }
+
+    /**
+     * Cancel the in-flight recipients of a message that are idle or waiting to retry, and recount the
+     * message. Recipients that are being sent are left to finish.
+     *
+     * @param message    the message to cancel.
+     * @param recipients in-flight recipients of the message.
+     * @return the cancelled rows, which are not marked as changed.
+     */
+    @Nonnull
+    public static BitSet cancelPendingRecipients(@Nonnull Message message, @Nonnull RecipientTable recipients) {
+        synchronized (message) {
+            message.setCancelled(true);
+            message.setAudienceSent(true);
+
+            BitSet cancelledRows = recipients.cancelPendingRows();
+            countRecipientStates(message, recipients);
+            return cancelledRows;
+        }
+    }
+
+    /**
+     * Expire the in-flight recipients of a message that have not been sent to, and recount the message.
+     * The message must not be in flight.
+     *
+     * @param message    the expired message.
+     * @param recipients in-flight recipients of the message.
+     * @return the expired rows, which are not marked as changed.
+     */
+    @Nonnull
+    public static BitSet expirePendingRecipients(@Nonnull Message message, @Nonnull RecipientTable recipients) {
+        synchronized (message) {
+            message.setAudienceSent(true);
+
+            BitSet expiredRows = recipients.expirePendingRows();
+            countRecipientStates(message, recipients);
+            return expiredRows;
+        }
+    }
+
+    /**
+     * Expire every recipient of a message that has not been sent to, without loading its recipients.
+     * Audience members that were never stored are expired along with the stored recipients.
+     *
+     * @param message the expired message.
+     */
+    public static void expirePendingCount(@Nonnull Message message) {
+        synchronized (message) {
+            message.setAudienceSent(true);
+            message.setExpiredCount(message.getExpiredCount() + message.getPendingCount() + message.getRetryingCount());
+            message.setPendingCount(0);
+            message.setRetryingCount(0);
+        }
+    }
+
+    /**
+     * Get the time a message expires at, after which the platform would discard it. The time to live
+     * runs from the send time of a deferred message, or otherwise from when it was saved.
+     *
+     * @param message the message.
+     * @return the expiry time in epoch millis, or {@link Long#MAX_VALUE} if the message has not been saved.
+     */
+    public static long getExpiryTime(@Nonnull Message message) {
+        Date startTime = message.getSendAt() != null ? message.getSendAt() : message.getAddedTime();
+        if (startTime == null) {
+            return Long.MAX_VALUE;
+        }
+        return startTime.getTime() + TimeUnit.SECONDS.toMillis(message.getTtlSeconds());
+    }
+
+    /**
+     * Returns true if the message time to live has passed, so it can no longer be delivered.
+     *
+     * @param message     The message to check.
+     * @param currentTime The current time in epoch millis.
+     * @return true if the message has expired.
+     */
+    public static boolean hasMessageExpired(@Nonnull Message message, long currentTime) {
+        return currentTime >= getExpiryTime(message);
+    }
+
+    /**
+     * Get the time to live left for a message, to send to the platform so that a retried or deferred
+     * message is not held by the platform beyond its original expiry.
+     *
+     * @param message     the message.
+     * @param currentTime The current time in epoch millis.
+     * @return the remaining time to live in seconds.
+     */
+    public static int getRemainingTtlSeconds(@Nonnull Message message, long currentTime) {
+        long expiryTime = getExpiryTime(message);
+        if (expiryTime == Long.MAX_VALUE) {
+            return message.getTtlSeconds();
+        }
 
-        return true;
+        long remainingSeconds = TimeUnit.MILLISECONDS.toSeconds(Math.max(0, expiryTime - currentTime));
+        return (int) Math.min(message.getTtlSeconds(), remainingSeconds);
+    }
+
+    /**
+     * Check to see if the message has completed (every recipient has failed or succeeded).
+     */
+    public static boolean hasMessageCompleted(@Nonnull Message message) {
+        return message.getPendingCount() == 0 && message.getRetryingCount() == 0;
     }
 
     /**
@@ -160,7 +464,7 @@ public class MessageHelper {
 
             if (message.getRecipients() != null) {
                 for (Recipient recipient : message.getRecipients()) {
-                    recipient.setState(RecipientState.STATE_FAILED);
+                    setRecipientState(message, recipient, RecipientState.STATE_FAILED);
                     if (recipient.getPlatformFailure() == null && failure != null) {
                         recipient.setFailure(failure);
                     }
@@ -171,26 +475,24 @@ public class MessageHelper {
 
 
     /**
-     * Returns true if any Message Recipients have states that have not failed or coompleted).
+     * Returns true if any Message Recipients have states that have not failed or completed.
      *
      * @param message The message to check if ready to dispatch.
-     * @return true if the message can be processed. false if it is invalid or has Completed..
+     * @return true if the message can be processed. false if it has Completed..
      */
-    public static boolean isMessageReady(@Nonnull Message message) throws MessageValidationException {
-        int readyRecipients = 0;
-        if (message.getRecipients() != null && !message.getRecipients().isEmpty()) {
-            for (Recipient recipient : message.getRecipients()) {
-
-                if (recipient.getToken() == null || recipient.getToken().isEmpty()) {
-                    throw new MessageValidationException(String.format("No Recipient token for %d.", recipient.getId()));
-                }
+    public static boolean isMessageReady(@Nonnull Message message) {
+        return !hasMessageCompleted(message);
+    }
 
-                if (isRecipientPending(recipient) && recipient.getSendAttemptCount() <= message.getMaximumRetries()) {
-                    readyRecipients += 1;
-                }
-            }
-        }
-        return readyRecipients > 0;
+    /**
+     * Returns true if the message is not deferred, or its send time has passed.
+     *
+     * @param message     The message to check.
+     * @param currentTime The current time in epoch millis.
+     * @return true if the message can be sent now.
+     */
+    public static boolean isMessageDue(@Nonnull Message message, long currentTime) {
+        return message.getSendAt() == null || message.getSendAt().getTime() <= currentTime;
     }
 
 }
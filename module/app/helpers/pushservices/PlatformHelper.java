@@ -51,6 +51,7 @@ public class PlatformHelper {
                 failureType = FailureType.MESSAGE_TTL_INVALID;
                 break;
             case "DeviceMessageRate":
+            case "TopicsMessageRateExceeded":
                 failureType = FailureType.PLATFORM_LIMIT_EXCEEDED;
                 break;
             case "Unavailable":
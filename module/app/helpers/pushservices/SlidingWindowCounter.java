@@ -0,0 +1,74 @@
+package helpers.pushservices;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events over a recent sliding time window, such as recipients dispatched in the last minute.
+ * The window is split into time buckets, and a bucket is cleared when it is reused, so the count
+ * follows the window as it moves on.
+ * <p>
+ * Adding is lock-free and allocation-free. A few events added while a bucket is being cleared for reuse
+ * may be dropped, so the count is approximate.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class SlidingWindowCounter {
+    private final long mBucketMillis;
+    private final AtomicLongArray mCounts;
+    private final AtomicLongArray mBucketEpochs;
+
+    /**
+     * @param windowMillis the length of the window.
+     * @param bucketCount  the number of time buckets the window is split into.
+     */
+    public SlidingWindowCounter(long windowMillis, int bucketCount) {
+        int buckets = Math.max(1, bucketCount);
+        mBucketMillis = Math.max(1, windowMillis / buckets);
+        mCounts = new AtomicLongArray(buckets);
+        mBucketEpochs = new AtomicLongArray(buckets);
+        for (int i = 0; i < buckets; i++) {
+            mBucketEpochs.set(i, -1L);
+        }
+    }
+
+    /**
+     * @return the length of the window in millis.
+     */
+    public long getWindowMillis() {
+        return mBucketMillis * mCounts.length();
+    }
+
+    /**
+     * Add to the count.
+     *
+     * @param count       the amount to add.
+     * @param currentTime the current time in epoch millis.
+     */
+    public void add(long count, long currentTime) {
+        long currentEpoch = currentTime / mBucketMillis;
+        int bucket = (int) (currentEpoch % mCounts.length());
+
+        long bucketEpoch = mBucketEpochs.get(bucket);
+        if (bucketEpoch != currentEpoch && mBucketEpochs.compareAndSet(bucket, bucketEpoch, currentEpoch)) {
+            mCounts.set(bucket, 0);
+        }
+        mCounts.addAndGet(bucket, count);
+    }
+
+    /**
+     * @param currentTime the current time in epoch millis.
+     * @return the count over the window ending at the current time.
+     */
+    public long getCount(long currentTime) {
+        long currentEpoch = currentTime / mBucketMillis;
+        long count = 0;
+        for (int bucket = 0; bucket < mCounts.length(); bucket++) {
+            if (currentEpoch - mBucketEpochs.get(bucket) < mCounts.length()) {
+                count += mCounts.get(bucket);
+            }
+        }
+        return count;
+    }
+}
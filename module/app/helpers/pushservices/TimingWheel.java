@@ -0,0 +1,180 @@
+package helpers.pushservices;
+
+import play.Logger;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel that releases items once their deadline has passed. Items are hashed into a
+ * ring of buckets by deadline, so scheduling and cancelling are constant time and a single thread
+ * advances the wheel one bucket per tick, however many items are waiting. Deadlines further away than
+ * one turn of the wheel wait for the remaining turns in their bucket.
+ * <p>
+ * Items are released on the wheel thread, no earlier than their deadline and up to one tick after it.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class TimingWheel<T> {
+    private final long mTickMillis;
+    private final ArrayDeque<Timeout<T>>[] mBuckets;
+    private final int mMask;
+    private final Queue<Timeout<T>> mNewTimeouts = new ConcurrentLinkedQueue<>();
+    private final Consumer<T> mReleaseCallback;
+    private Thread mWheelThread;
+    private long mStartTime;
+    private long mTick;
+
+    /**
+     * A scheduled item, which can be cancelled until it is released.
+     */
+    public static class Timeout<T> {
+        private final T mItem;
+        private final long mDeadline;
+        private long mRemainingRounds;
+        private volatile boolean mCancelled;
+
+        private Timeout(@Nonnull T item, long deadline) {
+            mItem = item;
+            mDeadline = deadline;
+        }
+
+        @Nonnull
+        public T getItem() {
+            return mItem;
+        }
+
+        /**
+         * @return the deadline in epoch millis.
+         */
+        public long getDeadline() {
+            return mDeadline;
+        }
+
+        public void cancel() {
+            mCancelled = true;
+        }
+    }
+
+    /**
+     * @param tickMillis      the time each bucket covers.
+     * @param wheelSize       the number of buckets, rounded up to a power of two.
+     * @param releaseCallback invoked on the wheel thread with each item whose deadline has passed.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, int wheelSize, @Nonnull Consumer<T> releaseCallback) {
+        int bucketCount = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        mTickMillis = Math.max(1, tickMillis);
+        mBuckets = new ArrayDeque[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            mBuckets[i] = new ArrayDeque<>();
+        }
+        mMask = bucketCount - 1;
+        mReleaseCallback = releaseCallback;
+    }
+
+    /**
+     * Start the wheel thread, if it is not already running.
+     */
+    public synchronized void start() {
+        if (mWheelThread != null && mWheelThread.isAlive()) {
+            return;
+        }
+
+        mStartTime = System.currentTimeMillis();
+        mTick = 0;
+        mWheelThread = new Thread(this::run, "pushservices-timing-wheel");
+        mWheelThread.setDaemon(true);
+        mWheelThread.start();
+    }
+
+    /**
+     * Stop the wheel thread. Items that have not been released are dropped.
+     */
+    public synchronized void stop() {
+        if (mWheelThread != null) {
+            mWheelThread.interrupt();
+            mWheelThread = null;
+        }
+    }
+
+    /**
+     * Schedule an item to be released at a deadline. An item with a deadline that has passed is
+     * released on the next tick.
+     *
+     * @param item     the item to release.
+     * @param deadline the deadline in epoch millis.
+     * @return the timeout, for cancelling the item.
+     */
+    @Nonnull
+    public Timeout<T> schedule(@Nonnull T item, long deadline) {
+        Timeout<T> timeout = new Timeout<>(item, deadline);
+        mNewTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long tickDeadline = mStartTime + (mTick + 1) * mTickMillis;
+            long sleepMillis = tickDeadline - System.currentTimeMillis();
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            transferNewTimeouts();
+            expireBucket(mBuckets[(int) (mTick & mMask)]);
+            mTick++;
+        }
+    }
+
+    private void transferNewTimeouts() {
+        Timeout<T> timeout;
+        while ((timeout = mNewTimeouts.poll()) != null) {
+            if (timeout.mCancelled) {
+                continue;
+            }
+
+            // The bucket for a tick is expired at the end of the tick, so that no item is released early.
+            long deadlineTick = Math.max(mTick, ceilDiv(timeout.mDeadline - mStartTime, mTickMillis) - 1);
+            timeout.mRemainingRounds = (deadlineTick - mTick) / mBuckets.length;
+            mBuckets[(int) (deadlineTick & mMask)].add(timeout);
+        }
+    }
+
+    private void expireBucket(@Nonnull ArrayDeque<Timeout<T>> bucket) {
+        Iterator<Timeout<T>> timeouts = bucket.iterator();
+        while (timeouts.hasNext()) {
+            Timeout<T> timeout = timeouts.next();
+            if (timeout.mCancelled) {
+                timeouts.remove();
+
+            } else if (timeout.mRemainingRounds <= 0) {
+                timeouts.remove();
+                try {
+                    mReleaseCallback.accept(timeout.mItem);
+
+                } catch (Exception e) {
+                    Logger.error(String.format("Error releasing a timing wheel item: %s.", e.getMessage()));
+                }
+
+            } else {
+                timeout.mRemainingRounds--;
+            }
+        }
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return dividend <= 0 ? 0 : (dividend + divisor - 1) / divisor;
+    }
+}
@@ -0,0 +1,89 @@
+package helpers.pushservices;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A compact set of device tokens for de-duplicating very large token streams. Only a 64-bit hash
+ * of each token is kept (in an open-addressed primitive array), so memory is roughly 16 bytes per
+ * token regardless of token length. Two distinct tokens sharing a 64-bit hash is astronomically
+ * unlikely, but would cause the second to be treated as a duplicate.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class TokenHashSet {
+    private static final HashFunction TOKEN_HASH_FUNCTION = Hashing.murmur3_128();
+    private static final long EMPTY_SLOT = 0L;
+
+    private long[] mSlots;
+    private int mSize;
+
+    public TokenHashSet() {
+        this(1024);
+    }
+
+    public TokenHashSet(int expectedSize) {
+        mSlots = new long[tableSizeFor(Math.max(16, expectedSize * 2))];
+    }
+
+    /**
+     * Add a token to the set.
+     *
+     * @param token device token.
+     * @return true if the token was not already in the set.
+     */
+    public boolean add(@Nonnull String token) {
+        if ((mSize + 1) * 2 > mSlots.length) {
+            resize(mSlots.length * 2);
+        }
+
+        if (insert(mSlots, hash(token))) {
+            mSize++;
+            return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    private static long hash(@Nonnull String token) {
+        long hash = TOKEN_HASH_FUNCTION.hashString(token, StandardCharsets.UTF_8).asLong();
+        return hash == EMPTY_SLOT ? 1L : hash;
+    }
+
+    private static boolean insert(@Nonnull long[] slots, long hash) {
+        int mask = slots.length - 1;
+        int index = (int) (hash ^ (hash >>> 32)) & mask;
+
+        while (slots[index] != EMPTY_SLOT) {
+            if (slots[index] == hash) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        slots[index] = hash;
+        return true;
+    }
+
+    private void resize(int newCapacity) {
+        long[] newSlots = new long[newCapacity];
+        for (long hash : mSlots) {
+            if (hash != EMPTY_SLOT) {
+                insert(newSlots, hash);
+            }
+        }
+        mSlots = newSlots;
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        return size > 0 ? size : 1 << 30;
+    }
+}
@@ -0,0 +1,193 @@
+package helpers.pushservices;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact, append-only table of interned device tokens. Token characters are kept as UTF-8 in a
+ * single shared byte pool and tokens are referenced by an int, so a token costs its encoded length
+ * plus a few bytes of offsets and index, rather than a String object and its backing array.
+ * <p>
+ * Identical tokens are interned to the same reference. Tokens are decoded back into Strings on
+ * demand, such as when a batch of recipients is serialised for the platform.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class TokenTable {
+    private static final int EMPTY_SLOT = 0;
+
+    // Typical encoded length of an FCM registration token.
+    private static final int EXPECTED_TOKEN_LENGTH = 160;
+
+    // Largest array length the VM reliably allocates.
+    public static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    // Arrays double in size until they reach the growth step, and then grow by the step.
+    private static final int MAX_POOL_GROWTH = 16 * 1024 * 1024;
+    private static final int MAX_OFFSET_GROWTH = 1024 * 1024;
+    private static final int MAX_INDEX_LENGTH = 1 << 30;
+
+    private byte[] mPool;
+    private int mPoolSize;
+
+    // Token n spans mOffsets[n] to mOffsets[n + 1] in the byte pool.
+    private int[] mOffsets;
+    private int mCount;
+
+    // Open-addressed index of token reference + 1.
+    private int[] mIndex;
+
+    public TokenTable() {
+        this(1024);
+    }
+
+    public TokenTable(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        mPool = new byte[(int) Math.min((long) capacity * EXPECTED_TOKEN_LENGTH, MAX_POOL_GROWTH)];
+        mOffsets = new int[Math.min(capacity, MAX_ARRAY_LENGTH - 1) + 1];
+        mIndex = new int[tableSizeFor((int) Math.min((long) capacity * 2, MAX_INDEX_LENGTH))];
+    }
+
+    /**
+     * Add a token to the table, or find the existing reference to the same token.
+     *
+     * @param token device token.
+     * @return the token reference.
+     */
+    public int intern(@Nonnull String token) {
+        byte[] tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(tokenBytes, 0, tokenBytes.length);
+
+        int slot = findSlot(mIndex, tokenBytes, hash);
+        if (mIndex[slot] != EMPTY_SLOT) {
+            return mIndex[slot] - 1;
+        }
+
+        ensureCapacity(tokenBytes.length);
+        System.arraycopy(tokenBytes, 0, mPool, mPoolSize, tokenBytes.length);
+        mPoolSize += tokenBytes.length;
+
+        int reference = mCount++;
+        mOffsets[mCount] = mPoolSize;
+        mIndex[slot] = reference + 1;
+
+        if ((long) mCount * 2 > mIndex.length && mIndex.length < MAX_INDEX_LENGTH) {
+            rehash(mIndex.length * 2);
+        }
+        return reference;
+    }
+
+    /**
+     * Find the reference of a token in the table.
+     *
+     * @param token device token.
+     * @return the token reference, or -1 if the token is not in the table.
+     */
+    public int indexOf(@Nonnull String token) {
+        byte[] tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+        int slot = findSlot(mIndex, tokenBytes, hash(tokenBytes, 0, tokenBytes.length));
+        return mIndex[slot] - 1;
+    }
+
+    /**
+     * Decode a token from the table.
+     *
+     * @param reference the token reference.
+     * @return the device token.
+     */
+    @Nonnull
+    public String get(int reference) {
+        int offset = mOffsets[reference];
+        return new String(mPool, offset, mOffsets[reference + 1] - offset, StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    private int findSlot(@Nonnull int[] index, @Nonnull byte[] tokenBytes, int hash) {
+        int mask = index.length - 1;
+        int slot = hash & mask;
+
+        while (index[slot] != EMPTY_SLOT && !tokenEquals(index[slot] - 1, tokenBytes)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean tokenEquals(int reference, @Nonnull byte[] tokenBytes) {
+        int offset = mOffsets[reference];
+        int length = mOffsets[reference + 1] - offset;
+        if (length != tokenBytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (mPool[offset + i] != tokenBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the length to grow an array to. Arrays double in size up to the maximum growth step, and then grow by
+     * that step, so that large tables do not allocate far more than they need.
+     *
+     * @param length      the current array length.
+     * @param minLength   the length that is needed.
+     * @param maxGrowth   the largest number of elements to grow by at once.
+     * @return the new array length.
+     * @throws IllegalStateException if the needed length is larger than an array can be.
+     */
+    public static int nextCapacity(int length, long minLength, int maxGrowth) {
+        if (minLength > MAX_ARRAY_LENGTH) {
+            throw new IllegalStateException(String.format("Cannot grow an array to %d elements.", minLength));
+        }
+
+        long grownLength = (long) length + Math.max(1, Math.min(length, maxGrowth));
+        return (int) Math.min(Math.max(grownLength, minLength), MAX_ARRAY_LENGTH);
+    }
+
+    private void ensureCapacity(int tokenLength) {
+        long poolSize = (long) mPoolSize + tokenLength;
+        if (poolSize > mPool.length) {
+            mPool = Arrays.copyOf(mPool, nextCapacity(mPool.length, poolSize, MAX_POOL_GROWTH));
+        }
+
+        if (mCount + 2L > mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, nextCapacity(mOffsets.length, mCount + 2L, MAX_OFFSET_GROWTH));
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        int[] newIndex = new int[newCapacity];
+        int mask = newCapacity - 1;
+
+        for (int reference = 0; reference < mCount; reference++) {
+            int offset = mOffsets[reference];
+            int slot = hash(mPool, offset, mOffsets[reference + 1] - offset) & mask;
+            while (newIndex[slot] != EMPTY_SLOT) {
+                slot = (slot + 1) & mask;
+            }
+            newIndex[slot] = reference + 1;
+        }
+        mIndex = newIndex;
+    }
+
+    private static int hash(@Nonnull byte[] bytes, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        return size > 0 ? size : 1 << 30;
+    }
+}
@@ -3,9 +3,15 @@ package injection.pushservices.modules;
 import annotations.pushservices.PushServicesEbeanServer;
 import com.google.inject.AbstractModule;
 import com.google.inject.Singleton;
+import injection.pushservices.providers.MessageStoreProvider;
 import injection.pushservices.providers.PushServicesEbeanServerProvider;
+import interfaces.pushservices.MessageStore;
+import interfaces.pushservices.MetricsExporter;
+import interfaces.pushservices.RetryPolicy;
 import io.ebean.EbeanServer;
 import main.pushservices.PushLifecycleListener;
+import services.pushservices.ExponentialRetryPolicy;
+import services.pushservices.LoggingMetricsExporter;
 
 /**
  * GNU General Public License v3.0.
@@ -20,6 +26,16 @@ public class PushServicesModule extends AbstractModule {
                 .toProvider(PushServicesEbeanServerProvider.class)
                 .in(Singleton.class);
 
+        bind(MessageStore.class)
+                .toProvider(MessageStoreProvider.class)
+                .in(Singleton.class);
+
+        bind(RetryPolicy.class)
+                .to(ExponentialRetryPolicy.class);
+
+        bind(MetricsExporter.class)
+                .to(LoggingMetricsExporter.class);
+
         bind(PushLifecycleListener.class)
                 .asEagerSingleton();
     }
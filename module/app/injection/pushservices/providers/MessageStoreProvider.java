@@ -0,0 +1,53 @@
+package injection.pushservices.providers;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import dao.pushservices.JournalMessageStore;
+import dao.pushservices.MessagesDao;
+import helpers.pushservices.ConfigHelper;
+import interfaces.pushservices.MessageStore;
+import main.pushservices.Constants;
+import play.Logger;
+
+/**
+ * Provides the durable {@link MessageStore} selected by <code>pushservices.store.type</code>:
+ * <code>database</code> (the default) or <code>journal</code>.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class MessageStoreProvider implements Provider<MessageStore> {
+    private static final String CONFIG_TYPE = Constants.CONFIG_STORE + ".type";
+    private static final String STORE_DATABASE = "database";
+    private static final String STORE_JOURNAL = "journal";
+
+    private final Config mConfiguration;
+    private final Provider<MessagesDao> mMessagesDao;
+    private final Provider<JournalMessageStore> mJournalMessageStore;
+
+    @Inject
+    public MessageStoreProvider(Config configuration, Provider<MessagesDao> messagesDao,
+                                Provider<JournalMessageStore> journalMessageStore) {
+        mConfiguration = configuration;
+        mMessagesDao = messagesDao;
+        mJournalMessageStore = journalMessageStore;
+    }
+
+    @Override
+    public MessageStore get() {
+        String storeType = ConfigHelper.getString(mConfiguration, CONFIG_TYPE, STORE_DATABASE);
+        if (STORE_JOURNAL.equalsIgnoreCase(storeType)) {
+            Logger.info("Using the journal message store.");
+            return mJournalMessageStore.get();
+        }
+
+        if (!STORE_DATABASE.equalsIgnoreCase(storeType)) {
+            Logger.warn(String.format("Unknown message store type %s. Using the database message store.", storeType));
+        }
+        return mMessagesDao.get();
+    }
+}
@@ -49,6 +49,11 @@ public class PushServicesEbeanServerProvider implements Provider<EbeanServer> {
                 continue;
             }
 
+            // Skip the module's own settings.
+            if (keyParts.length > 2 && Constants.CONFIG_MODULE_SECTIONS.contains(keyParts[1])) {
+                continue;
+            }
+
             String key = keyParts[keyParts.length-1];
             String value = configEntry.getValue().render();
             if (configEntry.getValue().valueType().equals(ConfigValueType.STRING)) {
@@ -63,6 +68,10 @@ public class PushServicesEbeanServerProvider implements Provider<EbeanServer> {
         models.add(PayloadElement.class);
         models.add(Recipient.class);
         models.add(PlatformFailure.class);
+        models.add(SuppressedToken.class);
+        models.add(CanonicalToken.class);
+        models.add(Audience.class);
+        models.add(AudienceMember.class);
 
         ServerConfig serverConfig = new ServerConfig();
         serverConfig.loadFromProperties(properties);
@@ -0,0 +1,93 @@
+package interfaces.pushservices;
+
+import models.pushservices.app.RecipientTable;
+import models.pushservices.db.Message;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The persistence contract the TaskQueue dispatches messages through. The default store is the
+ * database backed {@link dao.pushservices.MessagesDao}. Non-durable messages are held by the
+ * {@link dao.pushservices.InMemoryMessageStore} and never touch the database.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public interface MessageStore {
+
+    /**
+     * Saves a new message and its recipients.
+     *
+     * @param message the message to save.
+     * @return true if the message was saved.
+     */
+    boolean saveMessage(@Nonnull Message message);
+
+    /**
+     * Saves a new message without recipients, and a stream of recipient device tokens.
+     *
+     * @param message   the new message, without recipients.
+     * @param tokens    the device tokens of the message recipients.
+     * @param chunkSize number of recipients to save at a time, where the store supports it.
+     * @return the number of recipients saved, or -1 on an error.
+     */
+    int saveStreamedMessage(@Nonnull Message message, @Nonnull Iterator<String> tokens, int chunkSize);
+
+    /**
+     * Load the in-flight recipients of a saved message.
+     *
+     * @param message the saved message.
+     * @return the recipient table, or null on an error.
+     */
+    @Nullable
+    RecipientTable fetchRecipientTable(@Nonnull Message message);
+
+    /**
+     * Save the in-flight recipient changes and recipient progress counters of a message.
+     *
+     * @param message the message, with a {@link RecipientTable}.
+     * @return true if the changes were saved.
+     */
+    boolean saveRecipientStates(@Nonnull Message message);
+
+    /**
+     * Cancel every recipient of a message that has not been sent to. If the message is being
+     * dispatched, its in-flight recipients have already been cancelled with
+     * {@link helpers.pushservices.MessageHelper#cancelPendingRecipients}, and recipients being sent are
+     * left to finish.
+     *
+     * @param messageId     the message id.
+     * @param activeMessage the message, if it is queued in this process.
+     * @return true if the message was cancelled.
+     */
+    boolean cancelMessage(long messageId, @Nullable Message activeMessage);
+
+    /**
+     * Expire every recipient of a message that has not been sent to, once its time to live has passed.
+     * The message is not in flight, and its counters have already been updated with
+     * {@link helpers.pushservices.MessageHelper#expirePendingRecipients} or
+     * {@link helpers.pushservices.MessageHelper#expirePendingCount}.
+     *
+     * @param message the expired message.
+     * @return true if the message was expired.
+     */
+    boolean expireMessage(@Nonnull Message message);
+
+    /**
+     * Flush and close the store when the TaskQueue shuts down.
+     */
+    default void close() {
+    }
+
+    /**
+     * Get the saved messages which have recipients that are pending or waiting to retry.
+     *
+     * @return pending messages, without their recipients.
+     */
+    @Nonnull
+    List<Message> fetchPendingMessages();
+}
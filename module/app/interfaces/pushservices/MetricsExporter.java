@@ -0,0 +1,24 @@
+package interfaces.pushservices;
+
+import models.pushservices.app.MetricsSnapshot;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Publishes the TaskQueue dispatch metrics to a monitoring system. Exporters are invoked periodically
+ * with a fresh snapshot, off the dispatch path. Bind a different implementation in a Guice module to
+ * replace the default {@link services.pushservices.LoggingMetricsExporter}.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public interface MetricsExporter {
+
+    /**
+     * Publish a metrics snapshot.
+     *
+     * @param snapshot the current metrics.
+     */
+    void export(@Nonnull MetricsSnapshot snapshot);
+}
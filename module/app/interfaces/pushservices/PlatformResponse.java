@@ -32,15 +32,37 @@ public interface PlatformResponse {
 
     /**
      * A raw, unsorted callback for results returned for a message send from the push-services.
+     * Recipient states are updated in the message {@link models.pushservices.app.RecipientTable}.
+     * Only the failed and updated recipients are returned as entities.
      *
      * @param message             The original message sent to the push-services
-     * @param completedRecipients The list of completed Recipients
-     * @param failedRecipients    The map of failed Recipients with the Failure.
-     * @param recipientsToRetry   The list of recipients to exponentially retry.
+     * @param completedCount      The number of completed Recipients
+     * @param failedRecipients    The list of failed Recipients with the Failure.
+     * @param recipientsToUpdate  The list of Recipients with a new canonical token.
+     * @param retryCount          The number of recipients to exponentially retry.
      **/
     void messageSuccess(@Nonnull Message message,
-                        @Nonnull List<Recipient> completedRecipients,
+                        int completedCount,
                         @Nonnull List<Recipient> failedRecipients,
                         @Nonnull List<UpdatedRecipient> recipientsToUpdate,
-                        @Nonnull List<Recipient> recipientsToRetry);
-}
\ No newline at end of file
+                        int retryCount);
+
+    /**
+     * A raw, unsorted callback for results returned for a message send from the push-services.
+     *
+     * @param message             The original message sent to the push-services
+     * @param completedRecipients The list of completed Recipients
+     * @param failedRecipients    The map of failed Recipients with the Failure.
+     * @param recipientsToRetry   The list of recipients to exponentially retry.
+     * @deprecated Recipient states are now held in the message {@link models.pushservices.app.RecipientTable}.
+     * Use {@link #messageSuccess(Message, int, List, List, int)} instead.
+     **/
+    @Deprecated
+    default void messageSuccess(@Nonnull Message message,
+                                @Nonnull List<Recipient> completedRecipients,
+                                @Nonnull List<Recipient> failedRecipients,
+                                @Nonnull List<UpdatedRecipient> recipientsToUpdate,
+                                @Nonnull List<Recipient> recipientsToRetry) {
+        messageSuccess(message, completedRecipients.size(), failedRecipients, recipientsToUpdate, recipientsToRetry.size());
+    }
+}
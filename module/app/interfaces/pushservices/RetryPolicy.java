@@ -0,0 +1,29 @@
+package interfaces.pushservices;
+
+import enums.pushservices.FailureType;
+import enums.pushservices.PlatformType;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Decides when a recipient with a recoverable failure is sent to again. Bind a different
+ * implementation in a Guice module to replace the default {@link services.pushservices.ExponentialRetryPolicy}.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public interface RetryPolicy {
+    // The recipient is failed instead of retried.
+    long NO_RETRY = -1L;
+
+    /**
+     * Get the delay before a recipient is retried.
+     *
+     * @param platformType the platform the recipient is sent with.
+     * @param failureType  the recoverable failure reported for the recipient.
+     * @param attempt      the retry attempt, starting at 1.
+     * @return the delay in millis, or {@link #NO_RETRY} if the recipient should not be retried.
+     */
+    long getRetryDelayMillis(@Nonnull PlatformType platformType, @Nonnull FailureType failureType, int attempt);
+}
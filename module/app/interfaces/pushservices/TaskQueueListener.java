@@ -50,4 +50,22 @@ public interface TaskQueueListener {
      * @param failure Failure details
      */
     void messageFailed(@Nonnull Message message, PlatformFailure failure);
+
+    /**
+     * The message was cancelled. Recipients that were being sent to when it was cancelled
+     * have finished.
+     *
+     * @param message Message which was cancelled.
+     */
+    default void messageCancelled(@Nonnull Message message) {
+    }
+
+    /**
+     * The message time to live passed before every recipient was sent to. The remaining
+     * recipients were expired without being sent.
+     *
+     * @param message Message which expired.
+     */
+    default void messageExpired(@Nonnull Message message) {
+    }
 }
\ No newline at end of file
@@ -1,5 +1,8 @@
 package main.pushservices;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * GNU General Public License v3.0.
  * (This means you can use it as you wish, host and share modifications.)
@@ -7,4 +10,23 @@ package main.pushservices;
  */
 public class Constants {
     public static final String CONFIG_PREFIX = "pushservices";
+
+    // Module settings. These sections are not passed through to the ebean server configuration.
+    public static final String CONFIG_RETENTION = CONFIG_PREFIX + ".retention";
+    public static final String CONFIG_TOKENS = CONFIG_PREFIX + ".tokens";
+    public static final String CONFIG_STORE = CONFIG_PREFIX + ".store";
+    public static final String CONFIG_NOTIFY = CONFIG_PREFIX + ".notify";
+    public static final String CONFIG_OUTBOX = CONFIG_PREFIX + ".outbox";
+    public static final String CONFIG_IDEMPOTENCY = CONFIG_PREFIX + ".idempotency";
+    public static final String CONFIG_SCHEDULE = CONFIG_PREFIX + ".schedule";
+    public static final String CONFIG_RETRY = CONFIG_PREFIX + ".retry";
+    public static final String CONFIG_DEVICE_RATE = CONFIG_PREFIX + ".deviceRate";
+    public static final String CONFIG_FAIRNESS = CONFIG_PREFIX + ".fairness";
+    public static final String CONFIG_SHUTDOWN = CONFIG_PREFIX + ".shutdown";
+    public static final String CONFIG_WARMUP = CONFIG_PREFIX + ".warmup";
+    public static final String CONFIG_METRICS = CONFIG_PREFIX + ".metrics";
+    public static final String CONFIG_ADMIN = CONFIG_PREFIX + ".admin";
+    public static final List<String> CONFIG_MODULE_SECTIONS = Arrays.asList(
+            "retention", "tokens", "store", "notify", "outbox", "idempotency", "schedule", "retry", "deviceRate",
+            "fairness", "shutdown", "warmup", "metrics", "admin");
 }
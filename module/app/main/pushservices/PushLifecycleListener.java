@@ -1,21 +1,43 @@
 package main.pushservices;
 
 import annotations.pushservices.PushServicesEbeanServer;
+import com.typesafe.config.Config;
+import helpers.pushservices.ConfigHelper;
 import io.ebean.EbeanServer;
 import play.inject.ApplicationLifecycle;
+import services.pushservices.DispatchMetrics;
+import services.pushservices.MessageOutboxRelay;
+import services.pushservices.MessageRetentionService;
+import services.pushservices.PlatformConnectionWarmer;
 import services.pushservices.TaskQueue;
 
 import javax.inject.Inject;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class PushLifecycleListener {
+    private static final String CONFIG_DRAIN_TIMEOUT_SECONDS = Constants.CONFIG_SHUTDOWN + ".drainTimeoutSeconds";
 
     @Inject
-    public PushLifecycleListener(@PushServicesEbeanServer EbeanServer ebeanServer, ApplicationLifecycle lifecycle, TaskQueue taskQueue) {
+    public PushLifecycleListener(@PushServicesEbeanServer EbeanServer ebeanServer, ApplicationLifecycle lifecycle, TaskQueue taskQueue,
+                                 MessageRetentionService retentionService, MessageOutboxRelay outboxRelay,
+                                 PlatformConnectionWarmer connectionWarmer, DispatchMetrics dispatchMetrics, Config configuration) {
+        long drainTimeoutMillis = TimeUnit.SECONDS.toMillis(ConfigHelper.getLong(configuration, CONFIG_DRAIN_TIMEOUT_SECONDS, 30));
+
+        // Pending messages are recovered in the background, so application startup is not held up.
+        connectionWarmer.startup();
+        dispatchMetrics.startup();
         taskQueue.startup();
+        retentionService.startup();
+        outboxRelay.startup();
         lifecycle.addStopHook(() -> CompletableFuture.runAsync(() -> {
+            connectionWarmer.shutdown();
+            // Drain the TaskQueue while its state can still be saved, and only then close the database.
+            outboxRelay.shutdown();
+            retentionService.shutdown();
+            taskQueue.shutdown(drainTimeoutMillis);
+            dispatchMetrics.shutdown();
             ebeanServer.shutdown(true, false);
-            taskQueue.shutdown();
         }));
     }
 }
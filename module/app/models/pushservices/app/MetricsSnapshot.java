@@ -0,0 +1,82 @@
+package models.pushservices.app;
+
+import helpers.pushservices.LatencyHistogram;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time copy of the TaskQueue dispatch metrics: gauges of current sizes, counters that only
+ * grow, and latency histograms.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class MetricsSnapshot {
+    private final Date mTime;
+    private final Map<String, Long> mGauges;
+    private final Map<String, Long> mCounters;
+    private final Map<String, LatencyHistogram.Snapshot> mHistograms;
+
+    public MetricsSnapshot(@Nonnull Date time, @Nonnull Map<String, Long> gauges, @Nonnull Map<String, Long> counters,
+                           @Nonnull Map<String, LatencyHistogram.Snapshot> histograms) {
+        mTime = time;
+        mGauges = Collections.unmodifiableMap(gauges);
+        mCounters = Collections.unmodifiableMap(counters);
+        mHistograms = Collections.unmodifiableMap(histograms);
+    }
+
+    @Nonnull
+    public Date getTime() {
+        return mTime;
+    }
+
+    @Nonnull
+    public Map<String, Long> getGauges() {
+        return mGauges;
+    }
+
+    @Nonnull
+    public Map<String, Long> getCounters() {
+        return mCounters;
+    }
+
+    @Nonnull
+    public Map<String, LatencyHistogram.Snapshot> getHistograms() {
+        return mHistograms;
+    }
+
+    /**
+     * Flatten the snapshot into named values, with the count, mean and percentiles of each histogram
+     * in milliseconds, such as <code>platformRoundTrip.p99Millis</code>.
+     *
+     * @return the metric values by name.
+     */
+    @Nonnull
+    public Map<String, Number> toValues() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.putAll(mGauges);
+        values.putAll(mCounters);
+
+        for (Map.Entry<String, LatencyHistogram.Snapshot> histogram : mHistograms.entrySet()) {
+            String name = histogram.getKey();
+            LatencyHistogram.Snapshot snapshot = histogram.getValue();
+            values.put(name + ".count", snapshot.getCount());
+            values.put(name + ".meanMillis", snapshot.getMeanMicros() / 1000);
+            values.put(name + ".p50Millis", toMillis(snapshot.getValueAtPercentile(50)));
+            values.put(name + ".p99Millis", toMillis(snapshot.getValueAtPercentile(99)));
+            values.put(name + ".p999Millis", toMillis(snapshot.getValueAtPercentile(99.9)));
+            values.put(name + ".maxMillis", toMillis(snapshot.getMaxMicros()));
+        }
+        return values;
+    }
+
+    private static double toMillis(long micros) {
+        return (double) micros / TimeUnit.MILLISECONDS.toMicros(1);
+    }
+}
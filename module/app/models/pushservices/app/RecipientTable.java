@@ -0,0 +1,418 @@
+package models.pushservices.app;
+
+import enums.pushservices.RecipientState;
+import enums.pushservices.RecipientType;
+import helpers.pushservices.TokenTable;
+import models.pushservices.db.PlatformFailure;
+import models.pushservices.db.Recipient;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * The in-flight recipient state of a {@link models.pushservices.db.Message} while it is being
+ * dispatched. Each recipient is a row index into parallel primitive arrays (state, type, send attempts and
+ * attempt times in epoch millis) with tokens held in a shared {@link TokenTable}, instead of a full
+ * {@link Recipient} entity. Failures are only held for the recipients that have failed.
+ * <p>
+ * Recipients are converted back into entities only at persistence and listener boundaries. Changed
+ * rows are tracked so that only they are written back to the database.
+ * <p>
+ * Members of a stored audience are only stored as recipients once they fail or need a retry. The members
+ * that have completed are tracked as a bitmap of audience member ids, offset from a base member id, so
+ * that they are not sent to again when the table is reloaded.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class RecipientTable {
+    private static final RecipientState[] STATES = RecipientState.values();
+    private static final RecipientType[] TYPES = RecipientType.values();
+    private static final long NO_TIME = 0L;
+
+    // Rows double until they reach the growth step, and then grow by the step.
+    private static final int MAX_ROW_GROWTH = 1024 * 1024;
+
+    // Audience members are only stored as recipients once they fail or need a retry.
+    public static final long NO_RECIPIENT_ID = 0L;
+    public static final long NO_MEMBER_ID = 0L;
+
+    private final TokenTable mTokens;
+    private final Map<Integer, PlatformFailure> mFailures = new HashMap<>();
+    private final BitSet mChangedRows = new BitSet();
+    private final BitSet mSentMembers = new BitSet();
+
+    private long[] mRecipientIds;
+    private int[] mTokenReferences;
+    private byte[] mStates;
+    private byte[] mTypes;
+    private short[] mSendAttempts;
+    private long[] mLastAttempts;
+    private long[] mNextAttempts;
+    private long[] mMemberIds;
+    private int mSize;
+    private long mSentMemberBase = NO_MEMBER_ID;
+    private boolean mSentMembersChanged;
+    private int mSentMemberCount;
+
+    public RecipientTable(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        mTokens = new TokenTable(capacity);
+        mRecipientIds = new long[capacity];
+        mTokenReferences = new int[capacity];
+        mStates = new byte[capacity];
+        mTypes = new byte[capacity];
+        mSendAttempts = new short[capacity];
+        mLastAttempts = new long[capacity];
+        mNextAttempts = new long[capacity];
+        mMemberIds = new long[capacity];
+    }
+
+    /**
+     * Create a table from recipient entities.
+     *
+     * @param recipients message recipients.
+     * @return the in-flight recipient table.
+     */
+    @Nonnull
+    public static RecipientTable fromRecipients(@Nonnull List<Recipient> recipients) {
+        RecipientTable recipientTable = new RecipientTable(recipients.size());
+        for (Recipient recipient : recipients) {
+            long recipientId = recipient.getId() != null ? recipient.getId() : NO_RECIPIENT_ID;
+            int row = recipientTable.add(recipientId, recipient.getToken(), recipient.getType(), recipient.getState(),
+                    recipient.getSendAttemptCount(),
+                    recipient.getLastSendAttempt() != null ? recipient.getLastSendAttempt().getTime() : NO_TIME,
+                    recipient.getNextAttempt() != null ? recipient.getNextAttempt().getTime() : NO_TIME);
+
+            if (recipient.getPlatformFailure() != null) {
+                recipientTable.mFailures.put(row, recipient.getPlatformFailure());
+            }
+        }
+        return recipientTable;
+    }
+
+    /**
+     * Add a recipient to the table.
+     *
+     * @return the recipient row.
+     */
+    public int add(long recipientId, @Nonnull String token, @Nullable RecipientType type, @Nullable RecipientState state,
+                   int sendAttempts, long lastAttempt, long nextAttempt) {
+        if (mSize == mRecipientIds.length) {
+            grow(TokenTable.nextCapacity(mRecipientIds.length, mSize + 1L, MAX_ROW_GROWTH));
+        }
+
+        int row = mSize++;
+        mRecipientIds[row] = recipientId;
+        mTokenReferences[row] = mTokens.intern(token);
+        mStates[row] = (byte) (state != null ? state : RecipientState.STATE_IDLE).ordinal();
+        mTypes[row] = (byte) (type != null ? type : RecipientType.TYPE_TOKEN).ordinal();
+        mSendAttempts[row] = (short) Math.min(sendAttempts, Short.MAX_VALUE);
+        mLastAttempts[row] = lastAttempt;
+        mNextAttempts[row] = nextAttempt;
+        mMemberIds[row] = NO_MEMBER_ID;
+        return row;
+    }
+
+    /**
+     * Add an audience member that has not been sent to. Members must be added in member id order.
+     *
+     * @param memberId the audience member id.
+     * @param token    the audience member token.
+     * @return the recipient row.
+     */
+    public int addAudienceMember(long memberId, @Nonnull String token) {
+        int row = add(NO_RECIPIENT_ID, token, RecipientType.TYPE_TOKEN, RecipientState.STATE_IDLE, 0, NO_TIME, NO_TIME);
+        mMemberIds[row] = memberId;
+        if (mSentMemberBase == NO_MEMBER_ID) {
+            mSentMemberBase = memberId;
+        }
+        return row;
+    }
+
+    /**
+     * Count an audience member that had already been sent to when the table was loaded, and is not held as a row.
+     */
+    public void addSentMember() {
+        mSentMemberCount++;
+    }
+
+    /**
+     * @return the number of audience members that had already been sent to when the table was loaded.
+     */
+    public int getSentMemberCount() {
+        return mSentMemberCount;
+    }
+
+    /**
+     * Create a detached {@link Recipient} entity for a row, for listeners and registries.
+     *
+     * @param row recipient row.
+     * @return a copy of the recipient.
+     */
+    @Nonnull
+    public Recipient toRecipient(int row) {
+        Recipient recipient = new Recipient(getToken(row), getType(row));
+        recipient.setId(mRecipientIds[row] != NO_RECIPIENT_ID ? mRecipientIds[row] : null);
+        recipient.setState(getState(row));
+        recipient.setSendAttemptCount(mSendAttempts[row]);
+        recipient.setLastSendAttempt(mLastAttempts[row] != NO_TIME ? new Date(mLastAttempts[row]) : null);
+        recipient.setNextAttempt(mNextAttempts[row] != NO_TIME ? new Date(mNextAttempts[row]) : null);
+        recipient.setFailure(getFailure(row));
+        return recipient;
+    }
+
+    /**
+     * Create detached {@link Recipient} entities for every row, for listeners.
+     *
+     * @return copies of the recipients.
+     */
+    @Nonnull
+    public List<Recipient> toRecipients() {
+        List<Recipient> recipients = new ArrayList<>(mSize);
+        for (int row = 0; row < mSize; row++) {
+            recipients.add(toRecipient(row));
+        }
+        return recipients;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the recipient id, or {@link #NO_RECIPIENT_ID} for an audience member not yet stored as a recipient.
+     */
+    public long getRecipientId(int row) {
+        return mRecipientIds[row];
+    }
+
+    public synchronized void setRecipientId(int row, long recipientId) {
+        mRecipientIds[row] = recipientId;
+    }
+
+    @Nonnull
+    public synchronized String getToken(int row) {
+        return mTokens.get(mTokenReferences[row]);
+    }
+
+    public synchronized void setToken(int row, @Nonnull String token) {
+        mTokenReferences[row] = mTokens.intern(token);
+        mChangedRows.set(row);
+    }
+
+    /**
+     * @return true if any recipient in the table has, or has had, the token.
+     */
+    public synchronized boolean containsToken(@Nonnull String token) {
+        return mTokens.indexOf(token) >= 0;
+    }
+
+    /**
+     * @return whether the recipient is a device token, topic or condition.
+     */
+    @Nonnull
+    public RecipientType getType(int row) {
+        return TYPES[mTypes[row]];
+    }
+
+    @Nonnull
+    public RecipientState getState(int row) {
+        return STATES[mStates[row]];
+    }
+
+    public synchronized void setState(int row, @Nonnull RecipientState state) {
+        mStates[row] = (byte) state.ordinal();
+        mChangedRows.set(row);
+    }
+
+    public int getSendAttemptCount(int row) {
+        return mSendAttempts[row];
+    }
+
+    public synchronized void setSendAttemptCount(int row, int sendAttempts) {
+        mSendAttempts[row] = (short) Math.min(sendAttempts, Short.MAX_VALUE);
+        mChangedRows.set(row);
+    }
+
+    /**
+     * @return the last send attempt in epoch millis, or 0 if the recipient has not been sent to.
+     */
+    public long getLastSendAttempt(int row) {
+        return mLastAttempts[row];
+    }
+
+    public synchronized void setLastSendAttempt(int row, long lastAttempt) {
+        mLastAttempts[row] = lastAttempt;
+        mChangedRows.set(row);
+    }
+
+    /**
+     * @return the next send attempt in epoch millis, or 0 if the recipient is not waiting to retry.
+     */
+    public long getNextAttempt(int row) {
+        return mNextAttempts[row];
+    }
+
+    public synchronized void setNextAttempt(int row, long nextAttempt) {
+        mNextAttempts[row] = nextAttempt;
+        mChangedRows.set(row);
+    }
+
+    @Nullable
+    public synchronized PlatformFailure getFailure(int row) {
+        return mFailures.get(row);
+    }
+
+    public synchronized void setFailure(int row, @Nonnull PlatformFailure failure) {
+        mFailures.put(row, failure);
+        mChangedRows.set(row);
+    }
+
+    /**
+     * @return the audience member id, or {@link #NO_MEMBER_ID} if the recipient is not an audience member.
+     */
+    public long getMemberId(int row) {
+        return mMemberIds[row];
+    }
+
+    /**
+     * Restore the audience members that have been sent to, as saved by {@link #takeSentMembers()}.
+     *
+     * @param memberBase the member id of the first bit, or {@link #NO_MEMBER_ID} if no member has been sent to.
+     * @param sentMembers the sent member bitmap.
+     */
+    public synchronized void setSentMembers(long memberBase, @Nullable byte[] sentMembers) {
+        mSentMembers.clear();
+        mSentMemberBase = memberBase;
+        if (memberBase != NO_MEMBER_ID && sentMembers != null) {
+            mSentMembers.or(BitSet.valueOf(sentMembers));
+        }
+    }
+
+    /**
+     * @return true if the audience member has been sent to.
+     */
+    public synchronized boolean isMemberSent(long memberId) {
+        long bit = memberId - mSentMemberBase;
+        return mSentMemberBase != NO_MEMBER_ID && bit >= 0 && bit < Integer.MAX_VALUE && mSentMembers.get((int) bit);
+    }
+
+    /**
+     * Mark the audience members in the rows that have completed as sent.
+     *
+     * @param rows changed rows.
+     */
+    public synchronized void markSentMembers(@Nonnull BitSet rows) {
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+            long bit = mMemberIds[row] - mSentMemberBase;
+            if (mMemberIds[row] != NO_MEMBER_ID && bit >= 0 && bit < Integer.MAX_VALUE &&
+                    STATES[mStates[row]] == RecipientState.STATE_COMPLETE && !mSentMembers.get((int) bit)) {
+                mSentMembers.set((int) bit);
+                mSentMembersChanged = true;
+            }
+        }
+    }
+
+    /**
+     * @return the member id of the first bit of the sent member bitmap.
+     */
+    public synchronized long getSentMemberBase() {
+        return mSentMemberBase;
+    }
+
+    /**
+     * Take the sent member bitmap if members have been marked as sent since the last call, so that it can be persisted.
+     *
+     * @return the sent member bitmap, or null if it has not changed.
+     */
+    @Nullable
+    public synchronized byte[] takeSentMembers() {
+        if (!mSentMembersChanged) {
+            return null;
+        }
+        mSentMembersChanged = false;
+        return mSentMembers.toByteArray();
+    }
+
+    /**
+     * Mark the sent member bitmap as changed again, such as after it failed to persist.
+     */
+    public synchronized void restoreSentMembers() {
+        mSentMembersChanged = true;
+    }
+
+    /**
+     * Cancel the recipients that are idle or waiting to retry. The rows are not marked as changed, so
+     * that a store can cancel them with a single update.
+     *
+     * @return the cancelled rows.
+     */
+    @Nonnull
+    public synchronized BitSet cancelPendingRows() {
+        BitSet cancelledRows = new BitSet();
+        for (int row = 0; row < mSize; row++) {
+            RecipientState state = STATES[mStates[row]];
+            if (state == RecipientState.STATE_IDLE || state == RecipientState.STATE_WAITING_RETRY) {
+                mStates[row] = (byte) RecipientState.STATE_CANCELLED.ordinal();
+                cancelledRows.set(row);
+            }
+        }
+        return cancelledRows;
+    }
+
+    /**
+     * Expire the recipients that have not been sent to, including those left processing by a message that
+     * is no longer in flight. The rows are not marked as changed, so that a store can expire them with a
+     * single update.
+     *
+     * @return the expired rows.
+     */
+    @Nonnull
+    public synchronized BitSet expirePendingRows() {
+        BitSet expiredRows = new BitSet();
+        for (int row = 0; row < mSize; row++) {
+            RecipientState state = STATES[mStates[row]];
+            if (state == RecipientState.STATE_IDLE || state == RecipientState.STATE_PROCESSING ||
+                    state == RecipientState.STATE_WAITING_RETRY) {
+                mStates[row] = (byte) RecipientState.STATE_EXPIRED.ordinal();
+                expiredRows.set(row);
+            }
+        }
+        return expiredRows;
+    }
+
+    /**
+     * Take the rows changed since the last call, so that they can be persisted.
+     *
+     * @return the changed rows.
+     */
+    @Nonnull
+    public synchronized BitSet takeChangedRows() {
+        BitSet changedRows = (BitSet) mChangedRows.clone();
+        mChangedRows.clear();
+        return changedRows;
+    }
+
+    /**
+     * Mark rows as changed again, such as after they failed to persist.
+     *
+     * @param rows changed rows.
+     */
+    public synchronized void restoreChangedRows(@Nonnull BitSet rows) {
+        mChangedRows.or(rows);
+    }
+
+    private void grow(int capacity) {
+        mRecipientIds = Arrays.copyOf(mRecipientIds, capacity);
+        mTokenReferences = Arrays.copyOf(mTokenReferences, capacity);
+        mStates = Arrays.copyOf(mStates, capacity);
+        mTypes = Arrays.copyOf(mTypes, capacity);
+        mSendAttempts = Arrays.copyOf(mSendAttempts, capacity);
+        mLastAttempts = Arrays.copyOf(mLastAttempts, capacity);
+        mNextAttempts = Arrays.copyOf(mNextAttempts, capacity);
+        mMemberIds = Arrays.copyOf(mMemberIds, capacity);
+    }
+}
@@ -0,0 +1,38 @@
+package models.pushservices.app;
+
+import models.pushservices.db.Message;
+
+import javax.annotation.Nonnull;
+import java.util.Iterator;
+
+/**
+ * A {@link Message} without recipients, and a stream of device tokens to send it to. Used to
+ * queue messages with very large audiences without holding every recipient in memory.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class StreamedMessage {
+    private Message mMessage;
+    private Iterator<String> mTokens;
+
+    // Private access for immutability.
+    private StreamedMessage() {
+    }
+
+    public StreamedMessage(@Nonnull Message message, @Nonnull Iterator<String> tokens) {
+        mMessage = message;
+        mTokens = tokens;
+    }
+
+    @Nonnull
+    public Message getMessage() {
+        return mMessage;
+    }
+
+    @Nonnull
+    public Iterator<String> getTokens() {
+        return mTokens;
+    }
+}
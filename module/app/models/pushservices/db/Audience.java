@@ -0,0 +1,66 @@
+package models.pushservices.db;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import io.ebean.Finder;
+import io.ebean.Model;
+
+import javax.annotation.Nonnull;
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * A stored, named set of device tokens (for example, everyone subscribed to a route) which
+ * messages can target by reference. Members are maintained incrementally with the
+ * {@link dao.pushservices.AudienceDao}, so repeat broadcasts do not re-insert their tokens.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Entity
+@Table(name = "audiences", schema = "pushservices")
+public class Audience extends Model {
+    public static Finder<Long, Audience> find = new Finder<>(Audience.class);
+
+    @Id
+    @JsonIgnore
+    @Column(name = "id")
+    @SequenceGenerator(name = "gen", sequenceName = "pushservices.audience_id_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
+    private Long id;
+
+    @Column(name = "name", unique = true)
+    private String name;
+
+    @Basic
+    @Column(name = "added_time", columnDefinition = "timestamp without time zone")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date addedTime;
+
+    public Audience(@Nonnull String name) {
+        setName(name);
+    }
+
+    @PrePersist
+    public void prePersist() {
+        if (addedTime == null) {
+            addedTime = new Date();
+        }
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private void setName(String name) {
+        this.name = name;
+    }
+
+    public Date getAddedTime() {
+        return addedTime;
+    }
+}
@@ -0,0 +1,70 @@
+package models.pushservices.db;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import io.ebean.Finder;
+import io.ebean.Model;
+
+import javax.annotation.Nonnull;
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * A device token in an {@link Audience}.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Entity
+@Table(name = "audience_members", schema = "pushservices",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"audience_id", "token"}))
+public class AudienceMember extends Model {
+    public static Finder<Long, AudienceMember> find = new Finder<>(AudienceMember.class);
+
+    @Id
+    @JsonIgnore
+    @Column(name = "id")
+    @SequenceGenerator(name = "gen", sequenceName = "pushservices.audience_member_id_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
+    private Long id;
+
+    @ManyToOne
+    @JoinColumn(name = "audience_id")
+    private Audience audience;
+
+    @Column(name = "token", columnDefinition = "TEXT")
+    private String token;
+
+    @Basic
+    @Column(name = "added_time", columnDefinition = "timestamp without time zone")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date addedTime;
+
+    public AudienceMember(@Nonnull Audience audience, @Nonnull String token) {
+        this.audience = audience;
+        this.token = token;
+    }
+
+    @PrePersist
+    public void prePersist() {
+        if (addedTime == null) {
+            addedTime = new Date();
+        }
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Audience getAudience() {
+        return audience;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public Date getAddedTime() {
+        return addedTime;
+    }
+}
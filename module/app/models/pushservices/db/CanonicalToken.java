@@ -0,0 +1,75 @@
+package models.pushservices.db;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import io.ebean.Finder;
+import io.ebean.Model;
+
+import javax.annotation.Nonnull;
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * A stale device token and the canonical token the platform has told us to use in its place.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Entity
+@Table(name = "canonical_tokens", schema = "pushservices")
+public class CanonicalToken extends Model {
+    public static Finder<Long, CanonicalToken> find = new Finder<>(CanonicalToken.class);
+
+    @Id
+    @JsonIgnore
+    @Column(name = "id")
+    @SequenceGenerator(name = "gen", sequenceName = "pushservices.canonical_token_id_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
+    private Long id;
+
+    @Column(name = "stale_token", columnDefinition = "TEXT", unique = true)
+    private String staleToken;
+
+    @Column(name = "canonical_token", columnDefinition = "TEXT")
+    private String canonicalToken;
+
+    @Basic
+    @Column(name = "updated_time", columnDefinition = "timestamp without time zone")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date updatedTime;
+
+    public CanonicalToken(@Nonnull String staleToken, @Nonnull String canonicalToken) {
+        setStaleToken(staleToken);
+        setCanonicalToken(canonicalToken);
+    }
+
+    @PrePersist
+    @PreUpdate
+    public void updatedTime() {
+        updatedTime = new Date();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getStaleToken() {
+        return staleToken;
+    }
+
+    private void setStaleToken(String staleToken) {
+        this.staleToken = staleToken;
+    }
+
+    public String getCanonicalToken() {
+        return canonicalToken;
+    }
+
+    public void setCanonicalToken(String canonicalToken) {
+        this.canonicalToken = canonicalToken;
+    }
+
+    public Date getUpdatedTime() {
+        return updatedTime;
+    }
+}
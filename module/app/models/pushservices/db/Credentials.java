@@ -4,10 +4,16 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import enums.pushservices.PlatformType;
 import io.ebean.Finder;
 import io.ebean.Model;
+import io.ebean.annotation.Cache;
 
 import javax.persistence.*;
 
+/**
+ * Platform credentials. Credentials are registered once (see {@link dao.pushservices.CredentialsDao})
+ * and shared by reference between every {@link Message} sent with them.
+ */
 @Entity
+@Cache
 @Table(name = "credentials", schema = "pushservices")
 public class Credentials extends Model {
     public static Finder<Long, Credentials> find = new Finder<>(Credentials.class);
@@ -19,8 +25,8 @@ public class Credentials extends Model {
     @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
     protected Long id;
 
-    @OneToOne(mappedBy = "credentials")
-    private Message message;
+    @Column(name = "alias", unique = true)
+    private String alias;
 
     @Enumerated(EnumType.STRING)
     @Column(name = "platform")
@@ -43,12 +49,12 @@ public class Credentials extends Model {
         return id;
     }
 
-    public Message getMessage() {
-        return message;
+    public String getAlias() {
+        return alias;
     }
 
-    public void setMessage(Message message) {
-        this.message = message;
+    public void setAlias(String alias) {
+        this.alias = alias;
     }
 
     public PlatformType getPlatformType() {
@@ -3,7 +3,9 @@ package models.pushservices.db;
 import enums.pushservices.MessagePriority;
 import io.ebean.Finder;
 import io.ebean.Model;
+import io.ebean.annotation.DbJsonB;
 import io.ebean.annotation.JsonIgnore;
+import models.pushservices.app.RecipientTable;
 
 import javax.persistence.*;
 import java.util.Date;
@@ -25,13 +27,24 @@ public class Message extends Model {
     @OneToMany(cascade = CascadeType.ALL, fetch = FetchType.EAGER)
     private List<Recipient> recipients;
 
-    @OneToOne(cascade = CascadeType.ALL, fetch = FetchType.EAGER)
+    @ManyToOne(cascade = CascadeType.PERSIST)
     @JoinColumn(name = "credentials_id")
     private Credentials credentials;
 
     @OneToMany(cascade = CascadeType.ALL, fetch = FetchType.EAGER)
     private List<PayloadElement> payloadData;
 
+    @ManyToOne
+    @JoinColumn(name = "audience_id")
+    private Audience audience;
+
+    @Column(name = "audience_sent")
+    private boolean audienceSent;
+
+    @DbJsonB
+    @Column(name = "payload")
+    private String payload;
+
     @Column(name = "collapse_key")
     private String collapseKey;
 
@@ -51,11 +64,57 @@ public class Message extends Model {
     @Column(name = "maximum_retries")
     private int maximumRetries = 10;
 
+    @Column(name = "idempotency_key")
+    private String idempotencyKey;
+
+    @Column(name = "dispatcher_id")
+    private String dispatcherId;
+
+    @Basic
+    @Column(name = "claimed_at", columnDefinition = "timestamp without time zone")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date claimedAt;
+
+    @Column(name = "recipients_pending")
+    private int pendingCount;
+
+    @Column(name = "recipients_complete")
+    private int completeCount;
+
+    @Column(name = "recipients_failed")
+    private int failedCount;
+
+    @Column(name = "recipients_retrying")
+    private int retryingCount;
+
+    @Column(name = "recipients_cancelled")
+    private int cancelledCount;
+
+    @Column(name = "recipients_expired")
+    private int expiredCount;
+
+    @Basic
+    @Column(name = "send_at", columnDefinition = "timestamp without time zone")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date sendAt;
+
     @Basic
     @Column(name = "added_time", columnDefinition = "timestamp without time zone")
     @Temporal(TemporalType.TIMESTAMP)
     private Date addedTime;
 
+    @Transient
+    private RecipientTable recipientTable;
+
+    @Transient
+    private boolean durable = true;
+
+    @Transient
+    private volatile boolean cancelled;
+
+    @Transient
+    private long queuedNanos;
+
     @PrePersist
     public void updatedTime() {
         setAddedTime(new Date());
@@ -65,6 +124,10 @@ public class Message extends Model {
         return id;
     }
 
+    public void setId(Long id) {
+        this.id = id;
+    }
+
     public List<Recipient> getRecipients() {
         return recipients;
     }
@@ -73,6 +136,28 @@ public class Message extends Model {
         this.recipients = recipients;
     }
 
+    /**
+     * @return the compact in-flight recipient state, while the message is being dispatched.
+     */
+    public RecipientTable getRecipientTable() {
+        return recipientTable;
+    }
+
+    public void setRecipientTable(RecipientTable recipientTable) {
+        this.recipientTable = recipientTable;
+    }
+
+    /**
+     * @return false if the message is only held in memory, and is not persisted.
+     */
+    public boolean isDurable() {
+        return durable;
+    }
+
+    public void setDurable(boolean durable) {
+        this.durable = durable;
+    }
+
     public Credentials getCredentials() {
         return credentials;
     }
@@ -81,6 +166,74 @@ public class Message extends Model {
         this.credentials = credentials;
     }
 
+    /**
+     * @return the stored audience the message is sent to, in addition to its own recipients.
+     */
+    public Audience getAudience() {
+        return audience;
+    }
+
+    public void setAudience(Audience audience) {
+        this.audience = audience;
+    }
+
+    /**
+     * @return true once every audience member has been sent to at least once. From then on, only
+     * audience members with a failure or retry (stored as recipients) are tracked.
+     */
+    public boolean isAudienceSent() {
+        return audienceSent;
+    }
+
+    public void setAudienceSent(boolean audienceSent) {
+        this.audienceSent = audienceSent;
+    }
+
+    /**
+     * @return the caller's key for the event the message was sent for, which is only queued once.
+     */
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    /**
+     * @return the node that has claimed the message for dispatch, if pending message notifications are enabled.
+     */
+    public String getDispatcherId() {
+        return dispatcherId;
+    }
+
+    public void setDispatcherId(String dispatcherId) {
+        this.dispatcherId = dispatcherId;
+    }
+
+    /**
+     * @return the time the dispatcher last claimed or renewed its claim on the message. Other nodes may take
+     * over the message once the claim lease has passed.
+     */
+    public Date getClaimedAt() {
+        return claimedAt;
+    }
+
+    public void setClaimedAt(Date claimedAt) {
+        this.claimedAt = claimedAt;
+    }
+
+    /**
+     * @return the time the message is first sent at, or null if it is sent as soon as it is queued.
+     */
+    public Date getSendAt() {
+        return sendAt;
+    }
+
+    public void setSendAt(Date sendAt) {
+        this.sendAt = sendAt;
+    }
+
     public List<PayloadElement> getPayloadData() {
         return payloadData;
     }
@@ -89,6 +242,17 @@ public class Message extends Model {
         this.payloadData = payloadData;
     }
 
+    /**
+     * @return the pre-encoded JSON payload object, if the message payload is stored as JSON.
+     */
+    public String getPayload() {
+        return payload;
+    }
+
+    public void setPayload(String payload) {
+        this.payload = payload;
+    }
+
     public String getCollapseKey() {
         return collapseKey;
     }
@@ -137,11 +301,81 @@ public class Message extends Model {
         this.maximumRetries = maximumRetries;
     }
 
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    public void setPendingCount(int pendingCount) {
+        this.pendingCount = pendingCount;
+    }
+
+    public int getCompleteCount() {
+        return completeCount;
+    }
+
+    public void setCompleteCount(int completeCount) {
+        this.completeCount = completeCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public void setFailedCount(int failedCount) {
+        this.failedCount = failedCount;
+    }
+
+    public int getRetryingCount() {
+        return retryingCount;
+    }
+
+    public void setRetryingCount(int retryingCount) {
+        this.retryingCount = retryingCount;
+    }
+
+    public int getCancelledCount() {
+        return cancelledCount;
+    }
+
+    public void setCancelledCount(int cancelledCount) {
+        this.cancelledCount = cancelledCount;
+    }
+
+    public int getExpiredCount() {
+        return expiredCount;
+    }
+
+    public void setExpiredCount(int expiredCount) {
+        this.expiredCount = expiredCount;
+    }
+
+    /**
+     * @return true if the message was cancelled while it was being dispatched by this process.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @return when the message was last queued for dispatch, from {@link System#nanoTime()}.
+     */
+    public long getQueuedNanos() {
+        return queuedNanos;
+    }
+
+    public void setQueuedNanos(long queuedNanos) {
+        this.queuedNanos = queuedNanos;
+    }
+
     public Date getAddedTime() {
         return addedTime;
     }
 
-    private void setAddedTime(Date addedTime) {
+    public void setAddedTime(Date addedTime) {
         this.addedTime = addedTime;
     }
 }
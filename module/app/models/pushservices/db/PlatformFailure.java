@@ -66,6 +66,10 @@ public class PlatformFailure extends Model {
         return id;
     }
 
+    public void setId(Long id) {
+        this.id = id;
+    }
+
     public Recipient getRecipient() {
         return recipient;
     }
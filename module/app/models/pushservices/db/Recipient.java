@@ -2,6 +2,7 @@ package models.pushservices.db;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import enums.pushservices.RecipientState;
+import enums.pushservices.RecipientType;
 import io.ebean.Finder;
 import io.ebean.Model;
 
@@ -27,6 +28,9 @@ public class Recipient extends Model {
     @Column(name = "token", columnDefinition = "TEXT")
     private String token;
 
+    @Column(name = "type")
+    private RecipientType type = RecipientType.TYPE_TOKEN;
+
     @ManyToOne
     private Message message;
 
@@ -56,10 +60,23 @@ public class Recipient extends Model {
         setToken(token);
     }
 
+    /**
+     * @param target device token, topic name (such as /topics/news) or topic condition.
+     * @param type   the kind of target.
+     */
+    public Recipient(@Nonnull String target, @Nonnull RecipientType type) {
+        setToken(target);
+        setType(type);
+    }
+
     public Long getId() {
         return id;
     }
 
+    public void setId(Long id) {
+        this.id = id;
+    }
+
     public PlatformFailure getPlatformFailure() {
         return failure;
     }
@@ -72,10 +89,18 @@ public class Recipient extends Model {
         return token;
     }
 
-    private void setToken(String token) {
+    public void setToken(String token) {
         this.token = token;
     }
 
+    public RecipientType getType() {
+        return type;
+    }
+
+    public void setType(RecipientType type) {
+        this.type = type;
+    }
+
     public Message getMessage() {
         return message;
     }
@@ -0,0 +1,79 @@
+package models.pushservices.db;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import enums.pushservices.FailureType;
+import io.ebean.Finder;
+import io.ebean.Model;
+
+import javax.annotation.Nonnull;
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * A device token that the platform has reported as permanently undeliverable (not registered,
+ * or invalid). Messages are never dispatched to suppressed tokens.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Entity
+@Table(name = "suppressed_tokens", schema = "pushservices")
+public class SuppressedToken extends Model {
+    public static Finder<Long, SuppressedToken> find = new Finder<>(SuppressedToken.class);
+
+    @Id
+    @JsonIgnore
+    @Column(name = "id")
+    @SequenceGenerator(name = "gen", sequenceName = "pushservices.suppressed_token_id_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
+    private Long id;
+
+    @Column(name = "token", columnDefinition = "TEXT", unique = true)
+    private String token;
+
+    @Column(name = "type")
+    @Enumerated(EnumType.STRING)
+    private FailureType failureType;
+
+    @Basic
+    @Column(name = "added_time", columnDefinition = "timestamp without time zone")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date addedTime;
+
+    public SuppressedToken(@Nonnull String token, @Nonnull FailureType failureType) {
+        setToken(token);
+        setFailureType(failureType);
+    }
+
+    @PrePersist
+    public void prePersist() {
+        if (addedTime == null) {
+            addedTime = new Date();
+        }
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    private void setToken(String token) {
+        this.token = token;
+    }
+
+    public FailureType getFailureType() {
+        return failureType;
+    }
+
+    public void setFailureType(FailureType failureType) {
+        this.failureType = failureType;
+    }
+
+    public Date getAddedTime() {
+        return addedTime;
+    }
+}
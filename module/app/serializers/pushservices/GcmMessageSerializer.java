@@ -1,9 +1,10 @@
 package serializers.pushservices;
 
 import com.google.gson.*;
+import enums.pushservices.RecipientType;
+import helpers.pushservices.MessageHelper;
 import models.pushservices.db.Message;
 import models.pushservices.db.PayloadElement;
-import models.pushservices.db.Recipient;
 
 import javax.annotation.Nonnull;
 import java.lang.reflect.Type;
@@ -11,33 +12,61 @@ import java.util.List;
 
 public class GcmMessageSerializer implements JsonSerializer<Message> {
     private JsonArray mJsonRegistrationIds = new JsonArray();
+    private RecipientType mTargetType = RecipientType.TYPE_TOKEN;
+    private String mTarget;
 
-    public GcmMessageSerializer(@Nonnull List<Recipient> recipients) {
-        for (Recipient recipient : recipients) {
+    public GcmMessageSerializer(@Nonnull List<String> tokens) {
+        for (String token : tokens) {
 
             // Extra safeguard to ensure we don't add invalid recipients.
-            JsonPrimitive jsonRecipientToken = new JsonPrimitive(recipient.getToken() != null ? recipient.getToken() : "");
+            JsonPrimitive jsonRecipientToken = new JsonPrimitive(token != null ? token : "");
             mJsonRegistrationIds.add(jsonRecipientToken);
         }
     }
 
+    /**
+     * Serialise a message to a single topic or condition.
+     *
+     * @param targetType topic or condition.
+     * @param target     topic name (such as /topics/news) or topic condition.
+     */
+    public GcmMessageSerializer(@Nonnull RecipientType targetType, @Nonnull String target) {
+        mTargetType = targetType;
+        mTarget = target;
+    }
+
     @Override
     public JsonElement serialize(Message message, Type typeOfSrc, JsonSerializationContext context) {
 
-        // Serialise the payload data into Json Elements.
-        JsonObject jsonPayloadData = new JsonObject();
-        if (message.getPayloadData() != null) {
-            for (PayloadElement payloadElement : message.getPayloadData()) {
-                jsonPayloadData.add(payloadElement.getKey(), new JsonPrimitive(payloadElement.getValue()));
+        // Serialise the payload data into Json Elements, using the stored pre-encoded payload if there is one.
+        JsonElement jsonPayloadData;
+        if (message.getPayload() != null) {
+            jsonPayloadData = new JsonParser().parse(message.getPayload());
+
+        } else {
+            JsonObject jsonPayloadElements = new JsonObject();
+            if (message.getPayloadData() != null) {
+                for (PayloadElement payloadElement : message.getPayloadData()) {
+                    jsonPayloadElements.add(payloadElement.getKey(), new JsonPrimitive(payloadElement.getValue()));
+                }
             }
+            jsonPayloadData = jsonPayloadElements;
         }
 
         // Serialise the main elements.
         JsonObject jsonMessage = new JsonObject();
         jsonMessage.add("collapse_key", new JsonPrimitive(message.getCollapseKey()));
-        jsonMessage.add("time_to_live", new JsonPrimitive(message.getTtlSeconds()));
+        jsonMessage.add("time_to_live", new JsonPrimitive(MessageHelper.getRemainingTtlSeconds(message, System.currentTimeMillis())));
         jsonMessage.add("dry_run", new JsonPrimitive(message.isDryRun()));
-        jsonMessage.add("registration_ids", mJsonRegistrationIds);
+        if (mTargetType == RecipientType.TYPE_TOPIC) {
+            jsonMessage.add("to", new JsonPrimitive(mTarget));
+
+        } else if (mTargetType == RecipientType.TYPE_CONDITION) {
+            jsonMessage.add("condition", new JsonPrimitive(mTarget));
+
+        } else {
+            jsonMessage.add("registration_ids", mJsonRegistrationIds);
+        }
         jsonMessage.add("data", jsonPayloadData);
 
         // Add a restricted package attribute.
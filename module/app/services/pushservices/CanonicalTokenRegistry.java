@@ -0,0 +1,166 @@
+package services.pushservices;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import dao.pushservices.TokensDao;
+import enums.pushservices.RecipientState;
+import helpers.pushservices.MessageHelper;
+import models.pushservices.app.RecipientTable;
+import models.pushservices.app.UpdatedRecipient;
+import models.pushservices.db.CanonicalToken;
+import models.pushservices.db.Message;
+import models.pushservices.db.Recipient;
+import play.Logger;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent map of stale device tokens to the canonical tokens the platform has replaced
+ * them with. Applied to new messages and to pending recipients before a retry, so that
+ * stale tokens are not sent to (and reported back as canonical) again.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class CanonicalTokenRegistry {
+    // Guards against cyclic token replacement chains.
+    private static final int MAX_CANONICAL_CHAIN_LENGTH = 8;
+
+    private final TokensDao mTokensDao;
+    private final Map<String, String> mCanonicalTokens = new ConcurrentHashMap<>();
+
+    @Inject
+    public CanonicalTokenRegistry(TokensDao tokensDao) {
+        mTokensDao = tokensDao;
+    }
+
+    /**
+     * Load all persisted canonical token mappings into memory.
+     */
+    public synchronized void load() {
+        mCanonicalTokens.clear();
+        mTokensDao.fetchCanonicalTokens(canonicalToken ->
+                mCanonicalTokens.put(canonicalToken.getStaleToken(), canonicalToken.getCanonicalToken()));
+
+        Logger.info(String.format("Loaded %d canonical device tokens.", mCanonicalTokens.size()));
+    }
+
+    /**
+     * Get the current canonical token for a device token.
+     *
+     * @param token device token.
+     * @return the canonical token, or the same token if it has not been replaced.
+     */
+    @Nonnull
+    public String getCanonicalToken(@Nonnull String token) {
+        String canonicalToken = token;
+        for (int i = 0; i < MAX_CANONICAL_CHAIN_LENGTH; i++) {
+            String replacementToken = mCanonicalTokens.get(canonicalToken);
+            if (replacementToken == null || replacementToken.equals(canonicalToken)) {
+                break;
+            }
+            canonicalToken = replacementToken;
+        }
+        return canonicalToken;
+    }
+
+    /**
+     * Record the canonical tokens reported by the platform for stale recipients.
+     *
+     * @param updatedRecipients stale and updated recipients.
+     */
+    public void addCanonicalTokens(@Nonnull List<UpdatedRecipient> updatedRecipients) {
+        List<CanonicalToken> canonicalTokens = new ArrayList<>();
+        for (UpdatedRecipient updatedRecipient : updatedRecipients) {
+            String staleToken = updatedRecipient.getStaleRecipient().getToken();
+            String canonicalToken = updatedRecipient.getUpdatedRecipient().getToken();
+
+            if (staleToken != null && canonicalToken != null && !staleToken.equals(canonicalToken) &&
+                    !canonicalToken.equals(mCanonicalTokens.put(staleToken, canonicalToken))) {
+                canonicalTokens.add(new CanonicalToken(staleToken, canonicalToken));
+            }
+        }
+
+        if (!canonicalTokens.isEmpty()) {
+            Logger.info(String.format("Recording %d canonical device tokens.", canonicalTokens.size()));
+            mTokensDao.saveCanonicalTokens(canonicalTokens);
+        }
+    }
+
+    /**
+     * Replace stale tokens in a new (not yet persisted) message with their canonical tokens,
+     * collapsing recipients which then share the same token.
+     *
+     * @param message the message to rewrite.
+     * @return the number of recipients that were rewritten or collapsed.
+     */
+    public int rewriteRecipients(@Nonnull Message message) {
+        if (message.getRecipients() == null || mCanonicalTokens.isEmpty()) {
+            return 0;
+        }
+
+        int rewrittenCount = 0;
+        Set<String> messageTokens = new HashSet<>();
+        List<Recipient> rewrittenRecipients = new ArrayList<>();
+
+        for (Recipient recipient : message.getRecipients()) {
+            String canonicalToken = getCanonicalToken(recipient.getToken());
+            if (!canonicalToken.equals(recipient.getToken())) {
+                recipient.setToken(canonicalToken);
+                rewrittenCount++;
+            }
+
+            if (messageTokens.add(canonicalToken)) {
+                rewrittenRecipients.add(recipient);
+            } else {
+                rewrittenCount++;
+            }
+        }
+
+        if (rewrittenCount > 0) {
+            message.setRecipients(rewrittenRecipients);
+        }
+        return rewrittenCount;
+    }
+
+    /**
+     * Replace stale tokens of the pending recipients in an in-flight message before it is retried.
+     * A pending recipient whose canonical token already belongs to another recipient of the message
+     * is collapsed into it and cancelled without being sent, leaving the outcome for that device to
+     * the sibling recipient.
+     *
+     * @param message the message to rewrite.
+     * @return the number of recipients that were rewritten or collapsed.
+     */
+    public int rewritePendingRecipients(@Nonnull Message message) {
+        RecipientTable recipients = message.getRecipientTable();
+        if (recipients == null || mCanonicalTokens.isEmpty()) {
+            return 0;
+        }
+
+        int rewrittenCount = 0;
+        for (int row = 0; row < recipients.size(); row++) {
+            if (!MessageHelper.isRecipientPending(recipients, row)) {
+                continue;
+            }
+
+            String token = recipients.getToken(row);
+            if (!mCanonicalTokens.containsKey(token)) {
+                continue;
+            }
+
+            String canonicalToken = getCanonicalToken(token);
+            if (recipients.containsToken(canonicalToken)) {
+                MessageHelper.setRecipientState(message, recipients, row, RecipientState.STATE_CANCELLED);
+            } else {
+                recipients.setToken(row, canonicalToken);
+            }
+            rewrittenCount++;
+        }
+        return rewrittenCount;
+    }
+}
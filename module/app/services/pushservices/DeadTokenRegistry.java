@@ -0,0 +1,200 @@
+package services.pushservices;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import dao.pushservices.TokensDao;
+import enums.pushservices.FailureType;
+import enums.pushservices.RecipientState;
+import enums.pushservices.RecipientType;
+import helpers.pushservices.ConfigHelper;
+import helpers.pushservices.PlatformHelper;
+import main.pushservices.Constants;
+import models.pushservices.db.Message;
+import models.pushservices.db.PlatformFailure;
+import models.pushservices.db.Recipient;
+import models.pushservices.db.SuppressedToken;
+import play.Logger;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent registry of device tokens the platform has reported as dead (not registered or
+ * invalid). Tokens are held in a Bloom filter backed by an exact map, so the common case of
+ * checking a live token is a single filter lookup.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class DeadTokenRegistry {
+    private static final String CONFIG_EXPECTED_TOKENS = Constants.CONFIG_TOKENS + ".expectedSuppressedTokens";
+    private static final double BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    private final TokensDao mTokensDao;
+    private final Map<String, FailureType> mSuppressedTokens = new ConcurrentHashMap<>();
+    private volatile BloomFilter<CharSequence> mBloomFilter;
+    private volatile int mBloomFilterCapacity;
+
+    @Inject
+    public DeadTokenRegistry(TokensDao tokensDao, Config configuration) {
+        mTokensDao = tokensDao;
+        mBloomFilterCapacity = Math.max(1024, ConfigHelper.getInt(configuration, CONFIG_EXPECTED_TOKENS, 100000));
+        mBloomFilter = createBloomFilter(mBloomFilterCapacity);
+    }
+
+    /**
+     * Load all persisted suppressed tokens into memory.
+     */
+    public synchronized void load() {
+        mSuppressedTokens.clear();
+        mTokensDao.fetchSuppressedTokens(suppressedToken ->
+                mSuppressedTokens.put(suppressedToken.getToken(), suppressedToken.getFailureType()));
+
+        rebuildBloomFilter();
+        Logger.info(String.format("Loaded %d suppressed device tokens.", mSuppressedTokens.size()));
+    }
+
+    /**
+     * Check if a device token is known to be dead.
+     *
+     * @param token device token.
+     * @return true if messages should not be sent to the token.
+     */
+    public boolean isSuppressed(String token) {
+        return token != null && mBloomFilter.mightContain(token) && mSuppressedTokens.containsKey(token);
+    }
+
+    /**
+     * @return true if any device tokens are currently suppressed.
+     */
+    public boolean hasSuppressedTokens() {
+        return !mSuppressedTokens.isEmpty();
+    }
+
+    /**
+     * Suppress the tokens of recipients which failed with a permanent registration failure.
+     *
+     * @param recipients failed recipients.
+     */
+    public void suppressFailedRecipients(@Nonnull Collection<Recipient> recipients) {
+        List<SuppressedToken> newlySuppressed = new ArrayList<>();
+        for (Recipient recipient : recipients) {
+            PlatformFailure failure = recipient.getPlatformFailure();
+            if (failure != null && recipient.getType() == RecipientType.TYPE_TOKEN && isDeadTokenFailure(failure.getFailureType()) &&
+                    !isSuppressed(recipient.getToken())) {
+                newlySuppressed.add(new SuppressedToken(recipient.getToken(), failure.getFailureType()));
+            }
+        }
+        suppress(newlySuppressed);
+    }
+
+    /**
+     * Remove a token from the registry, for example if the host knows that it has been re-registered.
+     *
+     * @param token device token.
+     */
+    public void unsuppress(@Nonnull String token) {
+        if (mSuppressedTokens.remove(token) != null) {
+            mTokensDao.deleteSuppressedToken(token);
+        }
+    }
+
+    /**
+     * Remove recipients with suppressed tokens from a new (not yet persisted) message.
+     *
+     * @param message the message to filter.
+     * @return the removed recipients, marked as failed.
+     */
+    @Nonnull
+    public List<Recipient> removeSuppressedRecipients(@Nonnull Message message) {
+        List<Recipient> removedRecipients = new ArrayList<>();
+        if (message.getRecipients() == null || mSuppressedTokens.isEmpty()) {
+            return removedRecipients;
+        }
+
+        List<Recipient> remainingRecipients = new ArrayList<>();
+        for (Recipient recipient : message.getRecipients()) {
+            if (isSuppressed(recipient.getToken())) {
+                recipient.setState(RecipientState.STATE_FAILED);
+                recipient.setFailure(createFailure(recipient.getToken()));
+                removedRecipients.add(recipient);
+            } else {
+                remainingRecipients.add(recipient);
+            }
+        }
+
+        if (!removedRecipients.isEmpty()) {
+            message.setRecipients(remainingRecipients);
+        }
+        return removedRecipients;
+    }
+
+    /**
+     * Create a failure for a suppressed token.
+     *
+     * @param token the suppressed token.
+     * @return platform failure with the original dead-token reason.
+     */
+    @Nonnull
+    public PlatformFailure createFailure(@Nonnull String token) {
+        FailureType failureType = mSuppressedTokens.getOrDefault(token, FailureType.RECIPIENT_NOT_REGISTERED);
+        return new PlatformFailure(failureType, PlatformHelper.getGcmFailureName(failureType), new Date());
+    }
+
+    private static boolean isDeadTokenFailure(FailureType failureType) {
+        return failureType == FailureType.RECIPIENT_NOT_REGISTERED ||
+                failureType == FailureType.RECIPIENT_REGISTRATION_INVALID;
+    }
+
+    private void suppress(@Nonnull List<SuppressedToken> suppressedTokens) {
+        if (suppressedTokens.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            for (SuppressedToken suppressedToken : suppressedTokens) {
+                mSuppressedTokens.put(suppressedToken.getToken(), suppressedToken.getFailureType());
+                mBloomFilter.put(suppressedToken.getToken());
+            }
+
+            if (mSuppressedTokens.size() > mBloomFilterCapacity) {
+                rebuildBloomFilter();
+            }
+        }
+
+        Logger.info(String.format("Suppressing %d dead device tokens.", suppressedTokens.size()));
+        mTokensDao.saveSuppressedTokens(suppressedTokens);
+    }
+
+    /**
+     * Rebuild the Bloom filter from the exact token map, growing it if the registry has outgrown
+     * its expected size.
+     */
+    private synchronized void rebuildBloomFilter() {
+        while (mSuppressedTokens.size() > mBloomFilterCapacity) {
+            mBloomFilterCapacity *= 2;
+        }
+
+        BloomFilter<CharSequence> bloomFilter = createBloomFilter(mBloomFilterCapacity);
+        for (String token : mSuppressedTokens.keySet()) {
+            bloomFilter.put(token);
+        }
+        mBloomFilter = bloomFilter;
+    }
+
+    @Nonnull
+    private static BloomFilter<CharSequence> createBloomFilter(int capacity) {
+        return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), capacity, BLOOM_FILTER_FALSE_POSITIVE_RATE);
+    }
+}
@@ -0,0 +1,110 @@
+package services.pushservices;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import enums.pushservices.FailureType;
+import helpers.pushservices.ConfigHelper;
+import helpers.pushservices.DecayingCountMinSketch;
+import main.pushservices.Constants;
+import models.pushservices.db.Recipient;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smooths the rate of sends to each device token, so that bursts to the same devices are held back
+ * before dispatch rather than rejected by the platform with <code>DeviceMessageRateExceeded</code>.
+ * Recent sends are counted per token in a {@link DecayingCountMinSketch}, so memory use is fixed however
+ * many devices are sent to. A token the platform reports as over its rate is held for a full window.
+ * <p>
+ * Held recipients wait to retry without using up a send attempt. The sketch can overcount, so a rare
+ * token may be held early, but no token is ever let through over its rate.
+ * <p>
+ * Disabled by default. Configure with:
+ * <pre>
+ * pushservices.deviceRate.enabled = true
+ * pushservices.deviceRate.maxSends = 100
+ * pushservices.deviceRate.windowSeconds = 60
+ * pushservices.deviceRate.sketchWidth = 65536
+ * </pre>
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class DeviceRateLimiter {
+    private static final String CONFIG_ENABLED = Constants.CONFIG_DEVICE_RATE + ".enabled";
+    private static final String CONFIG_MAX_SENDS = Constants.CONFIG_DEVICE_RATE + ".maxSends";
+    private static final String CONFIG_WINDOW_SECONDS = Constants.CONFIG_DEVICE_RATE + ".windowSeconds";
+    private static final String CONFIG_SKETCH_WIDTH = Constants.CONFIG_DEVICE_RATE + ".sketchWidth";
+
+    // Number of time buckets in the window. More buckets decay counts more smoothly.
+    private static final int SKETCH_BUCKETS = 6;
+
+    private final boolean mEnabled;
+    private final int mMaxSends;
+    private final DecayingCountMinSketch mSendSketch;
+
+    @Inject
+    public DeviceRateLimiter(Config configuration) {
+        mEnabled = ConfigHelper.getBoolean(configuration, CONFIG_ENABLED, false);
+        mMaxSends = Math.max(1, ConfigHelper.getInt(configuration, CONFIG_MAX_SENDS, 100));
+
+        long windowMillis = TimeUnit.SECONDS.toMillis(Math.max(1, ConfigHelper.getLong(configuration, CONFIG_WINDOW_SECONDS, 60)));
+        int sketchWidth = ConfigHelper.getInt(configuration, CONFIG_SKETCH_WIDTH, 65536);
+        mSendSketch = mEnabled ? new DecayingCountMinSketch(sketchWidth, SKETCH_BUCKETS, windowMillis) : null;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Count a send to a device token, unless the token has reached its rate.
+     *
+     * @param token       device token.
+     * @param currentTime the current time in epoch millis.
+     * @return true if the token can be sent to now, false if it should be held back.
+     */
+    public boolean tryAcquire(@Nonnull String token, long currentTime) {
+        if (!mEnabled) {
+            return true;
+        }
+
+        if (mSendSketch.estimate(token, currentTime) >= mMaxSends) {
+            return false;
+        }
+        mSendSketch.add(token, 1, currentTime);
+        return true;
+    }
+
+    /**
+     * @param currentTime the current time in epoch millis.
+     * @return when a held back token should be tried again, in epoch millis, once part of its count has decayed.
+     */
+    public long getReleaseTime(long currentTime) {
+        return currentTime + (mEnabled ? mSendSketch.getBucketMillis() : 0);
+    }
+
+    /**
+     * Hold back the tokens of recipients that the platform reported as over their rate for a full window.
+     *
+     * @param failedRecipients recipients that failed in a dispatch.
+     */
+    public void addRateExceededRecipients(@Nonnull List<Recipient> failedRecipients) {
+        if (!mEnabled) {
+            return;
+        }
+
+        long currentTime = System.currentTimeMillis();
+        for (Recipient recipient : failedRecipients) {
+            if (recipient.getPlatformFailure() != null &&
+                    recipient.getPlatformFailure().getFailureType() == FailureType.RECIPIENT_RATE_EXCEEDED) {
+                mSendSketch.add(recipient.getToken(), mMaxSends, currentTime);
+            }
+        }
+    }
+}
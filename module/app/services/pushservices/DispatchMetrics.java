@@ -0,0 +1,330 @@
+package services.pushservices;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import enums.pushservices.FailureType;
+import helpers.pushservices.ConfigHelper;
+import helpers.pushservices.LatencyHistogram;
+import helpers.pushservices.SlidingWindowCounter;
+import interfaces.pushservices.MetricsExporter;
+import main.pushservices.Constants;
+import models.pushservices.app.MetricsSnapshot;
+import play.Logger;
+
+import javax.annotation.Nonnull;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects the TaskQueue dispatch metrics: latency histograms for the time a message waits in the queue,
+ * the platform round trip of each batch and each persistence call, counters of dispatched recipients and
+ * of failures by {@link FailureType}, and gauges of queue sizes. Metrics are always recorded, as
+ * recording is lock-free and allocation-free. Publishing them is optional.
+ * <p>
+ * When enabled, the metrics are published as attributes of the <code>pushservices:type=DispatchMetrics</code>
+ * JMX bean, and a snapshot is passed to the bound {@link MetricsExporter} on each interval. Configure with:
+ * <pre>
+ * pushservices.metrics.enabled = true
+ * pushservices.metrics.jmx = true
+ * pushservices.metrics.exportIntervalSeconds = 60
+ * </pre>
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class DispatchMetrics {
+    private static final String CONFIG_ENABLED = Constants.CONFIG_METRICS + ".enabled";
+    private static final String CONFIG_JMX = Constants.CONFIG_METRICS + ".jmx";
+    private static final String CONFIG_EXPORT_INTERVAL_SECONDS = Constants.CONFIG_METRICS + ".exportIntervalSeconds";
+
+    private static final String MBEAN_NAME = "pushservices:type=DispatchMetrics";
+
+    // Latencies above this are recorded as this.
+    private static final long HIGHEST_TRACKABLE_MINUTES = 60;
+
+    // Recent throughput and failures are counted over the last minute, a second at a time.
+    private static final long RECENT_WINDOW_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int RECENT_WINDOW_BUCKETS = 60;
+
+    private static final FailureType[] FAILURE_TYPES = FailureType.values();
+
+    private final MetricsExporter mMetricsExporter;
+    private final boolean mEnabled;
+    private final boolean mJmxEnabled;
+    private final long mExportIntervalSeconds;
+
+    private final LatencyHistogram mQueueLatency = new LatencyHistogram(HIGHEST_TRACKABLE_MINUTES, TimeUnit.MINUTES);
+    private final LatencyHistogram mPlatformLatency = new LatencyHistogram(HIGHEST_TRACKABLE_MINUTES, TimeUnit.MINUTES);
+    private final LatencyHistogram mPersistenceLatency = new LatencyHistogram(HIGHEST_TRACKABLE_MINUTES, TimeUnit.MINUTES);
+    private final AtomicLong mDispatchedRecipients = new AtomicLong();
+    private final AtomicLong mInFlightRequests = new AtomicLong();
+    private final AtomicLongArray mFailureCounts = new AtomicLongArray(FAILURE_TYPES.length);
+    private final Map<String, LongSupplier> mGauges = new ConcurrentHashMap<>();
+    private final SlidingWindowCounter mRecentDispatchedRecipients = new SlidingWindowCounter(RECENT_WINDOW_MS, RECENT_WINDOW_BUCKETS);
+    private final SlidingWindowCounter[] mRecentFailureCounts = new SlidingWindowCounter[FAILURE_TYPES.length];
+
+    private ScheduledExecutorService mExecutor;
+    private ObjectName mObjectName;
+
+    @Inject
+    public DispatchMetrics(MetricsExporter metricsExporter, Config configuration) {
+        mMetricsExporter = metricsExporter;
+        mEnabled = ConfigHelper.getBoolean(configuration, CONFIG_ENABLED, false);
+        mJmxEnabled = ConfigHelper.getBoolean(configuration, CONFIG_JMX, true);
+        mExportIntervalSeconds = Math.max(1, ConfigHelper.getLong(configuration, CONFIG_EXPORT_INTERVAL_SECONDS, 60));
+
+        mGauges.put("inFlightRequests", mInFlightRequests::get);
+        for (int i = 0; i < mRecentFailureCounts.length; i++) {
+            mRecentFailureCounts[i] = new SlidingWindowCounter(RECENT_WINDOW_MS, RECENT_WINDOW_BUCKETS);
+        }
+    }
+
+    /**
+     * Register the JMX bean and start the periodic export, if metrics publishing is enabled.
+     */
+    public synchronized void startup() {
+        if (!mEnabled || mExecutor != null) {
+            return;
+        }
+
+        if (mJmxEnabled) {
+            try {
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = new ObjectName(MBEAN_NAME);
+                if (!mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.registerMBean(new MetricsMBean(), objectName);
+                    mObjectName = objectName;
+                }
+
+            } catch (Exception e) {
+                Logger.error(String.format("Error registering the metrics JMX bean: %s.", e.getMessage()));
+            }
+        }
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mExecutor.scheduleWithFixedDelay(this::exportMetrics, mExportIntervalSeconds, mExportIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the periodic export and unregister the JMX bean.
+     */
+    public synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+
+        if (mObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+
+            } catch (Exception e) {
+                Logger.error(String.format("Error unregistering the metrics JMX bean: %s.", e.getMessage()));
+            }
+            mObjectName = null;
+        }
+    }
+
+    /**
+     * Add a gauge, which is read whenever a snapshot is taken.
+     *
+     * @param name  the gauge name.
+     * @param gauge reads the current value. It is called off the dispatch path, but should be cheap.
+     */
+    public void registerGauge(@Nonnull String name, @Nonnull LongSupplier gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    /**
+     * @return the time messages wait from being queued to being dispatched.
+     */
+    @Nonnull
+    public LatencyHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    /**
+     * @return the round trip time of each batch sent to a platform.
+     */
+    @Nonnull
+    public LatencyHistogram getPlatformLatency() {
+        return mPlatformLatency;
+    }
+
+    /**
+     * @return the time taken by each message store call on the dispatch path.
+     */
+    @Nonnull
+    public LatencyHistogram getPersistenceLatency() {
+        return mPersistenceLatency;
+    }
+
+    /**
+     * @param recipientCount the number of recipients dispatched to a platform.
+     */
+    public void addDispatchedRecipients(int recipientCount) {
+        mDispatchedRecipients.addAndGet(recipientCount);
+        mRecentDispatchedRecipients.add(recipientCount, System.currentTimeMillis());
+    }
+
+    /**
+     * A request to a platform was sent. Call {@link #requestFinished(long)} when it returns.
+     *
+     * @return the request start time, to pass to {@link #requestFinished(long)}.
+     */
+    public long requestStarted() {
+        mInFlightRequests.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * @param startNanos the request start time, from {@link #requestStarted()}.
+     */
+    public void requestFinished(long startNanos) {
+        mInFlightRequests.decrementAndGet();
+        mPlatformLatency.recordSince(startNanos);
+    }
+
+    /**
+     * @param failureType a failure reported for a recipient or a message.
+     * @param count       the number of recipients or messages with the failure.
+     */
+    public void addFailures(@Nonnull FailureType failureType, int count) {
+        mFailureCounts.addAndGet(failureType.ordinal(), count);
+        mRecentFailureCounts[failureType.ordinal()].add(count, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the recipients dispatched per second over the last minute.
+     */
+    public double getRecentThroughput() {
+        return (double) mRecentDispatchedRecipients.getCount(System.currentTimeMillis()) /
+                TimeUnit.MILLISECONDS.toSeconds(mRecentDispatchedRecipients.getWindowMillis());
+    }
+
+    /**
+     * @return the failures over the last minute, for each failure type that occurred.
+     */
+    @Nonnull
+    public Map<FailureType, Long> getRecentFailures() {
+        long currentTime = System.currentTimeMillis();
+        Map<FailureType, Long> recentFailures = new EnumMap<>(FailureType.class);
+        for (FailureType failureType : FAILURE_TYPES) {
+            long count = mRecentFailureCounts[failureType.ordinal()].getCount(currentTime);
+            if (count > 0) {
+                recentFailures.put(failureType, count);
+            }
+        }
+        return recentFailures;
+    }
+
+    /**
+     * @return the current values of every metric.
+     */
+    @Nonnull
+    public MetricsSnapshot getSnapshot() {
+        Map<String, Long> gauges = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> gauge : mGauges.entrySet()) {
+            gauges.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+
+        Map<String, Long> counters = new TreeMap<>();
+        counters.put("dispatchedRecipients", mDispatchedRecipients.get());
+        for (FailureType failureType : FAILURE_TYPES) {
+            counters.put("failures." + failureType.name(), mFailureCounts.get(failureType.ordinal()));
+        }
+
+        Map<String, LatencyHistogram.Snapshot> histograms = new TreeMap<>();
+        histograms.put("queueLatency", mQueueLatency.getSnapshot());
+        histograms.put("platformLatency", mPlatformLatency.getSnapshot());
+        histograms.put("persistenceLatency", mPersistenceLatency.getSnapshot());
+
+        return new MetricsSnapshot(new Date(), gauges, counters, histograms);
+    }
+
+    private void exportMetrics() {
+        try {
+            mMetricsExporter.export(getSnapshot());
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error exporting metrics: %s.", e.getMessage()));
+        }
+    }
+
+    /**
+     * Publishes each metric value as a read-only JMX attribute, read from a fresh snapshot.
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = getSnapshot().toValues().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = getSnapshot().toValues();
+            AttributeList attributeList = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    attributeList.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return attributeList;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Push services metrics are read-only.");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("Push services metrics have no operations.");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> values = getSnapshot().toValues();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+
+            int i = 0;
+            for (Map.Entry<String, Number> value : values.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                        value.getKey(), true, false, false);
+            }
+            return new MBeanInfo(DispatchMetrics.class.getName(), "Push services dispatch metrics.",
+                    attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package services.pushservices;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import enums.pushservices.FailureType;
+import enums.pushservices.PlatformType;
+import helpers.pushservices.ConfigHelper;
+import interfaces.pushservices.RetryPolicy;
+import main.pushservices.Constants;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default {@link RetryPolicy}: exponential back-off with full jitter. The delay before each retry is
+ * picked at random between zero and <code>min(maxSeconds, baseSeconds * multiplier ^ (attempt - 1))</code>,
+ * so recipients that failed together, such as in a platform outage, are spread out rather than retried
+ * in synchronised waves.
+ * <p>
+ * Settings can be overridden for a platform, and then for a failure type. Each level falls back to the
+ * one below it for settings it does not set. A <code>maxAttempts</code> of 0 leaves the limit to the
+ * message maximum retries. Configure with:
+ * <pre>
+ * pushservices.retry.baseSeconds = 30
+ * pushservices.retry.maxSeconds = 3600
+ * pushservices.retry.multiplier = 2.0
+ * pushservices.retry.maxAttempts = 0
+ * pushservices.retry.platforms.GCM.maxSeconds = 1800
+ * pushservices.retry.failures.RECIPIENT_RATE_EXCEEDED.baseSeconds = 300
+ * </pre>
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class ExponentialRetryPolicy implements RetryPolicy {
+    private static final String CONFIG_PLATFORMS = Constants.CONFIG_RETRY + ".platforms";
+    private static final String CONFIG_FAILURES = Constants.CONFIG_RETRY + ".failures";
+
+    private static final long DEFAULT_BASE_SECONDS = 30;
+    private static final long DEFAULT_MAX_SECONDS = TimeUnit.HOURS.toSeconds(1);
+    private static final double DEFAULT_MULTIPLIER = 2.0;
+
+    private final Map<PlatformType, Map<FailureType, Backoff>> mBackoffs = new EnumMap<>(PlatformType.class);
+
+    @Inject
+    public ExponentialRetryPolicy(Config configuration) {
+        Backoff defaultBackoff = new Backoff(configuration, Constants.CONFIG_RETRY, null);
+
+        for (PlatformType platformType : PlatformType.values()) {
+            Backoff platformBackoff = new Backoff(configuration, CONFIG_PLATFORMS + "." + platformType.name, defaultBackoff);
+
+            Map<FailureType, Backoff> failureBackoffs = new EnumMap<>(FailureType.class);
+            for (FailureType failureType : FailureType.values()) {
+                failureBackoffs.put(failureType, new Backoff(configuration, CONFIG_FAILURES + "." + failureType.name(), platformBackoff));
+            }
+            mBackoffs.put(platformType, failureBackoffs);
+        }
+    }
+
+    @Override
+    public long getRetryDelayMillis(@Nonnull PlatformType platformType, @Nonnull FailureType failureType, int attempt) {
+        Backoff backoff = mBackoffs.get(platformType).get(failureType);
+        if (backoff.mMaxAttempts > 0 && attempt > backoff.mMaxAttempts) {
+            return NO_RETRY;
+        }
+
+        // Grow the ceiling exponentially, and pick a delay at random up to it.
+        double ceilingMillis = Math.min(backoff.mMaxMillis,
+                backoff.mBaseMillis * Math.pow(backoff.mMultiplier, Math.max(0, attempt - 1)));
+        return (long) (ThreadLocalRandom.current().nextDouble() * ceilingMillis);
+    }
+
+    /**
+     * The back-off settings of one level of configuration.
+     */
+    private static class Backoff {
+        private final long mBaseMillis;
+        private final long mMaxMillis;
+        private final double mMultiplier;
+        private final int mMaxAttempts;
+
+        private Backoff(@Nonnull Config configuration, @Nonnull String path, @Nullable Backoff fallback) {
+            mBaseMillis = TimeUnit.SECONDS.toMillis(Math.max(1, ConfigHelper.getLong(configuration, path + ".baseSeconds",
+                    fallback != null ? TimeUnit.MILLISECONDS.toSeconds(fallback.mBaseMillis) : DEFAULT_BASE_SECONDS)));
+            mMaxMillis = Math.max(mBaseMillis, TimeUnit.SECONDS.toMillis(ConfigHelper.getLong(configuration, path + ".maxSeconds",
+                    fallback != null ? TimeUnit.MILLISECONDS.toSeconds(fallback.mMaxMillis) : DEFAULT_MAX_SECONDS)));
+            mMultiplier = Math.max(1.0, ConfigHelper.getDouble(configuration, path + ".multiplier",
+                    fallback != null ? fallback.mMultiplier : DEFAULT_MULTIPLIER));
+            mMaxAttempts = Math.max(0, ConfigHelper.getInt(configuration, path + ".maxAttempts",
+                    fallback != null ? fallback.mMaxAttempts : 0));
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package services.pushservices;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import helpers.pushservices.ConfigHelper;
+import main.pushservices.Constants;
+import models.pushservices.db.Credentials;
+import models.pushservices.db.Message;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@link TaskQueue} message process queue, which shares dispatch fairly between tenants (the
+ * {@link Credentials} a message is sent with) using deficit round robin. Each tenant has a lane of its
+ * own. On each turn a lane is credited its weight in recipients, and a message is only taken from the
+ * lane once the lane has enough credit for the recipients the message will dispatch. A tenant with a
+ * very large send is therefore interleaved with the small sends of every other tenant, instead of
+ * holding them up behind it.
+ * <p>
+ * Each tenant can also be limited to a maximum number of recipients in flight. A message then
+ * dispatches at most that many of its recipients at a time, and is queued again for the rest.
+ * <p>
+ * Configure with (weights are keyed by the credentials alias):
+ * <pre>
+ * pushservices.fairness.quantum = 1000
+ * pushservices.fairness.defaultWeight = 1
+ * pushservices.fairness.maxInFlight = 0
+ * pushservices.fairness.weights.my-app = 4
+ * </pre>
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class FairMessageQueue {
+    private static final String CONFIG_QUANTUM = Constants.CONFIG_FAIRNESS + ".quantum";
+    private static final String CONFIG_DEFAULT_WEIGHT = Constants.CONFIG_FAIRNESS + ".defaultWeight";
+    private static final String CONFIG_MAX_IN_FLIGHT = Constants.CONFIG_FAIRNESS + ".maxInFlight";
+    private static final String CONFIG_WEIGHTS = Constants.CONFIG_FAIRNESS + ".weights";
+
+    // Messages without credentials share a lane.
+    private static final String NO_TENANT = "";
+
+    // Upper bound on a wait for a lane to fall below its in-flight limit, in case a release is missed.
+    private static final long IN_FLIGHT_WAIT_MS = 1000;
+
+    private final Config mConfiguration;
+    private final long mQuantum;
+    private final int mDefaultWeight;
+    private final int mMaxInFlight;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mLaneReady = mLock.newCondition();
+    private final Map<String, Lane> mLanes = new HashMap<>();
+    private final ArrayDeque<Lane> mActiveLanes = new ArrayDeque<>();
+    private final Map<Long, Integer> mInFlightMessages = new HashMap<>();
+    private int mSize;
+
+    /**
+     * The queued messages, round robin credit, and recipients in flight of a tenant.
+     */
+    private static class Lane {
+        private final ArrayDeque<Message> mMessages = new ArrayDeque<>();
+        private final String mTenantKey;
+        private final String mTenantName;
+        private final int mWeight;
+        private long mDeficit;
+        private boolean mCredited;
+        private int mInFlight;
+
+        private Lane(@Nonnull String tenantKey, @Nonnull String tenantName, int weight) {
+            mTenantKey = tenantKey;
+            mTenantName = tenantName;
+            mWeight = weight;
+        }
+    }
+
+    /**
+     * A point in time copy of a tenant lane, for reporting.
+     */
+    public static class LaneStatus {
+        private final String mTenant;
+        private final int mWeight;
+        private final int mQueuedMessages;
+        private final int mInFlightRecipients;
+
+        private LaneStatus(@Nonnull Lane lane) {
+            mTenant = lane.mTenantName;
+            mWeight = lane.mWeight;
+            mQueuedMessages = lane.mMessages.size();
+            mInFlightRecipients = lane.mInFlight;
+        }
+
+        /**
+         * @return the credentials alias of the tenant, or a hash of its platform auth key if it has no alias.
+         */
+        @Nonnull
+        public String getTenant() {
+            return mTenant;
+        }
+
+        public int getWeight() {
+            return mWeight;
+        }
+
+        public int getQueuedMessages() {
+            return mQueuedMessages;
+        }
+
+        public int getInFlightRecipients() {
+            return mInFlightRecipients;
+        }
+    }
+
+    @Inject
+    public FairMessageQueue(Config configuration) {
+        mConfiguration = configuration;
+        mQuantum = Math.max(1, ConfigHelper.getLong(configuration, CONFIG_QUANTUM, 1000));
+        mDefaultWeight = Math.max(1, ConfigHelper.getInt(configuration, CONFIG_DEFAULT_WEIGHT, 1));
+        mMaxInFlight = Math.max(0, ConfigHelper.getInt(configuration, CONFIG_MAX_IN_FLIGHT, 0));
+    }
+
+    /**
+     * Add a message to the end of its tenant lane.
+     *
+     * @param message the message to queue.
+     */
+    public void add(@Nonnull Message message) {
+        mLock.lock();
+        try {
+            Lane lane = getLane(message);
+            if (lane.mMessages.isEmpty()) {
+                mActiveLanes.addLast(lane);
+            }
+            lane.mMessages.addLast(message);
+            mSize++;
+            mLaneReady.signal();
+
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove a queued message.
+     *
+     * @param message the message to remove.
+     * @return true if the message was queued.
+     */
+    public boolean remove(@Nonnull Message message) {
+        mLock.lock();
+        try {
+            Lane lane = mLanes.get(getTenantKey(message));
+            if (lane == null || !lane.mMessages.remove(message)) {
+                return false;
+            }
+
+            mSize--;
+            if (lane.mMessages.isEmpty()) {
+                deactivateLane(lane);
+            }
+            return true;
+
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int size() {
+        mLock.lock();
+        try {
+            return mSize;
+
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the status of each tenant lane with messages queued or in flight.
+     */
+    @Nonnull
+    public List<LaneStatus> getLaneStatus() {
+        mLock.lock();
+        try {
+            List<LaneStatus> laneStatus = new ArrayList<>(mLanes.size());
+            for (Lane lane : mLanes.values()) {
+                laneStatus.add(new LaneStatus(lane));
+            }
+            return laneStatus;
+
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @param messageId the message id.
+     * @return the recipients of the message in flight, or 0 if it is not being dispatched.
+     */
+    public int getInFlightRecipients(long messageId) {
+        mLock.lock();
+        try {
+            Integer recipientCount = mInFlightMessages.get(messageId);
+            return recipientCount != null ? recipientCount : 0;
+
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Take the next message in deficit round robin order, waiting until there is one whose tenant is
+     * below its in-flight limit.
+     *
+     * @return the next message to dispatch.
+     */
+    @Nonnull
+    public Message take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (true) {
+                Message message = pollLanes();
+                if (message != null) {
+                    return message;
+                }
+
+                if (mActiveLanes.isEmpty()) {
+                    mLaneReady.await();
+                } else {
+                    mLaneReady.await(IN_FLIGHT_WAIT_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Take the next message in deficit round robin order, waiting up to a timeout.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit    the timeout unit.
+     * @return the next message to dispatch, or null if there was none before the timeout.
+     */
+    @Nullable
+    public Message poll(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (true) {
+                Message message = pollLanes();
+                long remainingNanos = deadlineNanos - System.nanoTime();
+                if (message != null || remainingNanos <= 0) {
+                    return message;
+                }
+                mLaneReady.awaitNanos(Math.min(remainingNanos, TimeUnit.MILLISECONDS.toNanos(IN_FLIGHT_WAIT_MS)));
+            }
+
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @param message the message about to be dispatched.
+     * @return the number of recipients the message can dispatch, within its tenant in-flight limit.
+     */
+    public int getDispatchAllowance(@Nonnull Message message) {
+        if (mMaxInFlight == 0) {
+            return Integer.MAX_VALUE;
+        }
+
+        mLock.lock();
+        try {
+            Lane lane = mLanes.get(getTenantKey(message));
+            return lane != null ? Math.max(0, mMaxInFlight - lane.mInFlight) : mMaxInFlight;
+
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Count the recipients of a message as in flight for its tenant, until {@link #finishDispatch(Message)}.
+     *
+     * @param message        the dispatched message.
+     * @param recipientCount the number of recipients dispatched.
+     */
+    public void startDispatch(@Nonnull Message message, int recipientCount) {
+        mLock.lock();
+        try {
+            Integer previousCount = mInFlightMessages.put(message.getId(), recipientCount);
+            getLane(message).mInFlight += recipientCount - (previousCount != null ? previousCount : 0);
+
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Release the recipients of a message that were in flight, once its platform response has returned.
+     *
+     * @param message the dispatched message.
+     */
+    public void finishDispatch(@Nonnull Message message) {
+        mLock.lock();
+        try {
+            Integer recipientCount = mInFlightMessages.remove(message.getId());
+            if (recipientCount != null) {
+                Lane lane = getLane(message);
+                lane.mInFlight = Math.max(0, lane.mInFlight - recipientCount);
+                pruneLane(lane);
+                mLaneReady.signalAll();
+            }
+
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Visit the active lanes in turn, crediting each lane once per turn, until a lane has the credit for
+     * its next message. Lanes at their in-flight limit are passed over without credit.
+     *
+     * @return the next message, or null if every active lane is at its in-flight limit.
+     */
+    private Message pollLanes() {
+        int blockedLanes = 0;
+        while (!mActiveLanes.isEmpty() && blockedLanes < mActiveLanes.size()) {
+            Lane lane = mActiveLanes.peekFirst();
+            if (mMaxInFlight > 0 && lane.mInFlight >= mMaxInFlight) {
+                mActiveLanes.addLast(mActiveLanes.pollFirst());
+                blockedLanes++;
+                continue;
+            }
+            blockedLanes = 0;
+
+            if (!lane.mCredited) {
+                lane.mDeficit += mQuantum * lane.mWeight;
+                lane.mCredited = true;
+            }
+
+            long cost = getDispatchCost(lane.mMessages.peekFirst());
+            if (cost <= lane.mDeficit) {
+                Message message = lane.mMessages.pollFirst();
+                lane.mDeficit -= cost;
+                mSize--;
+                if (lane.mMessages.isEmpty()) {
+                    deactivateLane(lane);
+                }
+                return message;
+            }
+
+            // Not enough credit this turn, so move on to the next lane.
+            lane.mCredited = false;
+            mActiveLanes.addLast(mActiveLanes.pollFirst());
+        }
+        return null;
+    }
+
+    /**
+     * Remove an empty lane from the round robin. Credit is not kept while a lane is idle.
+     */
+    private void deactivateLane(@Nonnull Lane lane) {
+        mActiveLanes.remove(lane);
+        lane.mDeficit = 0;
+        lane.mCredited = false;
+        pruneLane(lane);
+    }
+
+    /**
+     * Drop a lane with nothing queued or in flight, so that lanes are only kept for tenants that are sending.
+     */
+    private void pruneLane(@Nonnull Lane lane) {
+        if (lane.mMessages.isEmpty() && lane.mInFlight == 0) {
+            mLanes.remove(lane.mTenantKey);
+        }
+    }
+
+    /**
+     * @return the number of recipients the message is expected to dispatch.
+     */
+    private long getDispatchCost(@Nonnull Message message) {
+        long outstandingCount = Math.max(1, message.getPendingCount() + message.getRetryingCount());
+        return mMaxInFlight > 0 ? Math.min(outstandingCount, mMaxInFlight) : outstandingCount;
+    }
+
+    @Nonnull
+    private Lane getLane(@Nonnull Message message) {
+        String tenantKey = getTenantKey(message);
+        Lane lane = mLanes.get(tenantKey);
+        if (lane == null) {
+            lane = new Lane(tenantKey, getTenantName(message.getCredentials()), getWeight(message.getCredentials()));
+            mLanes.put(tenantKey, lane);
+        }
+        return lane;
+    }
+
+    private int getWeight(Credentials credentials) {
+        if (credentials == null || credentials.getAlias() == null) {
+            return mDefaultWeight;
+        }
+
+        String weightPath = CONFIG_WEIGHTS + ".\"" + credentials.getAlias() + "\"";
+        return Math.max(1, ConfigHelper.getInt(mConfiguration, weightPath, mDefaultWeight));
+    }
+
+    /**
+     * Name a tenant for reporting, without exposing its platform auth key.
+     */
+    @Nonnull
+    private static String getTenantName(Credentials credentials) {
+        if (credentials == null) {
+            return "none";
+
+        } else if (credentials.getAlias() != null) {
+            return credentials.getAlias();
+
+        } else if (credentials.getAuthKey() != null) {
+            return "unregistered-" + Integer.toHexString(credentials.getAuthKey().hashCode());
+        }
+        return "unregistered";
+    }
+
+    /**
+     * A tenant is identified by the alias of its registered credentials, or otherwise by the platform auth
+     * key, so that messages sent with separately saved copies of the same credentials share a lane.
+     */
+    @Nonnull
+    private static String getTenantKey(@Nonnull Message message) {
+        Credentials credentials = message.getCredentials();
+        if (credentials == null) {
+            return NO_TENANT;
+
+        } else if (credentials.getAlias() != null) {
+            return "alias:" + credentials.getAlias();
+        }
+        return "key:" + credentials.getAuthKey();
+    }
+}
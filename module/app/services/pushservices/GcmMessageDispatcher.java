@@ -7,10 +7,13 @@ import com.google.inject.Inject;
 import enums.pushservices.FailureType;
 import enums.pushservices.PlatformType;
 import enums.pushservices.RecipientState;
+import enums.pushservices.RecipientType;
 import exceptions.pushservices.PlatformEndpointException;
 import helpers.pushservices.MessageHelper;
 import helpers.pushservices.PlatformHelper;
 import interfaces.pushservices.PlatformResponse;
+import interfaces.pushservices.RetryPolicy;
+import models.pushservices.app.RecipientTable;
 import models.pushservices.app.UpdatedRecipient;
 import models.pushservices.db.Message;
 import models.pushservices.db.PlatformFailure;
@@ -21,10 +24,14 @@ import play.libs.ws.WSResponse;
 import serializers.pushservices.GcmMessageSerializer;
 
 import javax.annotation.Nonnull;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Sends GCM alerts to a batch of given tokens and data.
@@ -35,16 +42,21 @@ import java.util.concurrent.ConcurrentHashMap;
  * - The keys and string data to send.
  */
 public class GcmMessageDispatcher extends PlatformMessageDispatcher {
-    private static final int ENDPOINT_REQUEST_TIMEOUT_SECONDS = 60 * 1000;
+    private static final Duration ENDPOINT_REQUEST_TIMEOUT = Duration.ofSeconds(60);
     private static final int MESSAGE_RECIPIENT_BATCH_SIZE = 1000;
+    private static final int MAX_CONCURRENT_BATCHES = 4;
     private WSClient mWsClient;
+    private RetryPolicy mRetryPolicy;
+    private DispatchMetrics mDispatchMetrics;
 
     private GcmMessageDispatcher() {
     }
 
     @Inject
-    protected GcmMessageDispatcher(WSClient wsClient) {
+    protected GcmMessageDispatcher(WSClient wsClient, RetryPolicy retryPolicy, DispatchMetrics dispatchMetrics) {
         mWsClient = wsClient;
+        mRetryPolicy = retryPolicy;
+        mDispatchMetrics = dispatchMetrics;
     }
 
     /**
@@ -62,6 +74,30 @@ public class GcmMessageDispatcher extends PlatformMessageDispatcher {
         return PlatformType.SERVICE_GCM;
     }
 
+    /**
+     * Open keep-alive connections to the GCM endpoint ahead of the first dispatch, so that it does not
+     * pay for the TLS handshake. The requests are sent together, so that each opens a connection of its
+     * own in the client pool. Any HTTP response means the connection was established.
+     *
+     * @param connectionCount the number of connections to open.
+     * @return the number of connections established.
+     */
+    @Nonnull
+    public CompletionStage<Integer> warmConnections(int connectionCount) {
+        List<CompletableFuture<Boolean>> requests = new ArrayList<>(connectionCount);
+        for (int i = 0; i < connectionCount; i++) {
+            requests.add(mWsClient
+                    .url(getPlatform().url)
+                    .setRequestTimeout(ENDPOINT_REQUEST_TIMEOUT)
+                    .head()
+                    .handle((response, exception) -> exception == null)
+                    .toCompletableFuture());
+        }
+
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> (int) requests.stream().filter(CompletableFuture::join).count());
+    }
+
     /**
      * Dispatch a message synchronously to the Google GCM service.
      *
@@ -70,104 +106,36 @@ public class GcmMessageDispatcher extends PlatformMessageDispatcher {
      */
     private void dispatchMessageInternal(@Nonnull Message message, @Nonnull PlatformResponse responseListener) {
         final Date currentTime = new Date();
+        final RecipientTable recipients = message.getRecipientTable();
 
         // Return error on no recipients.
-        if (message.getRecipients() == null || message.getRecipients().isEmpty()) {
+        if (recipients == null || recipients.size() == 0) {
             PlatformFailure failure = new PlatformFailure(FailureType.MESSAGE_REGISTRATIONS_MISSING,
                     PlatformHelper.getGcmFailureName(FailureType.MESSAGE_REGISTRATIONS_MISSING), currentTime);
-
-            for (Recipient recipient : message.getRecipients()) {
-                recipient.setState(RecipientState.STATE_FAILED);
-                recipient.setFailure(failure);
-            }
             responseListener.messageFailure(message, failure);
             return;
         }
 
         // Return error on no platform.
         if (message.getCredentials() == null || message.getCredentials().getPlatformType() == null) {
-            PlatformFailure failure = new PlatformFailure(FailureType.PLATFORM_AUTH_INVALID,
-                    PlatformHelper.getGcmFailureName(FailureType.PLATFORM_AUTH_INVALID), currentTime);
+            String failureName = PlatformHelper.getGcmFailureName(FailureType.PLATFORM_AUTH_INVALID);
 
-            for (Recipient recipient : message.getRecipients()) {
-                recipient.setState(RecipientState.STATE_FAILED);
-                recipient.setFailure(failure);
+            // Each recipient row references a failure of its own.
+            for (int row = 0; row < recipients.size(); row++) {
+                if (MessageHelper.isRecipientPending(recipients, row)) {
+                    MessageHelper.setRecipientState(message, recipients, row, RecipientState.STATE_FAILED);
+                    recipients.setFailure(row, new PlatformFailure(FailureType.PLATFORM_AUTH_INVALID, failureName, currentTime));
+                }
             }
-            responseListener.messageFailure(message, failure);
+            responseListener.messageFailure(message, new PlatformFailure(FailureType.PLATFORM_AUTH_INVALID, failureName, currentTime));
             return;
         }
 
-        // Split the recipients into "batches" of 1000 as it could be over the max size for a GCM message.
-        final Map<Integer, List<Recipient>> recipientBatches = batchMessageRecipients(message);
-        Set<Integer> processedBatches = new HashSet<>();
-        ConcurrentHashMap<Integer, GcmResponse> messageBatchResponses = new ConcurrentHashMap<>();
-
-        // Iterate through each recipient batch and get a GcmResponse for it. Then join all batches.
-        for (Map.Entry<Integer, List<Recipient>> batchEntry : recipientBatches.entrySet()) {
-            final int batchNumber = batchEntry.getKey();
-            final List<Recipient> batch = batchEntry.getValue();
-
-            // Send each message and save the response. When all responses are returned, combine them and call listener.
-            sendMessage(message, batch)
-                    .thenAccept(response -> {
-                        processedBatches.add(batchNumber);
-
-                        GcmResponse gcmResponse = parseMessageResponse(response);
-                        messageBatchResponses.put(batchNumber, gcmResponse);
-                        Logger.debug(String.format("Finished parsing GCM Response for batch %d", batchNumber));
-
-                        // If all the provider responses have returned, combine all and return the result.
-                        if (processedBatches.size() == recipientBatches.size()) {
-                            MessageDispatchResult result = combineResponses(recipientBatches, messageBatchResponses, message.getMaximumRetries());
-                            responseListener.messageSuccess(message, result.completedRecipients, result.failedRecipients,
-                                    result.recipientsToUpdate, result.recipientsToRetry);
-                        }
-
-                    }).exceptionally(
-
-                    e -> {
-                        PlatformFailure newFailure = new PlatformFailure(FailureType.ERROR_UNKNOWN,
-                                PlatformHelper.getGcmFailureName(FailureType.ERROR_UNKNOWN), new Date());
-
-                        if (e instanceof PlatformEndpointException) {
-                            PlatformEndpointException exception = (PlatformEndpointException) e;
-
-                            for (Recipient recipient : message.getRecipients()) {
-                                int statusCode = exception.statusCode;
-
-                                if (statusCode == 400) {
-                                    recipient.setState(RecipientState.STATE_FAILED);
-                                    newFailure = new PlatformFailure(FailureType.MESSAGE_PAYLOAD_INVALID,
-                                            PlatformHelper.getGcmFailureName(FailureType.MESSAGE_PAYLOAD_INVALID));
-
-                                } else if (statusCode == 401) {
-                                    recipient.setState(RecipientState.STATE_FAILED);
-                                    newFailure = new PlatformFailure(FailureType.PLATFORM_AUTH_INVALID,
-                                            PlatformHelper.getGcmFailureName(FailureType.PLATFORM_AUTH_INVALID));
-
-                                } else if (statusCode == 420) {
-                                    MessageHelper.setRecipientRetry(getPlatform(), recipient, message.getMaximumRetries());
-                                    newFailure = new PlatformFailure(FailureType.RECIPIENT_RATE_EXCEEDED,
-                                            PlatformHelper.getGcmFailureName(FailureType.RECIPIENT_RATE_EXCEEDED));
-
-                                } else {
-                                    recipient.setState(RecipientState.STATE_FAILED);
-                                    newFailure = new PlatformFailure(FailureType.ERROR_UNKNOWN,
-                                            PlatformHelper.getGcmFailureName(FailureType.ERROR_UNKNOWN));
-                                }
-
-                                if (recipient.getPlatformFailure() == null) {
-                                    recipient.setFailure(newFailure);
-                                }
-                            }
-                        }
-
-                        if (processedBatches.size() == recipientBatches.size()) {
-                            responseListener.messageFailure(message, newFailure);
-                        }
-
-                        return null;
-                    });
+        // Split the recipient rows into "batches" of 1000 as it could be over the max size for a GCM message.
+        // Only a few batches are in flight at once, so that the batches not yet sent can still be skipped.
+        BatchDispatch batchDispatch = new BatchDispatch(message, batchMessageRecipients(recipients), responseListener);
+        for (int i = 0; i < MAX_CONCURRENT_BATCHES; i++) {
+            batchDispatch.sendNextBatch();
         }
     }
 
@@ -197,47 +165,54 @@ public class GcmMessageDispatcher extends PlatformMessageDispatcher {
 
     /**
      * Internally send a message using the GCM protocol to google. If a message contains
-     * more than 1000 registration ids, it'll split that into multiples messages.
+     * more than 1000 registration ids, it'll split that into multiples messages. Each topic or
+     * condition is sent as a message of its own.
      *
-     * @param message the message.
-     * @return A list of organised recipients in batches of 1000.
+     * @param recipients the in-flight message recipients.
+     * @return Recipient rows being processed, organised in batches of 1000.
      */
     @Nonnull
-    private Map<Integer, List<Recipient>> batchMessageRecipients(@Nonnull Message message) {
-        HashMap<Integer, List<Recipient>> sortedBatches = new HashMap<>();
-
-        // Add each registration_id to the message in batches of 1000.
-        List<Recipient> totalMessageRecipients = message.getRecipients();
-        if (totalMessageRecipients != null && !totalMessageRecipients.isEmpty()) {
+    private Map<Integer, int[]> batchMessageRecipients(@Nonnull RecipientTable recipients) {
+        HashMap<Integer, int[]> sortedBatches = new HashMap<>();
+        List<int[]> targetBatches = new ArrayList<>();
 
-            List<Recipient> currentBatchRecipients = new ArrayList<>();
-            int batchNumber = 1;
-            int recipientCount = 0;
+        int[] currentBatchRows = new int[MESSAGE_RECIPIENT_BATCH_SIZE];
+        int batchNumber = 1;
+        int recipientCount = 0;
 
-            for (Recipient recipient : totalMessageRecipients) {
-                if (MessageHelper.isRecipientCoolingOff(recipient)) {
-                    continue;
-                }
+        for (int row = 0; row < recipients.size(); row++) {
+            if (recipients.getState(row) != RecipientState.STATE_PROCESSING) {
+                continue;
+            }
 
-                // If there's ~1000 registrations, create a new batch
-                if (recipientCount == MESSAGE_RECIPIENT_BATCH_SIZE && !currentBatchRecipients.isEmpty()) {
-                    sortedBatches.put(batchNumber, currentBatchRecipients);
+            // Topics and conditions are sent in a request of their own.
+            if (recipients.getType(row) != RecipientType.TYPE_TOKEN) {
+                targetBatches.add(new int[]{row});
+                continue;
+            }
 
-                    // Reset counters and batch recipients.
-                    currentBatchRecipients = new ArrayList<>();
-                    recipientCount = 0;
-                    batchNumber++;
-                }
+            // If there's ~1000 registrations, create a new batch
+            if (recipientCount == MESSAGE_RECIPIENT_BATCH_SIZE) {
+                sortedBatches.put(batchNumber, currentBatchRows);
 
-                currentBatchRecipients.add(recipient);
-                recipientCount += 1;
+                // Reset counters and batch recipients.
+                currentBatchRows = new int[MESSAGE_RECIPIENT_BATCH_SIZE];
+                recipientCount = 0;
+                batchNumber++;
             }
 
-            // When done, add the current batch recipients to the map;
-            if (!currentBatchRecipients.isEmpty()) {
-                sortedBatches.put(batchNumber, currentBatchRecipients);
-            }
+            currentBatchRows[recipientCount] = row;
+            recipientCount += 1;
+        }
 
+        // When done, add the current batch recipients to the map;
+        if (recipientCount > 0) {
+            sortedBatches.put(batchNumber, Arrays.copyOf(currentBatchRows, recipientCount));
+            batchNumber++;
+        }
+
+        for (int[] targetBatch : targetBatches) {
+            sortedBatches.put(batchNumber++, targetBatch);
         }
         return sortedBatches;
     }
@@ -246,15 +221,29 @@ public class GcmMessageDispatcher extends PlatformMessageDispatcher {
      * Send a message and get a synchronous application response in return.
      *
      * @param message    the message or message part to send.
-     * @param recipients blocks of 1000 recipients inside a collection.
+     * @param recipients the in-flight message recipients.
+     * @param batch      a block of up to 1000 recipient rows.
      * @return WSResponse google request response.
      */
     @Nonnull
-    private CompletionStage<WSResponse> sendMessage(@Nonnull Message message, @Nonnull List<Recipient> recipients) {
-        Logger.info(String.format("Sending message %d with %d recipients to the Google GCM endpoint", message.getId(), recipients.size()));
+    private CompletionStage<WSResponse> sendMessage(@Nonnull Message message, @Nonnull RecipientTable recipients, @Nonnull int[] batch) {
+        Logger.info(String.format("Sending message %d with %d recipients to the Google GCM endpoint", message.getId(), batch.length));
+
+        GcmMessageSerializer messageSerializer;
+        if (batch.length == 1 && recipients.getType(batch[0]) != RecipientType.TYPE_TOKEN) {
+            messageSerializer = new GcmMessageSerializer(recipients.getType(batch[0]), recipients.getToken(batch[0]));
+
+        } else {
+            // Tokens are only decoded from the token table for the duration of the request.
+            List<String> tokens = new ArrayList<>(batch.length);
+            for (int row : batch) {
+                tokens.add(recipients.getToken(row));
+            }
+            messageSerializer = new GcmMessageSerializer(tokens);
+        }
 
         String jsonBody = new GsonBuilder()
-                .registerTypeAdapter(Message.class, new GcmMessageSerializer(recipients))
+                .registerTypeAdapter(Message.class, messageSerializer)
                 .create()
                 .toJson(message);
 
@@ -262,7 +251,7 @@ public class GcmMessageDispatcher extends PlatformMessageDispatcher {
                 .url(message.getCredentials().getPlatformType().url)
                 .setContentType("application/json")
                 .setHeader("Authorization", String.format("key=%s", message.getCredentials().getAuthKey()))
-                .setRequestTimeout(ENDPOINT_REQUEST_TIMEOUT_SECONDS)
+                .setRequestTimeout(ENDPOINT_REQUEST_TIMEOUT)
                 .setFollowRedirects(true)
                 .post(jsonBody);
     }
@@ -270,14 +259,16 @@ public class GcmMessageDispatcher extends PlatformMessageDispatcher {
     /**
      * Combine a list of Google response for a given list of responses for messages sent.
      *
-     * @param recipientBatches list of recipient batches included in the message-set.
+     * @param message          the message that was sent.
+     * @param recipientBatches recipient row batches included in the message-set.
      * @param gcmResponses     A list of received GoogleResponses.
      * @return The master GoogleResponse for the original message send back to the client.
      */
     @Nonnull
-    private MessageDispatchResult combineResponses(@Nonnull Map<Integer, List<Recipient>> recipientBatches,
-                                                   @Nonnull Map<Integer, GcmResponse> gcmResponses, int maxRetries) {
+    private MessageDispatchResult combineResponses(@Nonnull Message message, @Nonnull Map<Integer, int[]> recipientBatches,
+                                                   @Nonnull Map<Integer, GcmResponse> gcmResponses) {
         MessageDispatchResult messageDispatchResult = new MessageDispatchResult();
+        RecipientTable recipients = message.getRecipientTable();
         Date date = new Date();
 
         // Iterate over each registration result from each message sent.
@@ -285,54 +276,220 @@ public class GcmMessageDispatcher extends PlatformMessageDispatcher {
             int batchNumber = responseEntry.getKey();
 
             GcmResponse response = responseEntry.getValue();
-            List<Recipient> batchRecipients = recipientBatches.get(batchNumber);
+            int[] batchRows = recipientBatches.get(batchNumber);
+
+            // A topic or condition batch has a single top-level result.
+            if (batchRows.length == 1 && recipients.getType(batchRows[0]) != RecipientType.TYPE_TOKEN) {
+                applyRecipientResult(message, batchRows[0], response.topicMessageId, null, response.error, date, messageDispatchResult);
+                continue;
+            }
+
+            if (response.results == null) {
+                continue;
+            }
 
             int recipientIndex = 0;
             for (GcmResponse.ResultData resultData : response.results) {
-                Recipient recipient = batchRecipients.get(recipientIndex);
+                applyRecipientResult(message, batchRows[recipientIndex], resultData.messageId, resultData.registrationId,
+                        resultData.error, date, messageDispatchResult);
 
-                // A successful message.
-                if (resultData.messageId != null && !resultData.messageId.isEmpty()) {
-                    recipient.setState(RecipientState.STATE_COMPLETE);
-                    messageDispatchResult.completedRecipients.add(recipient);
-                }
+                // Bump the master registration counter for all parts.
+                recipientIndex++;
+            }
+        }
+        return messageDispatchResult;
+    }
 
-                // Check for changed registration token.
-                if (resultData.registrationId != null && !resultData.registrationId.isEmpty()) {
-                    recipient.setState(RecipientState.STATE_COMPLETE);
-                    Recipient updatedRecipient = new Recipient(resultData.registrationId);
-                    messageDispatchResult.recipientsToUpdate.add(new UpdatedRecipient(recipient, updatedRecipient));
-                }
+    /**
+     * Apply the platform result for a single recipient, or a single topic or condition.
+     */
+    private void applyRecipientResult(@Nonnull Message message, int row, String messageId, String registrationId, String error,
+                                      @Nonnull Date date, @Nonnull MessageDispatchResult messageDispatchResult) {
+        RecipientTable recipients = message.getRecipientTable();
+
+        // A successful message.
+        if (messageId != null && !messageId.isEmpty()) {
+            MessageHelper.setRecipientState(message, recipients, row, RecipientState.STATE_COMPLETE);
+            messageDispatchResult.completedCount++;
+        }
+
+        // Check for changed registration token.
+        if (registrationId != null && !registrationId.isEmpty()) {
+            MessageHelper.setRecipientState(message, recipients, row, RecipientState.STATE_COMPLETE);
+            Recipient updatedRecipient = new Recipient(registrationId);
+            messageDispatchResult.recipientsToUpdate.add(new UpdatedRecipient(recipients.toRecipient(row), updatedRecipient));
+        }
 
-                // Check for recipient errors.
-                if (resultData.error != null && !resultData.error.isEmpty()) {
-                    FailureType failureType = PlatformHelper.getGcmFailureType(resultData.error);
-                    PlatformFailure platformFailure = new PlatformFailure(failureType, resultData.error, date);
+        // Check for recipient errors.
+        if (error != null && !error.isEmpty()) {
+            FailureType failureType = PlatformHelper.getGcmFailureType(error);
+            PlatformFailure platformFailure = new PlatformFailure(failureType, error, date);
 
-                    if (failureType.isFatal) {
-                        recipient.setState(RecipientState.STATE_FAILED);
-                    } else {
-                        MessageHelper.setRecipientRetry(getPlatform(), recipient, maxRetries);
-                    }
+            if (failureType.isFatal) {
+                MessageHelper.setRecipientState(message, recipients, row, RecipientState.STATE_FAILED);
+            } else {
+                setRecipientRetry(message, row, failureType);
+                messageDispatchResult.retryCount++;
+            }
+
+            if (recipients.getFailure(row) == null) {
+                recipients.setFailure(row, platformFailure);
+            }
+
+            // Add the error for that particular registration
+            messageDispatchResult.failedRecipients.add(recipients.toRecipient(row));
+        }
+    }
+
+    /**
+     * Mark a recipient with a recoverable failure to retry after the delay picked by the {@link RetryPolicy}.
+     */
+    private void setRecipientRetry(@Nonnull Message message, int row, @Nonnull FailureType failureType) {
+        RecipientTable recipients = message.getRecipientTable();
+        long retryDelayMillis = mRetryPolicy.getRetryDelayMillis(message.getCredentials().getPlatformType(), failureType,
+                recipients.getSendAttemptCount(row) + 1);
+        MessageHelper.setRecipientRetry(message, recipients, row, retryDelayMillis);
+    }
+
+    /**
+     * The batches of a single dispatch. Each batch is sent once an earlier batch has returned, with up to
+     * {@link #MAX_CONCURRENT_BATCHES} in flight, so that a cancelled or expired message stops sending the
+     * batches that are left. Once every batch has returned, the responses are combined and the listener is
+     * called once.
+     */
+    private class BatchDispatch {
+        private final Message mMessage;
+        private final RecipientTable mRecipients;
+        private final Map<Integer, int[]> mRecipientBatches;
+        private final PlatformResponse mResponseListener;
+        private final Queue<Integer> mUnsentBatches;
+        private final Map<Integer, GcmResponse> mBatchResponses = new ConcurrentHashMap<>();
+        private final AtomicReference<PlatformFailure> mBatchFailure = new AtomicReference<>();
+        private final AtomicInteger mRemainingBatches;
+
+        private BatchDispatch(@Nonnull Message message, @Nonnull Map<Integer, int[]> recipientBatches,
+                              @Nonnull PlatformResponse responseListener) {
+            mMessage = message;
+            mRecipients = message.getRecipientTable();
+            mRecipientBatches = recipientBatches;
+            mResponseListener = responseListener;
+            mUnsentBatches = new ConcurrentLinkedQueue<>(new TreeSet<>(recipientBatches.keySet()));
+            mRemainingBatches = new AtomicInteger(recipientBatches.size());
+        }
 
-                    if (recipient.getPlatformFailure() == null) {
-                        recipient.setFailure(platformFailure);
+        /**
+         * Send the next unsent batch. Batches are no longer sent once the message is cancelled, or has expired.
+         */
+        private void sendNextBatch() {
+            Integer batchNumber;
+            while ((batchNumber = mUnsentBatches.poll()) != null) {
+                final int[] batch = mRecipientBatches.get(batchNumber);
+
+                boolean hasExpired = MessageHelper.hasMessageExpired(mMessage, System.currentTimeMillis());
+                if (mMessage.isCancelled() || hasExpired) {
+                    RecipientState skippedState = mMessage.isCancelled() ? RecipientState.STATE_CANCELLED : RecipientState.STATE_EXPIRED;
+                    for (int row : batch) {
+                        MessageHelper.setRecipientState(mMessage, mRecipients, row, skippedState);
                     }
+                    finishBatch();
+                    continue;
+                }
+
+                // Send the batch and save the response. The next batch is sent when this one returns.
+                final int sentBatchNumber = batchNumber;
+                long requestStartNanos = mDispatchMetrics.requestStarted();
+                sendMessage(mMessage, mRecipients, batch)
+                        .whenComplete((response, exception) -> mDispatchMetrics.requestFinished(requestStartNanos))
+                        .thenAccept(response -> {
+                            mBatchResponses.put(sentBatchNumber, parseMessageResponse(response));
+                            Logger.debug(String.format("Finished parsing GCM Response for batch %d", sentBatchNumber));
+                        })
+                        .exceptionally(e -> {
+                            failBatch(batch, e);
+                            return null;
+                        })
+                        .thenRun(() -> {
+                            finishBatch();
+                            sendNextBatch();
+                        });
+                return;
+            }
+        }
+
+        /**
+         * Apply the failure of a batch the platform did not accept to its recipients.
+         */
+        private void failBatch(@Nonnull int[] batch, @Nonnull Throwable e) {
+            FailureType failureType = FailureType.ERROR_UNKNOWN;
+            Date failureTime = new Date();
+
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof PlatformEndpointException) {
+                PlatformEndpointException exception = (PlatformEndpointException) cause;
+                int statusCode = exception.statusCode;
+
+                if (statusCode == 400) {
+                    failureType = FailureType.MESSAGE_PAYLOAD_INVALID;
+
+                } else if (statusCode == 401) {
+                    failureType = FailureType.PLATFORM_AUTH_INVALID;
 
-                    // Add the error for that particular registration
-                    messageDispatchResult.failedRecipients.add(recipient);
+                } else if (statusCode == 420) {
+                    failureType = FailureType.RECIPIENT_RATE_EXCEEDED;
+
+                } else if (statusCode >= 500) {
+                    failureType = FailureType.TEMPORARILY_UNAVAILABLE;
                 }
 
-                // Bump the master registration counter for all parts.
-                recipientIndex++;
+            } else {
+                // Timeouts and connection errors leave the batch unsent, so it is retried like an unavailable platform.
+                Logger.warn(String.format("Error sending message %d to the GCM endpoint: %s", mMessage.getId(), cause.getMessage()));
+                failureType = FailureType.TEMPORARILY_UNAVAILABLE;
+            }
+
+            // Each recipient row references a failure of its own.
+            String failureName = PlatformHelper.getGcmFailureName(failureType);
+            for (int row : batch) {
+                if (failureType == FailureType.RECIPIENT_RATE_EXCEEDED || failureType == FailureType.TEMPORARILY_UNAVAILABLE) {
+                    setRecipientRetry(mMessage, row, failureType);
+                } else {
+                    MessageHelper.setRecipientState(mMessage, mRecipients, row, RecipientState.STATE_FAILED);
+                }
+
+                if (mRecipients.getFailure(row) == null) {
+                    mRecipients.setFailure(row, new PlatformFailure(failureType, failureName, failureTime));
+                }
             }
+
+            mBatchFailure.set(new PlatformFailure(failureType, PlatformHelper.getGcmFailureName(failureType), failureTime));
+        }
+
+        /**
+         * Report the outcome of the dispatch once every batch has returned. The responses of the batches that
+         * were sent are always applied to their recipients first. The message only fails as a whole when a batch
+         * failed and no batch was accepted by the platform, so the result does not depend on the order batches
+         * return in.
+         */
+        private void finishBatch() {
+            // Only the last batch to return reports, whichever thread it returns on.
+            if (mRemainingBatches.decrementAndGet() != 0) {
+                return;
+            }
+
+            MessageDispatchResult result = combineResponses(mMessage, mRecipientBatches, mBatchResponses);
+            PlatformFailure batchFailure = mBatchFailure.get();
+            if (batchFailure != null && mBatchResponses.isEmpty()) {
+                mResponseListener.messageFailure(mMessage, batchFailure);
+                return;
+            }
+            mResponseListener.messageSuccess(mMessage, result.completedCount, result.failedRecipients,
+                    result.recipientsToUpdate, result.retryCount);
         }
-        return messageDispatchResult;
     }
 
     private class MessageDispatchResult {
-        List<Recipient> completedRecipients = new ArrayList<>();
-        List<Recipient> recipientsToRetry = new ArrayList<>();
+        int completedCount;
+        int retryCount;
         List<UpdatedRecipient> recipientsToUpdate = new ArrayList<>();
         List<Recipient> failedRecipients = new ArrayList<>();
     }
@@ -0,0 +1,91 @@
+package services.pushservices;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import dao.pushservices.MessagesDao;
+import helpers.pushservices.ConfigHelper;
+import main.pushservices.Constants;
+import models.pushservices.db.Message;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the message already queued with an idempotency key, so that a repeated submission of the
+ * same event returns the existing message instead of saving and sending it again.
+ * <p>
+ * Recently queued keys are held in a bounded in-memory cache for the configured window. Keys that
+ * are not in the cache are looked up in the database, within the same window. A key is released from
+ * a retained message once the window has passed, so that it can be queued again.
+ * Configure with:
+ * <pre>
+ * pushservices.idempotency.cacheSize = 10000
+ * pushservices.idempotency.windowSeconds = 3600
+ * </pre>
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class IdempotencyKeyRegistry {
+    private static final String CONFIG_CACHE_SIZE = Constants.CONFIG_IDEMPOTENCY + ".cacheSize";
+    private static final String CONFIG_WINDOW_SECONDS = Constants.CONFIG_IDEMPOTENCY + ".windowSeconds";
+
+    private final MessagesDao mMessagesDao;
+    private final Cache<String, Message> mRecentMessages;
+    private final long mWindowSeconds;
+
+    @Inject
+    public IdempotencyKeyRegistry(MessagesDao messagesDao, Config configuration) {
+        mMessagesDao = messagesDao;
+        mWindowSeconds = Math.max(1, ConfigHelper.getLong(configuration, CONFIG_WINDOW_SECONDS, 3600));
+        mRecentMessages = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(1, ConfigHelper.getInt(configuration, CONFIG_CACHE_SIZE, 10000)))
+                .expireAfterWrite(mWindowSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Find the message queued with an idempotency key.
+     *
+     * @param idempotencyKey the message idempotency key, if it has one.
+     * @return the existing message, or null if the key has not been queued.
+     */
+    @Nullable
+    public Message findMessage(@Nullable String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return null;
+        }
+
+        Message message = mRecentMessages.getIfPresent(idempotencyKey);
+        if (message != null) {
+            return message;
+        }
+
+        message = mMessagesDao.fetchMessage(idempotencyKey, mWindowSeconds);
+        if (message != null) {
+            mRecentMessages.put(idempotencyKey, message);
+
+        } else {
+            // The unique key index would otherwise reject the new message while the old one is retained.
+            mMessagesDao.releaseIdempotencyKey(idempotencyKey, mWindowSeconds);
+        }
+        return message;
+    }
+
+    /**
+     * Remember a queued message by its idempotency key.
+     *
+     * @param message the saved message.
+     */
+    public void addMessage(@Nonnull Message message) {
+        if (message.getIdempotencyKey() != null) {
+            mRecentMessages.put(message.getIdempotencyKey(), message);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package services.pushservices;
+
+import interfaces.pushservices.MetricsExporter;
+import models.pushservices.app.MetricsSnapshot;
+import play.Logger;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * The default {@link MetricsExporter}, which writes each metrics snapshot to the log on a single line.
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+public class LoggingMetricsExporter implements MetricsExporter {
+
+    @Override
+    public void export(@Nonnull MetricsSnapshot snapshot) {
+        StringJoiner values = new StringJoiner(", ");
+        for (Map.Entry<String, Number> value : snapshot.toValues().entrySet()) {
+            values.add(value.getKey() + "=" + value.getValue());
+        }
+        Logger.info(String.format("Push services metrics: %s.", values));
+    }
+}
@@ -0,0 +1,108 @@
+package services.pushservices;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import dao.pushservices.MessagesDao;
+import helpers.pushservices.ConfigHelper;
+import main.pushservices.Constants;
+import models.pushservices.db.Message;
+import play.Logger;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically takes the messages saved to the outbox with
+ * {@link TaskQueue#queueOutboxMessages(List, io.ebean.Transaction)} and queues them for dispatch, in chunks.
+ * Outbox rows are taken with <code>for update skip locked</code>, so any number of nodes can relay
+ * the same outbox.
+ * <p>
+ * Disabled by default. Configure with:
+ * <pre>
+ * pushservices.outbox.enabled = true
+ * pushservices.outbox.chunkSize = 500
+ * pushservices.outbox.intervalMillis = 1000
+ * </pre>
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class MessageOutboxRelay {
+    private static final String CONFIG_ENABLED = Constants.CONFIG_OUTBOX + ".enabled";
+    private static final String CONFIG_CHUNK_SIZE = Constants.CONFIG_OUTBOX + ".chunkSize";
+    private static final String CONFIG_INTERVAL_MILLIS = Constants.CONFIG_OUTBOX + ".intervalMillis";
+
+    private final MessagesDao mMessagesDao;
+    private final TaskQueue mTaskQueue;
+    private final PendingMessageNotifier mPendingMessageNotifier;
+    private final boolean mEnabled;
+    private final int mChunkSize;
+    private final long mIntervalMillis;
+    private ScheduledExecutorService mExecutor;
+
+    @Inject
+    public MessageOutboxRelay(MessagesDao messagesDao, TaskQueue taskQueue, PendingMessageNotifier pendingMessageNotifier,
+                              Config configuration) {
+        mMessagesDao = messagesDao;
+        mTaskQueue = taskQueue;
+        mPendingMessageNotifier = pendingMessageNotifier;
+        mEnabled = ConfigHelper.getBoolean(configuration, CONFIG_ENABLED, false);
+        mChunkSize = Math.max(1, ConfigHelper.getInt(configuration, CONFIG_CHUNK_SIZE, 500));
+        mIntervalMillis = Math.max(10, ConfigHelper.getLong(configuration, CONFIG_INTERVAL_MILLIS, 1000));
+    }
+
+    /**
+     * Start the periodic outbox relay, if it is enabled.
+     */
+    public synchronized void startup() {
+        if (!mEnabled || mExecutor != null) {
+            return;
+        }
+
+        Logger.info(String.format("Message outbox relay enabled every %dms.", mIntervalMillis));
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mExecutor.scheduleWithFixedDelay(this::relayOutboxMessages, 0, mIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the periodic outbox relay.
+     */
+    public synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Queue all messages in the outbox, one chunk at a time.
+     *
+     * @return the total number of messages relayed.
+     */
+    public int relayOutboxMessages() {
+        int totalRelayed = 0;
+
+        try {
+            List<Message> messages;
+            do {
+                messages = mMessagesDao.takeOutboxMessages(mPendingMessageNotifier.getDispatcherId(), mChunkSize);
+                mTaskQueue.queueSavedMessages(messages);
+                totalRelayed += messages.size();
+            } while (messages.size() == mChunkSize && !Thread.currentThread().isInterrupted());
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error relaying outbox messages: %s.", e.getMessage()));
+        }
+
+        if (totalRelayed > 0) {
+            Logger.debug(String.format("Relayed %d messages from the outbox.", totalRelayed));
+        }
+        return totalRelayed;
+    }
+}
@@ -0,0 +1,102 @@
+package services.pushservices;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import dao.pushservices.MessagesDao;
+import helpers.pushservices.ConfigHelper;
+import main.pushservices.Constants;
+import play.Logger;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically purges finished {@link models.pushservices.db.Message}s (every recipient has either
+ * completed or failed) which are older than the configured retention age. Messages are deleted
+ * in bounded chunks so that a purge never holds long locks or loads messages into memory.
+ * <p>
+ * Disabled by default. Configure with:
+ * <pre>
+ * pushservices.retention.enabled = true
+ * pushservices.retention.maxAgeHours = 720
+ * pushservices.retention.chunkSize = 500
+ * pushservices.retention.intervalMinutes = 60
+ * </pre>
+ */
+@Singleton
+public class MessageRetentionService {
+    private static final String CONFIG_ENABLED = Constants.CONFIG_RETENTION + ".enabled";
+    private static final String CONFIG_MAX_AGE_HOURS = Constants.CONFIG_RETENTION + ".maxAgeHours";
+    private static final String CONFIG_CHUNK_SIZE = Constants.CONFIG_RETENTION + ".chunkSize";
+    private static final String CONFIG_INTERVAL_MINUTES = Constants.CONFIG_RETENTION + ".intervalMinutes";
+
+    private final MessagesDao mMessagesDao;
+    private final boolean mEnabled;
+    private final long mMaxAgeMs;
+    private final int mChunkSize;
+    private final long mIntervalMinutes;
+    private ScheduledExecutorService mExecutor;
+
+    @Inject
+    public MessageRetentionService(MessagesDao messagesDao, Config configuration) {
+        mMessagesDao = messagesDao;
+        mEnabled = ConfigHelper.getBoolean(configuration, CONFIG_ENABLED, false);
+        mMaxAgeMs = TimeUnit.HOURS.toMillis(ConfigHelper.getLong(configuration, CONFIG_MAX_AGE_HOURS, 24 * 30));
+        mChunkSize = Math.max(1, ConfigHelper.getInt(configuration, CONFIG_CHUNK_SIZE, 500));
+        mIntervalMinutes = Math.max(1, ConfigHelper.getLong(configuration, CONFIG_INTERVAL_MINUTES, 60));
+    }
+
+    /**
+     * Start the periodic retention purge, if it is enabled.
+     */
+    public synchronized void startup() {
+        if (!mEnabled || mExecutor != null) {
+            return;
+        }
+
+        Logger.info(String.format("Message retention purge enabled for messages older than %d hours.",
+                TimeUnit.MILLISECONDS.toHours(mMaxAgeMs)));
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mExecutor.scheduleWithFixedDelay(this::purgeFinishedMessages, mIntervalMinutes, mIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stop the periodic retention purge.
+     */
+    public synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Delete all finished messages older than the retention age, one chunk at a time.
+     *
+     * @return the total number of messages deleted.
+     */
+    public int purgeFinishedMessages() {
+        Date addedBefore = new Date(System.currentTimeMillis() - mMaxAgeMs);
+        int totalDeleted = 0;
+
+        try {
+            int deleted;
+            do {
+                deleted = mMessagesDao.deleteFinishedMessages(addedBefore, mChunkSize);
+                totalDeleted += Math.max(0, deleted);
+            } while (deleted == mChunkSize && !Thread.currentThread().isInterrupted());
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error purging finished messages: %s.", e.getMessage()));
+        }
+
+        if (totalDeleted > 0) {
+            Logger.info(String.format("Purged %d finished messages added before %s.", totalDeleted, addedBefore));
+        }
+        return totalDeleted;
+    }
+}
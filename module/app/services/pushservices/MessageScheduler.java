@@ -0,0 +1,196 @@
+package services.pushservices;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import dao.pushservices.MessagesDao;
+import helpers.pushservices.ConfigHelper;
+import helpers.pushservices.TimingWheel;
+import interfaces.pushservices.MessageStore;
+import main.pushservices.Constants;
+import models.pushservices.db.Message;
+import play.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Holds deferred messages (see {@link helpers.pushservices.MessageBuilder.Builder#setSendAt(Date)}) until
+ * their send time, and then releases them to the {@link TaskQueue}.
+ * <p>
+ * Only messages due within the scheduling horizon are held in memory, in a {@link TimingWheel}. Durable
+ * messages due later stay in the database, where they are indexed by send time, and are loaded a slice
+ * at a time as the horizon moves forward. Messages in the journal and in-memory stores are already held in
+ * memory, so they are added to the wheel straight away.
+ * <p>
+ * Configure with:
+ * <pre>
+ * pushservices.schedule.horizonSeconds = 300
+ * pushservices.schedule.tickMillis = 100
+ * pushservices.schedule.wheelSize = 512
+ * </pre>
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class MessageScheduler {
+    private static final String CONFIG_HORIZON_SECONDS = Constants.CONFIG_SCHEDULE + ".horizonSeconds";
+    private static final String CONFIG_TICK_MILLIS = Constants.CONFIG_SCHEDULE + ".tickMillis";
+    private static final String CONFIG_WHEEL_SIZE = Constants.CONFIG_SCHEDULE + ".wheelSize";
+
+    private final MessagesDao mMessagesDao;
+    private final PendingMessageNotifier mPendingMessageNotifier;
+    private final boolean mHasDatabaseStore;
+    private final long mHorizonMillis;
+    private final long mTickMillis;
+    private final int mWheelSize;
+    private final Map<Long, TimingWheel.Timeout<Message>> mScheduledMessages = new ConcurrentHashMap<>();
+    private TimingWheel<Message> mTimingWheel;
+    private ScheduledExecutorService mExecutor;
+
+    @Inject
+    public MessageScheduler(MessagesDao messagesDao, MessageStore messageStore, PendingMessageNotifier pendingMessageNotifier,
+                            Config configuration) {
+        mMessagesDao = messagesDao;
+        mPendingMessageNotifier = pendingMessageNotifier;
+        mHasDatabaseStore = messageStore instanceof MessagesDao;
+        mHorizonMillis = TimeUnit.SECONDS.toMillis(Math.max(1, ConfigHelper.getLong(configuration, CONFIG_HORIZON_SECONDS, 300)));
+        mTickMillis = Math.max(1, ConfigHelper.getLong(configuration, CONFIG_TICK_MILLIS, 100));
+        mWheelSize = Math.max(2, ConfigHelper.getInt(configuration, CONFIG_WHEEL_SIZE, 512));
+    }
+
+    /**
+     * Start the timing wheel, and periodically load the durable messages that fall due within the horizon.
+     *
+     * @param releaseCallback invoked with each message once its send time has passed.
+     */
+    public synchronized void startup(@Nonnull Consumer<Message> releaseCallback) {
+        if (mTimingWheel != null) {
+            return;
+        }
+
+        mTimingWheel = new TimingWheel<>(mTickMillis, mWheelSize, message -> {
+            if (mScheduledMessages.remove(message.getId()) != null) {
+                releaseCallback.accept(message);
+            }
+        });
+        mTimingWheel.start();
+
+        if (mHasDatabaseStore) {
+            // Load each slice well before the previous one runs out.
+            mExecutor = Executors.newSingleThreadScheduledExecutor();
+            mExecutor.scheduleWithFixedDelay(this::loadScheduledMessages, 0, mHorizonMillis / 2, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the timing wheel and the scheduled message loader. Durable messages are loaded again on the next startup.
+     */
+    public synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+
+        if (mTimingWheel != null) {
+            mTimingWheel.stop();
+            mTimingWheel = null;
+        }
+        mScheduledMessages.clear();
+    }
+
+    /**
+     * Hold a saved message until its send time. Durable messages due beyond the horizon are left in the
+     * database until a later slice is loaded.
+     *
+     * @param message the deferred message.
+     * @return true if the message is held in memory.
+     */
+    public synchronized boolean schedule(@Nonnull Message message) {
+        if (message.getSendAt() == null || mTimingWheel == null) {
+            return false;
+        }
+
+        long sendAt = message.getSendAt().getTime();
+        if (mHasDatabaseStore && message.isDurable() && sendAt > System.currentTimeMillis() + mHorizonMillis) {
+            Logger.debug(String.format("Message %d is deferred beyond the scheduling horizon.", message.getId()));
+            return false;
+        }
+
+        if (!mScheduledMessages.containsKey(message.getId())) {
+            mScheduledMessages.put(message.getId(), mTimingWheel.schedule(message, sendAt));
+        }
+        return true;
+    }
+
+    /**
+     * Stop holding a message, such as when it is cancelled.
+     *
+     * @param messageId the message id.
+     * @return the message, or null if it was not held.
+     */
+    @Nullable
+    public Message unschedule(long messageId) {
+        TimingWheel.Timeout<Message> timeout = mScheduledMessages.remove(messageId);
+        if (timeout == null) {
+            return null;
+        }
+
+        timeout.cancel();
+        return timeout.getItem();
+    }
+
+    /**
+     * @param messageId the message id.
+     * @return the message, or null if it is not held.
+     */
+    @Nullable
+    public Message getScheduledMessage(long messageId) {
+        TimingWheel.Timeout<Message> timeout = mScheduledMessages.get(messageId);
+        return timeout != null ? timeout.getItem() : null;
+    }
+
+    /**
+     * @return the number of messages held in memory until their send time.
+     */
+    public int getScheduledCount() {
+        return mScheduledMessages.size();
+    }
+
+    /**
+     * Load the durable messages that fall due within the horizon. Messages are claimed, rather than
+     * fetched, when they may be shared with other nodes.
+     */
+    private void loadScheduledMessages() {
+        try {
+            // The slice overlaps the previous one, so that messages falling due between loads are not missed.
+            long currentTime = System.currentTimeMillis();
+            List<Message> messages = mMessagesDao.fetchScheduledMessages(mPendingMessageNotifier.getDispatcherId(),
+                    new Date(currentTime - mHorizonMillis), new Date(currentTime + mHorizonMillis), mPendingMessageNotifier.getClaimLeaseSeconds());
+
+            int scheduledCount = 0;
+            for (Message message : messages) {
+                if (!mScheduledMessages.containsKey(message.getId()) && schedule(message)) {
+                    scheduledCount++;
+                }
+            }
+
+            if (scheduledCount > 0) {
+                Logger.debug(String.format("Loaded %d deferred messages due within the scheduling horizon.", scheduledCount));
+            }
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error loading deferred messages: %s.", e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package services.pushservices;
+
+import annotations.pushservices.PushServicesEbeanServer;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import dao.pushservices.MessagesDao;
+import helpers.pushservices.ConfigHelper;
+import interfaces.pushservices.MessageStore;
+import io.ebean.EbeanServer;
+import main.pushservices.Constants;
+import models.pushservices.db.Message;
+import play.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Wakes the {@link TaskQueue} when another process or node saves a pending message, using
+ * PostgreSQL <code>LISTEN</code> / <code>NOTIFY</code> on a dedicated connection, with a low
+ * frequency poll as a fallback for missed notifications.
+ * <p>
+ * Messages are claimed by setting their <code>dispatcher_id</code>, so that each message is only
+ * dispatched by one node. Messages queued locally are claimed when they are saved, and only unclaimed
+ * messages raise a notification (see the trigger in the sample notification script). A node only reclaims
+ * the messages it already holds at startup, and otherwise claims unclaimed messages. A claim is a lease,
+ * renewed on every poll, so that the messages of a node that stops without releasing them are taken over
+ * by other nodes once the lease has passed.
+ * <p>
+ * Disabled by default, and only available with the database message store. Configure with:
+ * <pre>
+ * pushservices.notify.enabled = true
+ * pushservices.notify.dispatcherId = "node-1"
+ * pushservices.notify.pollIntervalSeconds = 60
+ * pushservices.notify.claimLeaseSeconds = 300
+ * </pre>
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class PendingMessageNotifier {
+    private static final String CONFIG_ENABLED = Constants.CONFIG_NOTIFY + ".enabled";
+    private static final String CONFIG_DISPATCHER_ID = Constants.CONFIG_NOTIFY + ".dispatcherId";
+    private static final String CONFIG_POLL_INTERVAL_SECONDS = Constants.CONFIG_NOTIFY + ".pollIntervalSeconds";
+    private static final String CONFIG_CLAIM_LEASE_SECONDS = Constants.CONFIG_NOTIFY + ".claimLeaseSeconds";
+
+    // Claims are renewed on every poll, so a lease must outlast several polls.
+    private static final int MIN_LEASE_POLL_INTERVALS = 3;
+
+    // Must match the channel notified by the pushservices.notify_pending_message() trigger.
+    private static final String NOTIFY_CHANNEL = "pushservices_pending";
+    private static final String PG_CONNECTION_CLASS = "org.postgresql.PGConnection";
+
+    // Upper bound on a single wait for notifications, so that shutdown is not held up.
+    private static final int LISTEN_WAIT_MS = 1000;
+    private static final long RECONNECT_DELAY_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final int CLAIM_CHUNK_SIZE = 1000;
+
+    private final EbeanServer mEbeanServer;
+    private final MessagesDao mMessagesDao;
+    private final boolean mEnabled;
+    private final String mDispatcherId;
+    private final long mPollIntervalMs;
+    private final long mClaimLeaseSeconds;
+    private NotificationListenerThread mListenerThread;
+
+    @Inject
+    public PendingMessageNotifier(@PushServicesEbeanServer EbeanServer ebeanServer, MessagesDao messagesDao,
+                                  MessageStore messageStore, Config configuration) {
+        mEbeanServer = ebeanServer;
+        mMessagesDao = messagesDao;
+        long pollIntervalSeconds = Math.max(1, ConfigHelper.getLong(configuration, CONFIG_POLL_INTERVAL_SECONDS, 60));
+        mPollIntervalMs = TimeUnit.SECONDS.toMillis(pollIntervalSeconds);
+        mClaimLeaseSeconds = Math.max(pollIntervalSeconds * MIN_LEASE_POLL_INTERVALS,
+                ConfigHelper.getLong(configuration, CONFIG_CLAIM_LEASE_SECONDS, 300));
+
+        boolean isEnabled = ConfigHelper.getBoolean(configuration, CONFIG_ENABLED, false);
+        if (isEnabled && !(messageStore instanceof MessagesDao)) {
+            Logger.warn("Pending message notifications require the database message store, and are disabled.");
+            isEnabled = false;
+        }
+        mEnabled = isEnabled;
+        mDispatcherId = isEnabled ? ConfigHelper.getString(configuration, CONFIG_DISPATCHER_ID, getHostName()) : null;
+    }
+
+    /**
+     * @return true if messages are claimed, and pending message notifications are enabled.
+     */
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return the id that this node claims messages with, or null if notifications are disabled.
+     */
+    @Nullable
+    public String getDispatcherId() {
+        return mDispatcherId;
+    }
+
+    /**
+     * @return how long a claim on a message lasts without being renewed, before other nodes may take it over.
+     */
+    public long getClaimLeaseSeconds() {
+        return mClaimLeaseSeconds;
+    }
+
+    /**
+     * Claim a new message for this node before it is saved, if notifications are enabled.
+     *
+     * @param message the new message.
+     */
+    public void claimMessage(@Nonnull Message message) {
+        message.setDispatcherId(mDispatcherId);
+        message.setClaimedAt(mEnabled ? new Date() : null);
+    }
+
+    /**
+     * Claim pending messages that no node is dispatching, and those whose claim lease has passed, a chunk at a
+     * time. The messages this node already holds are only reclaimed when asked, such as at startup, so that
+     * they are not reloaded on every notification and do not crowd out messages from other processes.
+     *
+     * @param includeHeld true to also reclaim the messages this node already holds.
+     * @param consumer    consumer of each chunk of claimed messages, without their recipients.
+     * @return the number of messages claimed.
+     */
+    public int claimPendingMessages(boolean includeHeld, @Nonnull Consumer<List<Message>> consumer) {
+        if (!mEnabled) {
+            return 0;
+        }
+
+        int claimedCount = 0;
+        long afterId = 0;
+        List<Message> claimedMessages;
+        do {
+            claimedMessages = mMessagesDao.claimPendingMessages(mDispatcherId, includeHeld, afterId, CLAIM_CHUNK_SIZE, mClaimLeaseSeconds);
+            if (claimedMessages == null || claimedMessages.isEmpty()) {
+                break;
+            }
+
+            consumer.accept(claimedMessages);
+            claimedCount += claimedMessages.size();
+            afterId = claimedMessages.get(claimedMessages.size() - 1).getId();
+        } while (claimedMessages.size() == CLAIM_CHUNK_SIZE);
+        return claimedCount;
+    }
+
+    /**
+     * Let this node's claim on a durable message it has dropped lapse, such as after a store error, so that
+     * the message is claimed again by the next poll rather than held until a restart.
+     *
+     * @param message the dropped message.
+     */
+    public void lapseClaim(@Nonnull Message message) {
+        if (mEnabled && message.isDurable() && message.getId() != null) {
+            mMessagesDao.lapseClaimedMessage(mDispatcherId, message.getId());
+        }
+    }
+
+    /**
+     * Renew the claim lease on the messages this node holds.
+     */
+    private void renewClaimedMessages() {
+        int renewedCount = mMessagesDao.renewClaimedMessages(mDispatcherId);
+        if (renewedCount > 0) {
+            Logger.debug(String.format("Renewed the claim on %d messages.", renewedCount));
+        }
+    }
+
+    /**
+     * Start listening for pending message notifications, if they are enabled.
+     *
+     * @param onPendingMessages called when there may be new pending messages to claim.
+     */
+    public synchronized void startup(@Nonnull Runnable onPendingMessages) {
+        if (!mEnabled || (mListenerThread != null && mListenerThread.isAlive())) {
+            return;
+        }
+
+        Logger.info(String.format("Listening for pending messages as dispatcher %s.", mDispatcherId));
+        mListenerThread = new NotificationListenerThread(onPendingMessages);
+        mListenerThread.start();
+    }
+
+    public synchronized void shutdown() {
+        if (mListenerThread != null) {
+            Logger.debug("Shutting down the pending message listener.");
+            mListenerThread.interrupt();
+            mListenerThread = null;
+        }
+    }
+
+    @Nonnull
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+
+        } catch (UnknownHostException e) {
+            String dispatcherId = UUID.randomUUID().toString();
+            Logger.warn(String.format("No host name found. Using dispatcher id %s, which changes on restart.", dispatcherId));
+            return dispatcherId;
+        }
+    }
+
+    /**
+     * Holds a connection in LISTEN mode, and wakes the TaskQueue on a notification or when the
+     * fallback poll is due. The PostgreSQL driver is only used through reflection, as it is
+     * provided by the host application.
+     */
+    private class NotificationListenerThread extends Thread {
+        private final Runnable mOnPendingMessages;
+
+        private NotificationListenerThread(@Nonnull Runnable onPendingMessages) {
+            super("pushservices-notify");
+            setDaemon(true);
+            mOnPendingMessages = onPendingMessages;
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try (Connection connection = mEbeanServer.getPluginApi().getDataSource().getConnection()) {
+                    connection.setAutoCommit(true);
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("listen " + NOTIFY_CHANNEL);
+                    }
+
+                    Class<?> pgConnectionClass = Class.forName(PG_CONNECTION_CLASS);
+                    Object pgConnection = connection.unwrap(pgConnectionClass);
+                    Method getNotifications = pgConnectionClass.getMethod("getNotifications", int.class);
+
+                    // Pick up anything saved while the connection was not listening.
+                    renewClaimedMessages();
+                    mOnPendingMessages.run();
+                    long nextPollTime = System.currentTimeMillis() + mPollIntervalMs;
+
+                    while (!isInterrupted()) {
+                        long pollWaitMs = nextPollTime - System.currentTimeMillis();
+                        Object notifications = getNotifications.invoke(pgConnection, (int) Math.max(1, Math.min(LISTEN_WAIT_MS, pollWaitMs)));
+                        boolean isNotified = notifications != null && Array.getLength(notifications) > 0;
+
+                        // The fallback poll doubles as the heartbeat that renews this node's claims.
+                        boolean isPollDue = System.currentTimeMillis() >= nextPollTime;
+                        if (isPollDue) {
+                            renewClaimedMessages();
+                        }
+
+                        if (isNotified || isPollDue) {
+                            mOnPendingMessages.run();
+                            nextPollTime = System.currentTimeMillis() + mPollIntervalMs;
+                        }
+                    }
+
+                } catch (ClassNotFoundException e) {
+                    Logger.error("Pending message notifications require the PostgreSQL JDBC driver.");
+                    return;
+
+                } catch (Exception e) {
+                    Logger.error(String.format("Error listening for pending messages: %s.", e.getMessage()));
+                    try {
+                        Thread.sleep(RECONNECT_DELAY_MS);
+
+                    } catch (InterruptedException interruptedException) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
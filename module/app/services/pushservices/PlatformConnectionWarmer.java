@@ -0,0 +1,90 @@
+package services.pushservices;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+import helpers.pushservices.ConfigHelper;
+import main.pushservices.Constants;
+import play.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens a number of keep-alive connections to each platform endpoint at startup, and keeps them open
+ * by using them again before the client pool closes them as idle. The first message sent after a
+ * deploy then goes out on an open connection, instead of waiting for DNS and the TLS handshake.
+ * <p>
+ * The interval should be shorter than the WS client pool idle timeout
+ * (<code>play.ws.ahc.idleConnectionInPoolTimeout</code>).
+ * <p>
+ * Disabled by default. Configure with:
+ * <pre>
+ * pushservices.warmup.connections = 4
+ * pushservices.warmup.intervalSeconds = 50
+ * </pre>
+ * <p>
+ * GNU General Public License v3.0.
+ * (This means you can use it as you wish, host and share modifications.)
+ * Copyright 19/10/2026 Splendid Bits.
+ */
+@Singleton
+public class PlatformConnectionWarmer {
+    private static final String CONFIG_CONNECTIONS = Constants.CONFIG_WARMUP + ".connections";
+    private static final String CONFIG_INTERVAL_SECONDS = Constants.CONFIG_WARMUP + ".intervalSeconds";
+
+    private final GcmMessageDispatcher mGcmMessageDispatcher;
+    private final int mConnectionCount;
+    private final long mIntervalSeconds;
+    private ScheduledExecutorService mExecutor;
+
+    @Inject
+    public PlatformConnectionWarmer(GcmMessageDispatcher gcmMessageDispatcher, Config configuration) {
+        mGcmMessageDispatcher = gcmMessageDispatcher;
+        mConnectionCount = Math.max(0, ConfigHelper.getInt(configuration, CONFIG_CONNECTIONS, 0));
+        mIntervalSeconds = Math.max(1, ConfigHelper.getLong(configuration, CONFIG_INTERVAL_SECONDS, 50));
+    }
+
+    /**
+     * Open the platform connections straight away, and keep them warm, if warm up is enabled.
+     */
+    public synchronized void startup() {
+        if (mConnectionCount == 0 || mExecutor != null) {
+            return;
+        }
+
+        Logger.info(String.format("Keeping %d connections warm to each platform endpoint.", mConnectionCount));
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mExecutor.scheduleWithFixedDelay(this::warmConnections, 0, mIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop keeping the platform connections warm. Open connections are left to the client pool.
+     */
+    public synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private void warmConnections() {
+        try {
+            int warmCount = mGcmMessageDispatcher.warmConnections(mConnectionCount)
+                    .toCompletableFuture()
+                    .get(mIntervalSeconds, TimeUnit.SECONDS);
+
+            if (warmCount < mConnectionCount) {
+                Logger.warn(String.format("Only %d of %d connections to %s could be opened.", warmCount, mConnectionCount,
+                        mGcmMessageDispatcher.getPlatform().name));
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+        } catch (Exception e) {
+            Logger.error(String.format("Error warming platform connections: %s.", e.getMessage()));
+        }
+    }
+}
@@ -1,24 +1,39 @@
 package services.pushservices;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import dao.pushservices.AudienceDao;
+import dao.pushservices.InMemoryMessageStore;
 import dao.pushservices.MessagesDao;
-import enums.pushservices.FailureType;
 import enums.pushservices.RecipientState;
+import enums.pushservices.RecipientType;
 import exceptions.pushservices.MessageValidationException;
 import helpers.pushservices.MessageHelper;
+import helpers.pushservices.TokenHashSet;
+import interfaces.pushservices.MessageStore;
 import interfaces.pushservices.PlatformResponse;
 import interfaces.pushservices.TaskQueueListener;
+import models.pushservices.app.RecipientTable;
+import models.pushservices.app.StreamedMessage;
 import models.pushservices.app.UpdatedRecipient;
 import models.pushservices.db.Message;
 import models.pushservices.db.PlatformFailure;
 import models.pushservices.db.Recipient;
+import io.ebean.Transaction;
 import play.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A singleton class that handles all Push Service message jobs.
@@ -28,29 +43,84 @@ public class TaskQueue {
     // Delay each message polling interval to a 1/4 second so the server isn't flooded.
     private static final long TASKQUEUE_POLL_INTERVAL_MS = 500;
 
+    // Number of recipients of a streamed message persisted per transaction.
+    private static final int STREAMED_MESSAGE_CHUNK_SIZE = 1000;
+
+    // Default time allowed for in-flight messages to return from the platform on shutdown.
+    private static final long DEFAULT_DRAIN_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    // Interval between checks for in-flight messages while draining.
+    private static final long DRAIN_POLL_INTERVAL_MS = 100;
+
     // Collection containing all messages that have not returned from the provider with a success or fail.
-    private Set<Long> mActiveMessages = new HashSet<>();
+    // Concurrent, so that the active messages can be read without waiting on the TaskQueue while it saves.
+    private final Map<Long, Message> mActiveMessages = new ConcurrentHashMap<>();
     private Map<Long, PlatformResponseCallback> mInternalListeners = new HashMap<>();
     private Map<Long, TaskQueueListener> mExternalListeners = new HashMap<>();
 
+    // Messages dispatched to the platform that have not yet returned, and whether new work is refused.
+    private final Set<Long> mDispatchingMessages = ConcurrentHashMap.newKeySet();
+    private volatile boolean mDraining;
+
     // TaskQueue thread and queue related members.
-    private BlockingQueue<Message> mMessageProcessQueue = new ArrayBlockingQueue<>(5000);
+    private FairMessageQueue mMessageProcessQueue;
     private MessageProducerThread mQueueProducerThread;
     private MessageConsumerThread mQueueConsumerThread;
 
     private GcmMessageDispatcher mGcmMessageDispatcher;
+    private MessageStore mMessageStore;
+    private InMemoryMessageStore mInMemoryMessageStore;
     private MessagesDao mMessagesDao;
+    private AudienceDao mAudienceDao;
+    private DeadTokenRegistry mDeadTokenRegistry;
+    private CanonicalTokenRegistry mCanonicalTokenRegistry;
+    private PendingMessageNotifier mPendingMessageNotifier;
+    private IdempotencyKeyRegistry mIdempotencyKeyRegistry;
+    private MessageScheduler mMessageScheduler;
+    private DeviceRateLimiter mDeviceRateLimiter;
+    private DispatchMetrics mDispatchMetrics;
 
     /**
      * Privately instantiate the TaskQueue with required Dependencies.
      *
-     * @param messagesDao          Message persistence.
-     * @param gcmMessageDispatcher GCM Google message dispatcher.
+     * @param messageStore           Durable message persistence.
+     * @param inMemoryMessageStore   Non-durable message store.
+     * @param messagesDao            Database message persistence, for the outbox.
+     * @param audienceDao            Stored audience persistence.
+     * @param gcmMessageDispatcher   GCM Google message dispatcher.
+     * @param deadTokenRegistry      Registry of known dead device tokens.
+     * @param canonicalTokenRegistry Registry of stale to canonical device tokens.
+     * @param pendingMessageNotifier Claims pending messages saved by other nodes.
+     * @param idempotencyKeyRegistry Finds messages already queued with an idempotency key.
+     * @param messageScheduler       Holds deferred messages until their send time.
+     * @param deviceRateLimiter      Holds back recipients whose device tokens are over their send rate.
+     * @param fairMessageQueue       Shares dispatch fairly between the tenants of each credentials.
+     * @param dispatchMetrics        Dispatch latency, failure and queue size metrics.
      */
     @Inject
-    protected TaskQueue(MessagesDao messagesDao, GcmMessageDispatcher gcmMessageDispatcher) {
+    protected TaskQueue(MessageStore messageStore, InMemoryMessageStore inMemoryMessageStore, MessagesDao messagesDao, AudienceDao audienceDao,
+                        GcmMessageDispatcher gcmMessageDispatcher, DeadTokenRegistry deadTokenRegistry,
+                        CanonicalTokenRegistry canonicalTokenRegistry, PendingMessageNotifier pendingMessageNotifier,
+                        IdempotencyKeyRegistry idempotencyKeyRegistry, MessageScheduler messageScheduler,
+                        DeviceRateLimiter deviceRateLimiter, FairMessageQueue fairMessageQueue, DispatchMetrics dispatchMetrics) {
+        mMessageStore = messageStore;
+        mInMemoryMessageStore = inMemoryMessageStore;
         mMessagesDao = messagesDao;
+        mAudienceDao = audienceDao;
         mGcmMessageDispatcher = gcmMessageDispatcher;
+        mDeadTokenRegistry = deadTokenRegistry;
+        mCanonicalTokenRegistry = canonicalTokenRegistry;
+        mPendingMessageNotifier = pendingMessageNotifier;
+        mIdempotencyKeyRegistry = idempotencyKeyRegistry;
+        mMessageScheduler = messageScheduler;
+        mDeviceRateLimiter = deviceRateLimiter;
+        mMessageProcessQueue = fairMessageQueue;
+        mDispatchMetrics = dispatchMetrics;
+
+        mDispatchMetrics.registerGauge("queuedMessages", this::getQueuedCount);
+        mDispatchMetrics.registerGauge("activeMessages", () -> mActiveMessages.size());
+        mDispatchMetrics.registerGauge("dispatchingMessages", mDispatchingMessages::size);
+        mDispatchMetrics.registerGauge("scheduledMessages", mMessageScheduler::getScheduledCount);
     }
 
     @SuppressWarnings("unused")
@@ -59,22 +129,60 @@ public class TaskQueue {
 
     /**
      * Checks that the message consumer process is active and running, and starts the
-     * TaskQueue {@link Message} polling process if it is not.
+     * TaskQueue {@link Message} polling process if it is not. The known dead and canonical device tokens
+     * are loaded first, so that every new message is checked against them. Pending messages are recovered
+     * in the background, so the caller is not held up by the store. New messages can be queued straight away.
+     *
+     * @return completes once the pending messages have been recovered.
      */
-    public synchronized void startup() {
-        Logger.info("TaskQueue Startup");
+    @Nonnull
+    public CompletionStage<Void> startup() {
+        // The registries are small, and are loaded before the TaskQueue accepts messages.
+        mDeadTokenRegistry.load();
+        mCanonicalTokenRegistry.load();
+
+        synchronized (this) {
+            Logger.info("TaskQueue Startup");
+            mDraining = false;
+
+            // Start the message producer and consumer queues.
+            startProducerQueue();
+            startConsumerQueue();
+            mMessageScheduler.startup(this::queueScheduledMessage);
+        }
+
+        ExecutorService startupExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pushservices-startup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletableFuture<Void> recovery = CompletableFuture.runAsync(this::recoverPendingMessages, startupExecutor);
+        startupExecutor.shutdown();
+        return recovery;
+    }
 
-        // Start the message producer and consumer queues.
-        startProducerQueue();
-        startConsumerQueue();
+    /**
+     * Re-queue existing pending messages, and then listen for messages saved by other nodes.
+     */
+    private void recoverPendingMessages() {
+        long startTime = System.currentTimeMillis();
+        try {
+            queuePendingMessages(true);
+            synchronized (this) {
+                if (!mDraining) {
+                    mPendingMessageNotifier.startup(() -> queuePendingMessages(false));
+                }
+            }
+            Logger.info(String.format("TaskQueue recovered pending messages in %d ms.", System.currentTimeMillis() - startTime));
 
-        // Check and re-queue existing pending messages.
-        queuePendingMessages();
+        } catch (Exception e) {
+            Logger.error(String.format("Error recovering pending messages: %s.", e.getMessage()));
+        }
     }
 
     private synchronized void startProducerQueue() {
         if (mQueueProducerThread == null || !mQueueProducerThread.isAlive()) {
-            mQueueProducerThread = new MessageProducerThread(mMessageProcessQueue);
+            mQueueProducerThread = new MessageProducerThread(new LinkedBlockingQueue<>());
             Logger.debug("Starting the TaskQueue Producer process.");
             mQueueProducerThread.start();
         }
@@ -89,65 +197,567 @@ public class TaskQueue {
     }
 
     /**
-     * Checks that the message ask consumer process is active and running, and starts the
-     * TaskQueue {@link Message} polling process if it is not.
+     * Drain and stop the TaskQueue, allowing in-flight messages the default drain timeout to return.
+     */
+    public void shutdown() {
+        shutdown(DEFAULT_DRAIN_TIMEOUT_MS);
+    }
+
+    /**
+     * Drain and stop the TaskQueue. New messages are refused and nothing more is dispatched, while
+     * messages already in flight are given until the timeout to return from the platform, so that their
+     * recipients are saved as sent rather than resent on the next startup. The recipient states of the
+     * remaining active messages are then saved, the claims on messages that were not sent are released
+     * to other nodes, and the message store is closed.
+     *
+     * @param drainTimeoutMillis time allowed for in-flight messages to return.
      */
-    public synchronized void shutdown() {
-        if (mQueueProducerThread != null) {
-            Logger.debug("Shutting down the TaskQueue Producer process.");
-            mQueueProducerThread.interrupt();
+    public void shutdown(long drainTimeoutMillis) {
+        long drainDeadline = System.currentTimeMillis() + Math.max(0, drainTimeoutMillis);
+        MessageProducerThread producerThread;
+        MessageConsumerThread consumerThread;
+        synchronized (this) {
+            Logger.info("TaskQueue Shutdown");
+            mDraining = true;
+            producerThread = mQueueProducerThread;
+            consumerThread = mQueueConsumerThread;
         }
 
-        if (mQueueConsumerThread != null) {
-            Logger.debug("Shutting down the TaskQueue Consumer process.");
-            mQueueConsumerThread.interrupt();
+        // Stop admitting messages from other nodes and from the schedule.
+        mPendingMessageNotifier.shutdown();
+        mMessageScheduler.shutdown();
+
+        // The threads stop after their current message. They are not interrupted, so a dispatch is not
+        // cut off part way through.
+        Logger.debug("Shutting down the TaskQueue Producer and Consumer processes.");
+        joinThread(producerThread, drainDeadline);
+        joinThread(consumerThread, drainDeadline);
+
+        // Wait for the in-flight messages to return.
+        try {
+            while (!mDispatchingMessages.isEmpty() && System.currentTimeMillis() < drainDeadline) {
+                Thread.sleep(DRAIN_POLL_INTERVAL_MS);
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Set<Long> inFlightMessageIds = new HashSet<>(mDispatchingMessages);
+        if (!inFlightMessageIds.isEmpty()) {
+            Logger.warn(String.format("%d messages were still in flight at shutdown, and may be resent.", inFlightMessageIds.size()));
         }
+
+        synchronized (this) {
+            // Save the recipients changed in memory since the last dispatch, such as those held back.
+            for (Message message : mActiveMessages.values()) {
+                if (message.getRecipientTable() != null && !inFlightMessageIds.contains(message.getId())) {
+                    saveRecipientStates(message);
+                }
+            }
+
+            // Let other nodes pick up the claimed messages that were not sent. Messages still in flight
+            // stay claimed, so that they are not sent again while their responses may still arrive.
+            String dispatcherId = mPendingMessageNotifier.getDispatcherId();
+            if (dispatcherId != null) {
+                int releasedCount = mMessagesDao.releaseClaimedMessages(dispatcherId, inFlightMessageIds);
+                if (releasedCount > 0) {
+                    Logger.info(String.format("Released %d claimed messages to other dispatchers.", releasedCount));
+                }
+            }
+
+            mMessageStore.close();
+
+            mActiveMessages.clear();
+            mInternalListeners.clear();
+            mExternalListeners.clear();
+            mDispatchingMessages.clear();
+            mQueueProducerThread = null;
+            mQueueConsumerThread = null;
+        }
+    }
+
+    private void joinThread(@Nullable Thread thread, long deadline) {
+        if (thread == null) {
+            return;
+        }
+
+        try {
+            thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // The thread did not stop in time, so it is interrupted instead.
+        if (thread.isAlive()) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return the number of messages waiting to be dispatched.
+     */
+    public int getQueuedCount() {
+        MessageProducerThread producerThread = mQueueProducerThread;
+        return mMessageProcessQueue.size() + (producerThread != null ? producerThread.dispatchQueue.size() : 0);
+    }
+
+    /**
+     * Find a message that is queued, in flight or held until its send time, without going to the store
+     * or waiting on the TaskQueue.
+     *
+     * @param messageId the message id.
+     * @return the message with its current counts, or null if it is not active in this process.
+     */
+    @Nullable
+    public Message getActiveMessage(long messageId) {
+        Message message = mActiveMessages.get(messageId);
+        return message != null ? message : mMessageScheduler.getScheduledMessage(messageId);
+    }
+
+    /**
+     * @param messageId the message id.
+     * @return true if the message has been dispatched to a platform and has not yet returned.
+     */
+    public boolean isDispatching(long messageId) {
+        return mDispatchingMessages.contains(messageId);
+    }
+
+    /**
+     * @return the messages that have been dispatched to a platform and have not yet returned, read without
+     * waiting on the TaskQueue.
+     */
+    @Nonnull
+    public List<Message> getDispatchingMessages() {
+        List<Message> dispatchingMessages = new ArrayList<>();
+        for (Long messageId : mDispatchingMessages) {
+            Message message = mActiveMessages.get(messageId);
+            if (message != null) {
+                dispatchingMessages.add(message);
+            }
+        }
+        return dispatchingMessages;
+    }
+
+    /**
+     * @return true if the TaskQueue is shutting down and refuses new messages.
+     */
+    public boolean isDraining() {
+        return mDraining;
     }
 
     /**
      * Queue any messages that have pending recipients. If you call this method, be sure that the messages
      * in question are not being processed by the ConsumerThread, or are awaiting results
-     * from the dispatcher. Ideally, the TaskQueue should not be started.
+     * from the dispatcher. Ideally, the TaskQueue should not be started. The messages are fetched
+     * without holding the TaskQueue, so new messages can be queued meanwhile.
+     *
+     * @param includeHeld true to also reclaim the messages this node already holds, such as at startup.
      */
-    private void queuePendingMessages() {
-        // Get outstanding incomplete message messages and startup queue producer thread.
-        List<Message> pendingMessages = mMessagesDao.fetchPendingMessages();
-        Logger.info(String.format("Pending Message check. Active queue: %d.", pendingMessages.size()));
+    private void queuePendingMessages(boolean includeHeld) {
+        // Get outstanding incomplete message messages and startup queue producer thread. Messages are
+        // claimed a chunk at a time, rather than fetched, when they may be shared with other nodes.
+        int pendingCount;
+        if (mPendingMessageNotifier.isEnabled()) {
+            pendingCount = mPendingMessageNotifier.claimPendingMessages(includeHeld, this::queueSavedMessages);
+
+        } else {
+            List<Message> pendingMessages = mMessageStore.fetchPendingMessages();
+            pendingCount = pendingMessages.size();
+            queueSavedMessages(pendingMessages);
+        }
+
+        List<Message> inMemoryMessages = mInMemoryMessageStore.fetchPendingMessages();
+        queueSavedMessages(inMemoryMessages);
+        Logger.info(String.format("Pending Message check. Active queue: %d.", pendingCount + inMemoryMessages.size()));
+    }
 
-        for (Message message : pendingMessages) {
-            if (!isMessageInQueue(message)) {
+    /**
+     * Queue messages that have already been saved, such as those taken from the outbox, unless
+     * they are already active. Deferred messages are held until their send time.
+     *
+     * @param messages saved messages, without their recipients.
+     */
+    synchronized void queueSavedMessages(@Nonnull List<Message> messages) {
+        // Saved messages are picked up again after a restart, or by another node.
+        if (mDraining) {
+            return;
+        }
+
+        long currentTime = System.currentTimeMillis();
+        for (Message message : messages) {
+            if (!MessageHelper.isMessageDue(message, currentTime)) {
+                mMessageScheduler.schedule(message);
+
+            } else if (!isMessageInQueue(message)) {
                 queueMessage(message);
             }
         }
     }
 
+    /**
+     * Queue a deferred message released by the {@link MessageScheduler}, unless it is already active.
+     *
+     * @param message the deferred message.
+     */
+    private synchronized void queueScheduledMessage(@Nonnull Message message) {
+        Logger.debug(String.format("Deferred message %d is due.", message.getId()));
+        if (!isMessageInQueue(message)) {
+            queueMessage(message);
+        }
+    }
+
     /**
      * Add new messages to the TaskQueue.
      *
      * @param messages message to add to TaskQueue and dispatch.
      * @param callback TaskQueue callback to get processing updates..
+     * @return the queued messages, or the existing message for a message with an idempotency key that has
+     * already been queued. Messages without any recipients left to send to are not queued.
      */
-    public synchronized void queueMessages(@Nonnull List<Message> messages, TaskQueueListener callback) throws MessageValidationException {
+    @Nonnull
+    public synchronized List<Message> queueMessages(@Nonnull List<Message> messages, TaskQueueListener callback) throws MessageValidationException {
         Logger.debug("Retrieved a message from the client to queue.");
+        if (mDraining) {
+            throw new MessageValidationException("TaskQueue is shutting down.");
+        }
 
+        List<Message> queuedMessages = new ArrayList<>();
         for (Message message : messages) {
-            // Verify the Message has all required attributes.
-            MessageHelper.verifyMessage(message);
+            Message existingMessage = mIdempotencyKeyRegistry.findMessage(message.getIdempotencyKey());
+            if (existingMessage != null) {
+                Logger.debug(String.format("Message %d was already queued with the same idempotency key.", existingMessage.getId()));
+                queuedMessages.add(existingMessage);
+                continue;
+            }
+
+            if (!prepareMessage(message, callback)) {
+                continue;
+            }
 
-            if (!mMessagesDao.saveMessage(message)) {
+            mPendingMessageNotifier.claimMessage(message);
+            if (!getMessageStore(message).saveMessage(message)) {
+                // Another node may have saved the same idempotency key first.
+                existingMessage = mIdempotencyKeyRegistry.findMessage(message.getIdempotencyKey());
+                if (existingMessage != null) {
+                    queuedMessages.add(existingMessage);
+                    continue;
+                }
                 throw new MessageValidationException("Error saving message. Check persistence settings.");
             }
+            mIdempotencyKeyRegistry.addMessage(message);
+            queuedMessages.add(message);
+
+            // Hold the saved recipients in their compact in-flight form while the message is dispatched.
+            // Messages with an audience are loaded along with their audience on the first dispatch.
+            if (message.getAudience() == null && message.getRecipientTable() == null) {
+                message.setRecipientTable(RecipientTable.fromRecipients(message.getRecipients()));
+            }
+            message.setRecipients(null);
 
             // Add client TaskQueue listener.
             if (mExternalListeners.get(message.getId()) == null && callback != null) {
                 mExternalListeners.put(message.getId(), callback);
             }
 
+            // Hold a deferred message until its send time. Messages left in the store are loaded when they are
+            // nearly due, so their recipients are not held until then.
+            if (!MessageHelper.isMessageDue(message, System.currentTimeMillis())) {
+                if (!mMessageScheduler.schedule(message)) {
+                    message.setRecipientTable(null);
+                }
+
             // Queue the message if it is not active.
-            if (!isMessageInQueue(message)) {
+            } else if (!isMessageInQueue(message)) {
                 queueMessage(message);
             }
         }
+        return queuedMessages;
+    }
+
+    /**
+     * Verify a new message, rewrite stale tokens to their canonical tokens, drop recipients with known dead
+     * tokens and count its recipients.
+     *
+     * @param message  the new message.
+     * @param callback TaskQueue callback to notify of dropped recipients.
+     * @return false if the message has no recipients left to send to.
+     */
+    private boolean prepareMessage(@Nonnull Message message, @Nullable TaskQueueListener callback) throws MessageValidationException {
+        // Verify the Message has all required attributes.
+        MessageHelper.verifyMessage(message);
+
+        // Replace stale tokens with their canonical tokens, and drop recipients with known dead tokens.
+        mCanonicalTokenRegistry.rewriteRecipients(message);
+        List<Recipient> suppressedRecipients = mDeadTokenRegistry.removeSuppressedRecipients(message);
+        if (!suppressedRecipients.isEmpty()) {
+            Logger.debug(String.format("Dropped %d suppressed recipients from message.", suppressedRecipients.size()));
+            if (callback != null) {
+                callback.failedRecipients(suppressedRecipients);
+            }
+        }
+
+        boolean hasRecipients = message.getRecipients() != null && !message.getRecipients().isEmpty();
+        if (!hasRecipients && message.getAudience() == null) {
+            if (callback != null) {
+                callback.messageFailed(message, suppressedRecipients.get(0).getPlatformFailure());
+            }
+            return false;
+        }
+
+        MessageHelper.countRecipientStates(message);
+
+        if (!message.isDurable() && message.getAudience() != null) {
+            throw new MessageValidationException("stored audiences can only be sent to by durable messages.");
+        }
+
+        // Audience members are counted as pending until the audience is loaded for the first dispatch.
+        if (message.getAudience() != null) {
+            int audienceSize = mAudienceDao.countTokens(message.getAudience());
+            if (audienceSize < 0) {
+                throw new MessageValidationException("Error counting message audience. Check persistence settings.");
+
+            } else if (audienceSize == 0 && !hasRecipients) {
+                throw new MessageValidationException("message audience has no tokens.");
+            }
+            message.setPendingCount(message.getPendingCount() + audienceSize);
+        }
+        return true;
+    }
+
+    /**
+     * Add new messages to the outbox, within the caller's own transaction on the pushservices
+     * EbeanServer. Nothing is sent until the transaction commits and the {@link MessageOutboxRelay}
+     * picks the messages up, so the messages commit or roll back along with the caller's own changes.
+     *
+     * @param messages    messages to save to the outbox.
+     * @param transaction the caller's open transaction.
+     * @return the saved messages, or the existing message for a message with an idempotency key that has
+     * already been queued. Messages without any recipients left to send to are not saved.
+     */
+    @Nonnull
+    public List<Message> queueOutboxMessages(@Nonnull List<Message> messages, @Nonnull Transaction transaction) throws MessageValidationException {
+        List<Message> savedMessages = new ArrayList<>();
+        for (Message message : messages) {
+            if (!message.isDurable()) {
+                throw new MessageValidationException("only durable messages can be saved to the outbox.");
+            }
+
+            Message existingMessage = mIdempotencyKeyRegistry.findMessage(message.getIdempotencyKey());
+            if (existingMessage != null) {
+                savedMessages.add(existingMessage);
+                continue;
+            }
+
+            if (!prepareMessage(message, null)) {
+                continue;
+            }
+
+            if (!mMessagesDao.saveOutboxMessage(message, transaction)) {
+                throw new MessageValidationException("Error saving message to the outbox. Check persistence settings.");
+            }
+            savedMessages.add(message);
+        }
+        return savedMessages;
+    }
+
+    /**
+     * Add a new message with a streamed audience to the TaskQueue. Device tokens are validated,
+     * rewritten to their canonical tokens, filtered for dead tokens and de-duplicated as they are
+     * read, and are persisted in chunks, so memory use while accepting the message does not
+     * depend on the size of the audience.
+     *
+     * @param streamedMessage message and device token stream, built with the MessageBuilder.
+     * @param callback        TaskQueue callback to get processing updates..
+     * @return the queued message, or the existing message if the idempotency key has already been queued.
+     */
+    @Nonnull
+    public Message queueStreamedMessage(@Nonnull StreamedMessage streamedMessage, TaskQueueListener callback) throws MessageValidationException {
+        Message message = streamedMessage.getMessage();
+        MessageHelper.verifyMessageHeader(message);
+        if (mDraining) {
+            throw new MessageValidationException("TaskQueue is shutting down.");
+        }
+
+        Message existingMessage = mIdempotencyKeyRegistry.findMessage(message.getIdempotencyKey());
+        if (existingMessage != null) {
+            Logger.debug(String.format("Message %d was already queued with the same idempotency key.", existingMessage.getId()));
+            return existingMessage;
+        }
+
+        Iterator<String> sourceTokens = streamedMessage.getTokens();
+        TokenHashSet acceptedTokens = new TokenHashSet();
+        Iterator<String> recipientTokens = new AbstractIterator<String>() {
+            @Override
+            protected String computeNext() {
+                while (sourceTokens.hasNext()) {
+                    String token = sourceTokens.next();
+                    if (!MessageHelper.isTokenValid(token)) {
+                        continue;
+                    }
+
+                    token = mCanonicalTokenRegistry.getCanonicalToken(token);
+                    if (!mDeadTokenRegistry.isSuppressed(token) && acceptedTokens.add(token)) {
+                        return token;
+                    }
+                }
+                return endOfData();
+            }
+        };
+
+        mPendingMessageNotifier.claimMessage(message);
+        int recipientCount = getMessageStore(message).saveStreamedMessage(message, recipientTokens, STREAMED_MESSAGE_CHUNK_SIZE);
+        if (recipientCount < 0) {
+            throw new MessageValidationException("Error saving message. Check persistence settings.");
+
+        } else if (recipientCount == 0) {
+            throw new MessageValidationException("message has no valid recipients.");
+        }
+        mIdempotencyKeyRegistry.addMessage(message);
+
+        // The recipients are loaded into a recipient table when the message is dispatched.
+        Logger.debug(String.format("Streamed %d recipients into message %d.", recipientCount, message.getId()));
+        synchronized (this) {
+            if (mExternalListeners.get(message.getId()) == null && callback != null) {
+                mExternalListeners.put(message.getId(), callback);
+            }
+            queueSavedMessages(Collections.singletonList(message));
+        }
+        return message;
+    }
+
+    /**
+     * Cancel a queued or in-flight message. Queued work is removed, batches that have not been sent are
+     * skipped, and the remaining recipients are cancelled. Recipients that are already being sent to are
+     * left to finish, after which {@link TaskQueueListener#messageCancelled} is invoked.
+     *
+     * @param messageId the message id.
+     * @return true if the message was cancelled.
+     */
+    public boolean cancel(long messageId) {
+        Message activeMessage;
+        boolean wasQueued = false;
+        synchronized (this) {
+            activeMessage = mActiveMessages.get(messageId);
+            Message scheduledMessage = mMessageScheduler.unschedule(messageId);
+            if (activeMessage == null && scheduledMessage != null) {
+                activeMessage = scheduledMessage;
+                wasQueued = true;
+
+            } else if (activeMessage != null) {
+                wasQueued = mMessageProcessQueue.remove(activeMessage);
+                if (mQueueProducerThread != null) {
+                    wasQueued |= mQueueProducerThread.dispatchQueue.remove(activeMessage);
+                }
+            }
+        }
+
+        if (activeMessage != null) {
+            RecipientTable recipients = activeMessage.getRecipientTable();
+            if (recipients != null) {
+                MessageHelper.cancelPendingRecipients(activeMessage, recipients);
+
+            } else {
+                // The recipients were never loaded, so every pending recipient is cancelled in the store.
+                synchronized (activeMessage) {
+                    activeMessage.setCancelled(true);
+                    activeMessage.setAudienceSent(true);
+                    activeMessage.setCancelledCount(activeMessage.getCancelledCount() +
+                            activeMessage.getPendingCount() + activeMessage.getRetryingCount());
+                    activeMessage.setPendingCount(0);
+                    activeMessage.setRetryingCount(0);
+                }
+            }
+        }
+
+        MessageStore messageStore = activeMessage != null
+                ? getMessageStore(activeMessage)
+                : messageId < 0 ? mInMemoryMessageStore : mMessageStore;
+        if (!messageStore.cancelMessage(messageId, activeMessage)) {
+            return false;
+        }
+
+        Logger.info(String.format("Message %d cancelled.", messageId));
+        if (wasQueued) {
+            synchronized (this) {
+                finishCancelledMessage(activeMessage);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Expire the remaining recipients of a message past its time to live, in bulk, and finish it.
+     *
+     * @param message the expired message, which is not in flight.
+     */
+    private void expireMessage(@Nonnull Message message) {
+        if (message.getRecipientTable() != null) {
+            MessageHelper.expirePendingRecipients(message, message.getRecipientTable());
+
+        } else {
+            MessageHelper.expirePendingCount(message);
+        }
+
+        if (getMessageStore(message).expireMessage(message)) {
+            Logger.info(String.format("Message %d expired with %d unsent recipients.", message.getId(), message.getExpiredCount()));
+        }
+
+        TaskQueueListener messageCallback = getFinishedMessageListener(message);
+        if (messageCallback != null) {
+            messageCallback.messageExpired(message);
+        }
+        removeMessageFromQueue(message);
+    }
+
+    /**
+     * Get the client listener of a message that has finished. Recipients are only held in the
+     * {@link RecipientTable} while a message is in flight, so they are restored to the message
+     * as detached entities for the listener callbacks.
+     *
+     * @param message the finished message.
+     * @return the client listener, or null if there is none.
+     */
+    @Nullable
+    private TaskQueueListener getFinishedMessageListener(@Nonnull Message message) {
+        TaskQueueListener messageCallback = mExternalListeners.get(message.getId());
+        if (messageCallback != null && message.getRecipients() == null && message.getRecipientTable() != null) {
+            message.setRecipients(message.getRecipientTable().toRecipients());
+        }
+        return messageCallback;
+    }
+
+    private void finishCancelledMessage(@Nonnull Message message) {
+        TaskQueueListener messageCallback = getFinishedMessageListener(message);
+        if (messageCallback != null) {
+            messageCallback.messageCancelled(message);
+        }
+        removeMessageFromQueue(message);
+    }
+
+    /**
+     * Save the recipient states of a message to its store, timing the save.
+     *
+     * @param message the message.
+     * @return true if the states were saved.
+     */
+    private boolean saveRecipientStates(@Nonnull Message message) {
+        long saveStartNanos = System.nanoTime();
+        boolean isSaved = getMessageStore(message).saveRecipientStates(message);
+        mDispatchMetrics.getPersistenceLatency().recordSince(saveStartNanos);
+        return isSaved;
+    }
+
+    /**
+     * Get the store a message is persisted in.
+     *
+     * @param message the message.
+     * @return the in-memory store for non-durable messages, otherwise the durable store.
+     */
+    @Nonnull
+    private MessageStore getMessageStore(@Nonnull Message message) {
+        return message.isDurable() ? mMessageStore : mInMemoryMessageStore;
     }
 
     /**
@@ -156,9 +766,14 @@ public class TaskQueue {
      * @param message Message to add to the queue.
      */
     private void queueMessage(Message message) {
+        // While draining, the saved message is left for the next startup rather than dispatched again.
+        if (mDraining) {
+            return;
+        }
+
         if (message != null && message.getId() != null) {
             // Add to processing messages collection.
-            mActiveMessages.add(message.getId());
+            mActiveMessages.put(message.getId(), message);
 
             //  Add the internal provider dispatcher listener.
             if (mInternalListeners.get(message.getId()) == null) {
@@ -169,6 +784,7 @@ public class TaskQueue {
             // to be picked up by the consumer
             startProducerQueue();
             startConsumerQueue();
+            message.setQueuedNanos(System.nanoTime());
             mQueueProducerThread.dispatchQueue.add(message);
         }
     }
@@ -177,9 +793,14 @@ public class TaskQueue {
         if (message != null && message.getId() != null) {
             mActiveMessages.remove(message.getId());
             mMessageProcessQueue.remove(message);
+            mMessageProcessQueue.finishDispatch(message);
+            mDispatchingMessages.remove(message.getId());
 
             mInternalListeners.remove(message.getId());
             mExternalListeners.remove(message.getId());
+
+            // Release the in-flight recipient state.
+            message.setRecipientTable(null);
         }
     }
 
@@ -191,7 +812,7 @@ public class TaskQueue {
      * @return true if the message is currently active.
      */
     private boolean isMessageInQueue(@Nonnull Message message) {
-        if (mActiveMessages.contains(message.getId())) {
+        if (mActiveMessages.containsKey(message.getId())) {
             Logger.debug(String.format("Message %d found in active process queue.", message.getId()));
             return true;
 
@@ -207,39 +828,98 @@ public class TaskQueue {
      */
     private void dispatchMessage(@Nonnull Message message) {
         int messageRecipientCount = 0;
+        mDispatchMetrics.getQueueLatency().recordSince(message.getQueuedNanos());
 
-        try {
-            if (!MessageHelper.isMessageReady(message)) {
-                Logger.warn(String.format("Message %d has already finished and won't be dispatched.", message.getId()));
-                return;
+        // The message was cancelled after it was taken from the queue, or while it was in flight. Cancel any
+        // recipients that were set to retry by the in-flight response.
+        if (message.isCancelled()) {
+            if (message.getRecipientTable() != null && !MessageHelper.hasMessageCompleted(message)) {
+                MessageHelper.cancelPendingRecipients(message, message.getRecipientTable());
+                getMessageStore(message).cancelMessage(message.getId(), message);
             }
+            finishCancelledMessage(message);
+            return;
+        }
 
-        } catch (MessageValidationException e) {
-            Logger.error(String.format("Message %d invalid: %s", message.getId(), e.getMessage()));
-            PlatformFailure failure = new PlatformFailure(FailureType.MESSAGE_PAYLOAD_INVALID, e.getMessage(), new Date());
-            MessageHelper.failMessage(message, failure);
-            mMessagesDao.saveMessage(message);
-
+        if (!MessageHelper.isMessageReady(message)) {
+            Logger.warn(String.format("Message %d has already finished and won't be dispatched.", message.getId()));
             removeMessageFromQueue(message);
             return;
         }
 
+        // The platform would discard the message, so its remaining recipients are expired without being loaded.
+        if (MessageHelper.hasMessageExpired(message, System.currentTimeMillis())) {
+            expireMessage(message);
+            return;
+        }
+
+        // Load the in-flight recipient state of messages which were not queued from this process.
+        if (message.getRecipientTable() == null) {
+            long fetchStartNanos = System.nanoTime();
+            RecipientTable recipientTable = getMessageStore(message).fetchRecipientTable(message);
+            mDispatchMetrics.getPersistenceLatency().recordSince(fetchStartNanos);
+            if (recipientTable == null) {
+                removeMessageFromQueue(message);
+                mPendingMessageNotifier.lapseClaim(message);
+                return;
+            }
+            message.setRecipientTable(recipientTable);
+
+            // The audience membership is fixed when it is first loaded.
+            if (message.getAudience() != null && !message.isAudienceSent()) {
+                MessageHelper.countRecipientStates(message, recipientTable);
+            }
+        }
+
+        // Replace any stale recipient tokens reported since the message was last sent.
+        if (mCanonicalTokenRegistry.rewritePendingRecipients(message) > 0) {
+            Logger.debug(String.format("Rewrote stale recipient tokens in message %d", message.getId()));
+        }
+
         // Set recipient states to processing for ready recipients.
-        for (Recipient recipient : message.getRecipients()) {
-            // The recipient is out of the cooling off period.
-            if (!MessageHelper.isRecipientCoolingOff(recipient)) {
-                recipient.setState(RecipientState.STATE_PROCESSING);
-                recipient.setLastSendAttempt(new Date());
+        RecipientTable recipients = message.getRecipientTable();
+        boolean checkSuppressedTokens = mDeadTokenRegistry.hasSuppressedTokens();
+        int dispatchAllowance = mMessageProcessQueue.getDispatchAllowance(message);
+        long currentTime = System.currentTimeMillis();
+
+        for (int row = 0; row < recipients.size(); row++) {
+            if (!MessageHelper.isRecipientPending(recipients, row)) {
+                continue;
+            }
+
+            // The recipient token has since been reported as dead.
+            if (checkSuppressedTokens && mDeadTokenRegistry.isSuppressed(recipients.getToken(row))) {
+                MessageHelper.setRecipientState(message, recipients, row, RecipientState.STATE_FAILED);
+                if (recipients.getFailure(row) == null) {
+                    recipients.setFailure(row, mDeadTokenRegistry.createFailure(recipients.getToken(row)));
+                }
+
+            // The tenant has reached its in-flight limit, so the recipient is left for the next dispatch.
+            } else if (messageRecipientCount >= dispatchAllowance) {
+                continue;
+
+            // The recipient is over its device send rate, so it is held back rather than rejected by the platform.
+            } else if (!MessageHelper.isRecipientCoolingOff(recipients, row, currentTime) &&
+                    recipients.getType(row) == RecipientType.TYPE_TOKEN &&
+                    !mDeviceRateLimiter.tryAcquire(recipients.getToken(row), currentTime)) {
+                MessageHelper.holdRecipient(message, recipients, row, mDeviceRateLimiter.getReleaseTime(currentTime));
+
+            // The recipient is still pending and out of the cooling off period.
+            } else if (!MessageHelper.isRecipientCoolingOff(recipients, row, currentTime)) {
+                MessageHelper.setRecipientState(message, recipients, row, RecipientState.STATE_PROCESSING);
+                recipients.setLastSendAttempt(row, currentTime);
                 messageRecipientCount += 1;
+
             } else {
-                Logger.debug(String.format("Recipient %d still within cooling down period", recipient.getId()));
+                Logger.debug(String.format("Recipient %d still within cooling down period", recipients.getRecipientId(row)));
             }
         }
 
         // If there are pendingRecipients, dispatch the message.
         if (messageRecipientCount > 0) {
-            if (!mMessagesDao.saveMessage(message)) {
+            if (!saveRecipientStates(message)) {
                 removeMessageFromQueue(message);
+                mPendingMessageNotifier.lapseClaim(message);
                 return;
             }
 
@@ -251,8 +931,21 @@ public class TaskQueue {
 
             // Dispatch the message.
             Logger.debug(String.format("Dispatching message %d", message.getId()));
+            mMessageProcessQueue.startDispatch(message, messageRecipientCount);
+            mDispatchingMessages.add(message.getId());
+            mDispatchMetrics.addDispatchedRecipients(messageRecipientCount);
             mGcmMessageDispatcher.dispatchMessage(message, platformResponse);
 
+        } else if (MessageHelper.hasMessageCompleted(message)) {
+            // Every remaining recipient was dropped before it could be dispatched.
+            saveRecipientStates(message);
+
+            TaskQueueListener messageCallback = getFinishedMessageListener(message);
+            if (messageCallback != null) {
+                messageCallback.messageCompleted(message);
+            }
+            removeMessageFromQueue(message);
+
         } else {
             // At least one recipient in the message is pending AND cooling off. Requeue message.
             Logger.debug(String.format("Only cooling down recipients ready in message %d. Requeuing", message.getId()));
@@ -268,15 +961,26 @@ public class TaskQueue {
         /**
          * A raw, unsorted callback for results returned for a message send from the push-services.
          *
-         * @param message           The original message sent to the push-services
-         * @param successRecipients The list of completed Recipients
-         * @param failedRecipients  The map of failed Recipients with the Failure.
-         * @param recipientsToRetry The list of recipients to exponentially retry.
+         * @param message            The original message sent to the push-services
+         * @param completedCount     The number of completed Recipients
+         * @param failedRecipients   The list of failed Recipients with the Failure.
+         * @param recipientsToUpdate The list of Recipients with a new canonical token.
+         * @param retryCount         The number of recipients to exponentially retry.
          **/
         @Override
-        public void messageSuccess(@Nonnull Message message, @Nonnull List<Recipient> successRecipients, @Nonnull List<Recipient> failedRecipients,
-                                   @Nonnull List<UpdatedRecipient> recipientsToUpdate, @Nonnull List<Recipient> recipientsToRetry) {
-            mMessagesDao.saveMessage(message);
+        public void messageSuccess(@Nonnull Message message, int completedCount, @Nonnull List<Recipient> failedRecipients,
+                                   @Nonnull List<UpdatedRecipient> recipientsToUpdate, int retryCount) {
+            mMessageProcessQueue.finishDispatch(message);
+            saveRecipientStates(message);
+            mDispatchingMessages.remove(message.getId());
+            mDeadTokenRegistry.suppressFailedRecipients(failedRecipients);
+            mCanonicalTokenRegistry.addCanonicalTokens(recipientsToUpdate);
+            mDeviceRateLimiter.addRateExceededRecipients(failedRecipients);
+            for (Recipient failedRecipient : failedRecipients) {
+                if (failedRecipient.getPlatformFailure() != null) {
+                    mDispatchMetrics.addFailures(failedRecipient.getPlatformFailure().getFailureType(), 1);
+                }
+            }
 
             if (!MessageHelper.hasMessageCompleted(message)) {
                 queueMessage(message);
@@ -284,7 +988,7 @@ public class TaskQueue {
             }
 
             // Client responses:
-            TaskQueueListener messageCallback = mExternalListeners.get(message.getId());
+            TaskQueueListener messageCallback = getFinishedMessageListener(message);
             if (messageCallback != null) {
 
                 // Invoke updatedRecipients() callback.
@@ -299,9 +1003,15 @@ public class TaskQueue {
                     messageCallback.failedRecipients(failedRecipients);
                 }
 
-                // Invoke messageCompleted() callback.
-                if (MessageHelper.hasMessageCompleted(message)) {
-                    Logger.debug(String.format("[%d] successful recipients", successRecipients.size()));
+                // Invoke messageCancelled(), messageExpired() or messageCompleted() callback.
+                if (message.isCancelled()) {
+                    messageCallback.messageCancelled(message);
+
+                } else if (message.getExpiredCount() > 0 && MessageHelper.hasMessageExpired(message, System.currentTimeMillis())) {
+                    messageCallback.messageExpired(message);
+
+                } else if (MessageHelper.hasMessageCompleted(message)) {
+                    Logger.debug(String.format("[%d] successful recipients", message.getCompleteCount()));
                     messageCallback.messageCompleted(message);
                 }
             }
@@ -316,15 +1026,21 @@ public class TaskQueue {
                     failure.getFailureType().name(), message.getId()));
 
             // Update the message entry.
-            mMessagesDao.saveMessage(message);
+            mDispatchMetrics.addFailures(failure.getFailureType(), 1);
+            mMessageProcessQueue.finishDispatch(message);
+            saveRecipientStates(message);
+            mDispatchingMessages.remove(message.getId());
 
             if (!MessageHelper.hasMessageCompleted(message)) {
                 queueMessage(message);
                 return;
             }
 
-            TaskQueueListener messageCallback = mExternalListeners.get(message.getId());
-            if (messageCallback != null) {
+            TaskQueueListener messageCallback = getFinishedMessageListener(message);
+            if (messageCallback != null && message.isCancelled()) {
+                messageCallback.messageCancelled(message);
+
+            } else if (messageCallback != null) {
                 messageCallback.messageFailed(message, failure);
             }
 
@@ -346,18 +1062,29 @@ public class TaskQueue {
 
         @Override
         public void run() {
-            while (true) {
+            while (!mDraining) {
                 try {
-                    Message waitingMessage = dispatchQueue.take();
-                    Logger.debug("Adding item from Producer into MessageQueue");
+                    Message message = dispatchQueue.poll(TASKQUEUE_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    if (message == null) {
+                        continue;
+                    }
+
+                    // Move every waiting message across at once, so that they are ordered fairly between tenants.
+                    List<Message> waitingMessages = new ArrayList<>();
+                    waitingMessages.add(message);
+                    dispatchQueue.drainTo(waitingMessages);
+                    Logger.debug(String.format("Adding %d items from Producer into MessageQueue", waitingMessages.size()));
 
-                    mMessageProcessQueue.offer(waitingMessage);
+                    for (Message waitingMessage : waitingMessages) {
+                        mMessageProcessQueue.add(waitingMessage);
+                    }
 
                     // Sleep on while so often so the server isn't hammered.
                     Thread.sleep(TASKQUEUE_POLL_INTERVAL_MS);
 
                 } catch (InterruptedException e) {
                     Logger.debug("InterruptedException was invoked in the MessageProducerThread");
+                    return;
                 }
             }
         }
@@ -372,9 +1099,12 @@ public class TaskQueue {
         @Override
         public void run() {
             try {
-                while (true) {
+                while (!mDraining) {
                     // Take and remove the task from queue.
-                    Message message = mMessageProcessQueue.take();
+                    Message message = mMessageProcessQueue.poll(TASKQUEUE_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    if (message == null || mDraining) {
+                        continue;
+                    }
                     Logger.debug(String.format("TaskQueue processing queued message %d", message.getId()));
 
                     // Dispatch the queued message.
@@ -0,0 +1,212 @@
+package dao.pushservices;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import enums.pushservices.PlatformType;
+import enums.pushservices.RecipientState;
+import enums.pushservices.RecipientType;
+import helpers.pushservices.JournalSegments;
+import helpers.pushservices.MessageHelper;
+import models.pushservices.app.RecipientTable;
+import models.pushservices.db.Credentials;
+import models.pushservices.db.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test replay of the journal message store after restarts, torn records and interrupted compactions.
+ */
+public class JournalMessageStoreTest {
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mJournalFolder = new TemporaryFolder();
+
+    @Test
+    public void testPendingMessagesSurviveRestart() {
+        JournalMessageStore store = createStore();
+        Message pendingMessage = createMessage("token1", "token2", "token3");
+        Message finishedMessage = createMessage("token4");
+        assertTrue(store.saveMessage(pendingMessage));
+        assertTrue(store.saveMessage(finishedMessage));
+
+        setRecipientState(pendingMessage, 0, RecipientState.STATE_COMPLETE);
+        setRecipientState(pendingMessage, 1, RecipientState.STATE_FAILED);
+        assertTrue(store.saveRecipientStates(pendingMessage));
+        setRecipientState(finishedMessage, 0, RecipientState.STATE_COMPLETE);
+        assertTrue(store.saveRecipientStates(finishedMessage));
+        store.close();
+
+        JournalMessageStore reopenedStore = createStore();
+        List<Message> pendingMessages = reopenedStore.fetchPendingMessages();
+        assertEquals(1, pendingMessages.size());
+
+        Message replayedMessage = pendingMessages.get(0);
+        assertEquals(pendingMessage.getId(), replayedMessage.getId());
+        assertEquals(1, replayedMessage.getPendingCount());
+        assertEquals(1, replayedMessage.getCompleteCount());
+        assertEquals(1, replayedMessage.getFailedCount());
+
+        RecipientTable recipientTable = reopenedStore.fetchRecipientTable(replayedMessage);
+        assertNotNull(recipientTable);
+        assertEquals(3, recipientTable.size());
+        assertEquals("token1", recipientTable.getToken(0));
+        assertEquals(RecipientState.STATE_COMPLETE, recipientTable.getState(0));
+        assertEquals(RecipientState.STATE_FAILED, recipientTable.getState(1));
+        assertEquals(RecipientState.STATE_IDLE, recipientTable.getState(2));
+        reopenedStore.close();
+    }
+
+    @Test
+    public void testTornRecordIsDiscarded() throws IOException {
+        JournalMessageStore store = createStore();
+        Message intactMessage = createMessage("token1");
+        Message tornMessage = createMessage("token2");
+        assertTrue(store.saveMessage(intactMessage));
+        assertTrue(store.saveMessage(tornMessage));
+        store.close();
+
+        // Corrupt the last record, the recipients of the second message, as if the write was torn by a crash.
+        Path segmentPath = getSegmentPaths().get(0);
+        byte[] segment = Files.readAllBytes(segmentPath);
+        int lastWritten = segment.length - 1;
+        while (segment[lastWritten] == 0) {
+            lastWritten--;
+        }
+        segment[lastWritten] ^= 0x7f;
+        Files.write(segmentPath, segment);
+
+        JournalMessageStore reopenedStore = createStore();
+        List<Message> pendingMessages = reopenedStore.fetchPendingMessages();
+        assertEquals(1, pendingMessages.size());
+        assertEquals(intactMessage.getId(), pendingMessages.get(0).getId());
+
+        // Records appended after the torn record are replayed.
+        Message appendedMessage = createMessage("token3");
+        assertTrue(reopenedStore.saveMessage(appendedMessage));
+        reopenedStore.close();
+
+        JournalMessageStore restartedStore = createStore();
+        assertEquals(2, restartedStore.fetchPendingMessages().size());
+        restartedStore.close();
+    }
+
+    @Test
+    public void testInterruptedSnapshotIsAborted() throws IOException {
+        JournalMessageStore store = createStore();
+        Message firstMessage = createMessage("token1");
+        assertTrue(store.saveMessage(firstMessage));
+        store.close();
+
+        // A compaction that stopped after starting its snapshot.
+        try (JournalSegments journal = new JournalSegments(mJournalFolder.getRoot().toPath(), SEGMENT_SIZE)) {
+            journal.replay((type, payload) -> {
+            });
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeLong(firstMessage.getId());
+            journal.append(JournalMessageStore.RECORD_SNAPSHOT_BEGIN, bytes.toByteArray());
+        }
+
+        JournalMessageStore reopenedStore = createStore();
+        List<Message> pendingMessages = reopenedStore.fetchPendingMessages();
+        assertEquals(1, pendingMessages.size());
+        Message replayedMessage = pendingMessages.get(0);
+        replayedMessage.setRecipientTable(reopenedStore.fetchRecipientTable(replayedMessage));
+
+        // Messages accepted and released after the interrupted snapshot are not lost to it.
+        Message secondMessage = createMessage("token2");
+        assertTrue(reopenedStore.saveMessage(secondMessage));
+        setRecipientState(replayedMessage, 0, RecipientState.STATE_COMPLETE);
+        assertTrue(reopenedStore.saveRecipientStates(replayedMessage));
+        reopenedStore.close();
+
+        JournalMessageStore restartedStore = createStore();
+        pendingMessages = restartedStore.fetchPendingMessages();
+        assertEquals(1, pendingMessages.size());
+        assertEquals(secondMessage.getId(), pendingMessages.get(0).getId());
+        restartedStore.close();
+    }
+
+    @Test
+    public void testCompactionKeepsPendingMessages() throws IOException {
+        JournalMessageStore store = createStore();
+
+        // Enough recipients to fill two segments.
+        String[] tokens = new String[20000];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = String.format("%064d", i);
+        }
+        Message message = createMessage(tokens);
+        assertTrue(store.saveMessage(message));
+
+        for (int row = 0; row < tokens.length / 2; row++) {
+            setRecipientState(message, row, RecipientState.STATE_COMPLETE);
+        }
+        assertTrue(store.saveRecipientStates(message));
+        store.close();
+
+        // The segments written before the snapshot have been deleted.
+        List<Path> segmentPaths = getSegmentPaths();
+        assertFalse(segmentPaths.get(0).getFileName().toString().endsWith("0001.journal"));
+
+        JournalMessageStore reopenedStore = createStore();
+        List<Message> pendingMessages = reopenedStore.fetchPendingMessages();
+        assertEquals(1, pendingMessages.size());
+        assertEquals(tokens.length / 2, pendingMessages.get(0).getCompleteCount());
+        assertEquals(tokens.length / 2, pendingMessages.get(0).getPendingCount());
+
+        RecipientTable recipientTable = reopenedStore.fetchRecipientTable(pendingMessages.get(0));
+        assertNotNull(recipientTable);
+        assertEquals(tokens.length, recipientTable.size());
+        assertEquals(tokens[tokens.length - 1], recipientTable.getToken(tokens.length - 1));
+        reopenedStore.close();
+    }
+
+    private JournalMessageStore createStore() {
+        Map<String, Object> configuration = new HashMap<>();
+        configuration.put("pushservices.store.directory", mJournalFolder.getRoot().getAbsolutePath());
+        configuration.put("pushservices.store.segmentSizeMb", SEGMENT_SIZE / (1024 * 1024));
+        configuration.put("pushservices.store.compactSegments", 2);
+        Config config = ConfigFactory.parseMap(configuration);
+        return new JournalMessageStore(config);
+    }
+
+    private static Message createMessage(String... tokens) {
+        Credentials credentials = new Credentials(PlatformType.SERVICE_GCM);
+        credentials.setAuthKey("gcm_key");
+
+        Message message = new Message();
+        message.setCredentials(credentials);
+        RecipientTable recipientTable = new RecipientTable(tokens.length);
+        for (String token : tokens) {
+            recipientTable.add(RecipientTable.NO_RECIPIENT_ID, token, RecipientType.TYPE_TOKEN, RecipientState.STATE_IDLE, 0, 0L, 0L);
+        }
+        message.setRecipientTable(recipientTable);
+        MessageHelper.countRecipientStates(message, recipientTable);
+        return message;
+    }
+
+    private static void setRecipientState(Message message, int row, RecipientState state) {
+        MessageHelper.setRecipientState(message, message.getRecipientTable(), row, state);
+    }
+
+    private List<Path> getSegmentPaths() throws IOException {
+        try (Stream<Path> paths = Files.list(mJournalFolder.getRoot().toPath())) {
+            return paths.sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -2,6 +2,7 @@ package dao.pushservices;
 
 import enums.pushservices.FailureType;
 import enums.pushservices.MessagePriority;
+import enums.pushservices.PayloadStorage;
 import enums.pushservices.PlatformType;
 import enums.pushservices.RecipientState;
 import exceptions.pushservices.MessageValidationException;
@@ -110,6 +111,10 @@ public class MessageDaoTest extends PushServicesApplicationTest {
 
         assertEquals(2, savedMessage1.getRecipients().size());
         assertEquals(1, savedMessage2.getRecipients().size());
+
+        assertEquals(2, savedMessage1.getPendingCount());
+        assertEquals(1, savedMessage2.getPendingCount());
+        assertEquals(0, savedMessage1.getCompleteCount() + savedMessage1.getFailedCount() + savedMessage1.getRetryingCount());
     }
 
     @Test
@@ -178,4 +183,29 @@ public class MessageDaoTest extends PushServicesApplicationTest {
             }
         }
     }
+
+    @Test
+    public void testDatabaseJsonPayloadInsert() throws MessageValidationException {
+        Credentials credentials = new Credentials(PlatformType.SERVICE_GCM);
+        credentials.setAuthKey("gcm_key");
+
+        Message message = new MessageBuilder.Builder()
+                .setPlatformCredentials(credentials)
+                .setPayloadStorage(PayloadStorage.STORAGE_JSON)
+                .addDeviceToken("token1")
+                .addData("message_item1", "value1")
+                .addData("message_item2", "value2")
+                .build();
+
+        assertNotNull(message);
+        assertTrue(mMessagesDao.saveMessage(message));
+
+        List<Message> savedMessages = mMessagesDao.fetchMessages();
+        Message savedMessage = savedMessages.get(0);
+
+        assertTrue(savedMessage.getPayloadData() == null || savedMessage.getPayloadData().isEmpty());
+        assertNotNull(savedMessage.getPayload());
+        assertTrue(savedMessage.getPayload().contains("message_item1"));
+        assertTrue(savedMessage.getPayload().contains("value2"));
+    }
 }
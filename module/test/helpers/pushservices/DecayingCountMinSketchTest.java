@@ -0,0 +1,71 @@
+package helpers.pushservices;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test count estimates of the decaying count-min sketch as its window moves across time buckets.
+ */
+public class DecayingCountMinSketchTest {
+    // A 1 second window in 4 buckets of 250ms.
+    private static final long WINDOW_MILLIS = 1000;
+    private static final int BUCKET_COUNT = 4;
+
+    @Test
+    public void testCountsAcrossBuckets() {
+        DecayingCountMinSketch sketch = new DecayingCountMinSketch(1024, BUCKET_COUNT, WINDOW_MILLIS);
+        assertEquals(250, sketch.getBucketMillis());
+
+        sketch.add("token1", 3, 0);
+        assertEquals(3, sketch.estimate("token1", 0));
+
+        sketch.add("token1", 2, 300);
+        assertEquals(5, sketch.estimate("token1", 300));
+
+        sketch.add("token1", 1, 800);
+        assertEquals(6, sketch.estimate("token1", 999));
+    }
+
+    @Test
+    public void testCountsDecayAsWindowMoves() {
+        DecayingCountMinSketch sketch = new DecayingCountMinSketch(1024, BUCKET_COUNT, WINDOW_MILLIS);
+        sketch.add("token1", 3, 0);
+        sketch.add("token1", 2, 300);
+
+        // The first bucket falls out of the window, then the second.
+        assertEquals(2, sketch.estimate("token1", 1000));
+        assertEquals(2, sketch.estimate("token1", 1249));
+        assertEquals(0, sketch.estimate("token1", 1250));
+    }
+
+    @Test
+    public void testReusedBucketIsCleared() {
+        DecayingCountMinSketch sketch = new DecayingCountMinSketch(1024, BUCKET_COUNT, WINDOW_MILLIS);
+        sketch.add("token1", 5, 0);
+
+        // The same bucket, one turn of the window later.
+        sketch.add("token1", 1, 1000);
+        assertEquals(1, sketch.estimate("token1", 1000));
+    }
+
+    @Test
+    public void testNeverUndercounts() {
+        DecayingCountMinSketch sketch = new DecayingCountMinSketch(256, BUCKET_COUNT, WINDOW_MILLIS);
+        int keyCount = 2000;
+        for (int i = 0; i < keyCount; i++) {
+            sketch.add("token" + i, i % 7 + 1, i % 1000);
+        }
+
+        for (int i = 0; i < keyCount; i++) {
+            assertTrue(sketch.estimate("token" + i, 999) >= i % 7 + 1);
+        }
+    }
+
+    @Test
+    public void testUnseenKey() {
+        DecayingCountMinSketch sketch = new DecayingCountMinSketch(4096, BUCKET_COUNT, WINDOW_MILLIS);
+        sketch.add("token1", 1, 0);
+        assertEquals(0, sketch.estimate("token2", 0));
+    }
+}
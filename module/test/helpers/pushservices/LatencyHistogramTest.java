@@ -0,0 +1,82 @@
+package helpers.pushservices;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test percentiles and bucket edges of the log-linear latency histogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmptySnapshot() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram(1, TimeUnit.SECONDS).getSnapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getValueAtPercentile(99), 0);
+        assertEquals(0, snapshot.getMeanMicros(), 0);
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.SECONDS);
+        for (int micros = 0; micros < 64; micros++) {
+            histogram.record(micros);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(64, snapshot.getCount());
+        assertEquals(0, snapshot.getValueAtPercentile(0));
+        assertEquals(31, snapshot.getValueAtPercentile(50));
+        assertEquals(62, snapshot.getValueAtPercentile(98));
+        assertEquals(63, snapshot.getValueAtPercentile(100));
+        assertEquals(31.5, snapshot.getMeanMicros(), 0.001);
+    }
+
+    @Test
+    public void testBucketEdges() {
+        // From 64, each pair of values shares a bucket, reported as its highest value.
+        LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.SECONDS);
+        histogram.record(63);
+        histogram.record(64);
+        histogram.record(65);
+        histogram.record(66);
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(63, snapshot.getValueAtPercentile(25));
+        assertEquals(65, snapshot.getValueAtPercentile(50));
+        assertEquals(65, snapshot.getValueAtPercentile(75));
+
+        // The highest bucket is capped at the largest recorded value.
+        assertEquals(66, snapshot.getValueAtPercentile(100));
+        assertEquals(66, snapshot.getMaxMicros());
+    }
+
+    @Test
+    public void testRelativePrecision() {
+        for (long micros = 1; micros < TimeUnit.SECONDS.toMicros(10); micros = micros * 3 / 2 + 7) {
+            LatencyHistogram histogram = new LatencyHistogram(10, TimeUnit.SECONDS);
+            histogram.record(micros);
+            histogram.record(micros * 4);
+
+            long reported = histogram.getSnapshot().getValueAtPercentile(50);
+            assertTrue(String.format("%d reported as %d", micros, reported), reported >= micros);
+            assertTrue(String.format("%d reported as %d", micros, reported), reported <= micros + micros / 32);
+        }
+    }
+
+    @Test
+    public void testValuesAboveHighestTrackableAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.SECONDS);
+        histogram.record(TimeUnit.SECONDS.toMicros(30));
+        histogram.record(-5);
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(TimeUnit.SECONDS.toMicros(1), snapshot.getMaxMicros());
+        assertEquals(TimeUnit.SECONDS.toMicros(1), snapshot.getValueAtPercentile(100));
+        assertEquals(0, snapshot.getValueAtPercentile(50));
+    }
+}
@@ -0,0 +1,57 @@
+package helpers.pushservices;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test counts of the sliding window counter as the window moves across time buckets.
+ */
+public class SlidingWindowCounterTest {
+    // A 1 minute window in 6 buckets of 10 seconds.
+    private static final long WINDOW_MILLIS = 60000;
+    private static final int BUCKET_COUNT = 6;
+
+    @Test
+    public void testWindowLength() {
+        assertEquals(WINDOW_MILLIS, new SlidingWindowCounter(WINDOW_MILLIS, BUCKET_COUNT).getWindowMillis());
+
+        // The window is rounded down to a whole number of buckets.
+        assertEquals(60000, new SlidingWindowCounter(60005, BUCKET_COUNT).getWindowMillis());
+    }
+
+    @Test
+    public void testCountsWithinWindow() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(WINDOW_MILLIS, BUCKET_COUNT);
+        assertEquals(0, counter.getCount(0));
+
+        counter.add(5, 0);
+        counter.add(3, 9999);
+        counter.add(2, 10000);
+        counter.add(1, 59999);
+
+        assertEquals(11, counter.getCount(59999));
+    }
+
+    @Test
+    public void testCountsExpireAsWindowMoves() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(WINDOW_MILLIS, BUCKET_COUNT);
+        counter.add(5, 0);
+        counter.add(2, 10000);
+
+        // The first bucket falls out of the window, then the second.
+        assertEquals(2, counter.getCount(60000));
+        assertEquals(2, counter.getCount(69999));
+        assertEquals(0, counter.getCount(70000));
+    }
+
+    @Test
+    public void testReusedBucketIsCleared() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(WINDOW_MILLIS, BUCKET_COUNT);
+        counter.add(5, 0);
+
+        // The same bucket, one turn of the window later.
+        counter.add(1, 60000);
+        assertEquals(1, counter.getCount(60000));
+    }
+}
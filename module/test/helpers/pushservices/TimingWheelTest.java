@@ -0,0 +1,104 @@
+package helpers.pushservices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test release of timing wheel items at their deadlines, including deadlines several turns of the wheel away.
+ */
+public class TimingWheelTest {
+    private static final long TICK_MILLIS = 5;
+
+    // 4 buckets of 5ms, so one turn of the wheel covers 20ms.
+    private static final int WHEEL_SIZE = 4;
+
+    // Generous upper bound on release lateness, as the wheel thread may be descheduled.
+    private static final long MAX_LATENESS_MILLIS = 1000;
+
+    private final Map<String, Long> mReleaseTimes = new ConcurrentHashMap<>();
+    private CountDownLatch mReleaseLatch;
+    private TimingWheel<String> mTimingWheel;
+
+    @Before
+    public void beforeTest() {
+        mTimingWheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, item -> {
+            mReleaseTimes.put(item, System.currentTimeMillis());
+            mReleaseLatch.countDown();
+        });
+        mTimingWheel.start();
+    }
+
+    @After
+    public void afterTest() {
+        mTimingWheel.stop();
+    }
+
+    @Test
+    public void testMultiRoundDeadlines() throws InterruptedException {
+        mReleaseLatch = new CountDownLatch(3);
+        long currentTime = System.currentTimeMillis();
+        long[] deadlines = {currentTime + 15, currentTime + 65, currentTime + 145};
+        for (int i = 0; i < deadlines.length; i++) {
+            mTimingWheel.schedule("item" + i, deadlines[i]);
+        }
+
+        assertTrue(mReleaseLatch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < deadlines.length; i++) {
+            long releaseTime = mReleaseTimes.get("item" + i);
+            assertTrue(String.format("item%d released %dms early", i, deadlines[i] - releaseTime), releaseTime >= deadlines[i]);
+            assertTrue(String.format("item%d released %dms late", i, releaseTime - deadlines[i]),
+                    releaseTime <= deadlines[i] + MAX_LATENESS_MILLIS);
+        }
+        assertTrue(mReleaseTimes.get("item0") <= mReleaseTimes.get("item1"));
+        assertTrue(mReleaseTimes.get("item1") <= mReleaseTimes.get("item2"));
+    }
+
+    @Test
+    public void testSameBucketDifferentRounds() throws InterruptedException {
+        mReleaseLatch = new CountDownLatch(1);
+        long currentTime = System.currentTimeMillis();
+
+        // Deadlines a whole number of turns of the wheel apart hash into the same bucket.
+        long laterDeadline = currentTime + 20 * TICK_MILLIS * WHEEL_SIZE;
+        mTimingWheel.schedule("later", laterDeadline);
+        mTimingWheel.schedule("sooner", currentTime + 20 * TICK_MILLIS);
+
+        assertTrue(mReleaseLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(mReleaseTimes.containsKey("sooner"));
+        assertFalse(mReleaseTimes.containsKey("later"));
+
+        mReleaseLatch = new CountDownLatch(1);
+        assertTrue(mReleaseLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(mReleaseTimes.get("later") >= laterDeadline);
+    }
+
+    @Test
+    public void testPassedDeadlineReleasedOnNextTick() throws InterruptedException {
+        mReleaseLatch = new CountDownLatch(1);
+        mTimingWheel.schedule("overdue", System.currentTimeMillis() - 1000);
+
+        assertTrue(mReleaseLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(mReleaseTimes.containsKey("overdue"));
+    }
+
+    @Test
+    public void testCancelledItemNotReleased() throws InterruptedException {
+        mReleaseLatch = new CountDownLatch(1);
+        long currentTime = System.currentTimeMillis();
+        TimingWheel.Timeout<String> timeout = mTimingWheel.schedule("cancelled", currentTime + 30);
+        mTimingWheel.schedule("kept", currentTime + 60);
+        timeout.cancel();
+
+        assertTrue(mReleaseLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(mReleaseTimes.containsKey("kept"));
+        assertFalse(mReleaseTimes.containsKey("cancelled"));
+    }
+}
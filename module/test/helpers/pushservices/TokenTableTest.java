@@ -0,0 +1,65 @@
+package helpers.pushservices;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test interning, lookup and growth of the compact token table.
+ */
+public class TokenTableTest {
+
+    private static String token(int index) {
+        StringBuilder token = new StringBuilder("token-").append(index).append(':');
+        while (token.length() < 180) {
+            token.append('x');
+        }
+        return token.toString();
+    }
+
+    @Test
+    public void testInternReturnsSameReference() {
+        TokenTable tokenTable = new TokenTable(16);
+        int reference = tokenTable.intern("token1");
+
+        assertEquals(reference, tokenTable.intern("token1"));
+        assertNotEquals(reference, tokenTable.intern("token2"));
+        assertEquals(2, tokenTable.size());
+        assertEquals("token1", tokenTable.get(reference));
+        assertEquals(-1, tokenTable.indexOf("token3"));
+    }
+
+    @Test
+    public void testPoolGrowsBeyondInitialCapacity() {
+        TokenTable tokenTable = new TokenTable(16);
+        int tokenCount = 20000;
+        for (int i = 0; i < tokenCount; i++) {
+            assertEquals(i, tokenTable.intern(token(i)));
+        }
+
+        assertEquals(tokenCount, tokenTable.size());
+        for (int i = 0; i < tokenCount; i++) {
+            assertEquals(token(i), tokenTable.get(i));
+            assertEquals(i, tokenTable.indexOf(token(i)));
+        }
+    }
+
+    @Test
+    public void testNextCapacityDoublesUpToGrowthStep() {
+        assertEquals(32, TokenTable.nextCapacity(16, 17, 1024));
+        assertEquals(5120, TokenTable.nextCapacity(4096, 4097, 1024));
+        assertEquals(100, TokenTable.nextCapacity(10, 100, 1024));
+        assertEquals(1, TokenTable.nextCapacity(0, 1, 1024));
+    }
+
+    @Test
+    public void testNextCapacityIsCappedAtMaxArrayLength() {
+        int length = TokenTable.MAX_ARRAY_LENGTH - 10;
+        assertEquals(TokenTable.MAX_ARRAY_LENGTH, TokenTable.nextCapacity(length, length + 1L, Integer.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNextCapacityRejectsOversizedArrays() {
+        TokenTable.nextCapacity(TokenTable.MAX_ARRAY_LENGTH, (long) Integer.MAX_VALUE + 1, 1024);
+    }
+}
@@ -0,0 +1,100 @@
+package models.pushservices.app;
+
+import enums.pushservices.RecipientState;
+import enums.pushservices.RecipientType;
+import models.pushservices.db.Recipient;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test growth of the in-flight recipient table and conversion back to recipient entities.
+ */
+public class RecipientTableTest {
+
+    @Test
+    public void testRowsGrowBeyondExpectedSize() {
+        RecipientTable recipientTable = new RecipientTable(16);
+        int recipientCount = 5000;
+        for (int i = 0; i < recipientCount; i++) {
+            int row = recipientTable.add(i + 1, "token" + i, RecipientType.TYPE_TOKEN,
+                    i % 2 == 0 ? RecipientState.STATE_IDLE : RecipientState.STATE_COMPLETE, i % 5, i, 0L);
+            assertEquals(i, row);
+        }
+
+        assertEquals(recipientCount, recipientTable.size());
+        for (int row = 0; row < recipientCount; row++) {
+            assertEquals(row + 1, recipientTable.getRecipientId(row));
+            assertEquals("token" + row, recipientTable.getToken(row));
+            assertEquals(row % 2 == 0 ? RecipientState.STATE_IDLE : RecipientState.STATE_COMPLETE, recipientTable.getState(row));
+            assertEquals(row % 5, recipientTable.getSendAttemptCount(row));
+            assertEquals(row, recipientTable.getLastSendAttempt(row));
+        }
+    }
+
+    @Test
+    public void testToRecipients() {
+        RecipientTable recipientTable = new RecipientTable(2);
+        recipientTable.add(RecipientTable.NO_RECIPIENT_ID, "token1", null, null, 0, 0L, 0L);
+        recipientTable.add(7, "/topics/news", RecipientType.TYPE_TOPIC, RecipientState.STATE_WAITING_RETRY, 2, 1000L, 2000L);
+
+        List<Recipient> recipients = recipientTable.toRecipients();
+        assertEquals(2, recipients.size());
+
+        assertNull(recipients.get(0).getId());
+        assertEquals("token1", recipients.get(0).getToken());
+        assertEquals(RecipientType.TYPE_TOKEN, recipients.get(0).getType());
+        assertEquals(RecipientState.STATE_IDLE, recipients.get(0).getState());
+        assertNull(recipients.get(0).getNextAttempt());
+
+        assertEquals(Long.valueOf(7), recipients.get(1).getId());
+        assertEquals(RecipientType.TYPE_TOPIC, recipients.get(1).getType());
+        assertEquals(RecipientState.STATE_WAITING_RETRY, recipients.get(1).getState());
+        assertEquals(2, recipients.get(1).getSendAttemptCount());
+        assertEquals(2000L, recipients.get(1).getNextAttempt().getTime());
+    }
+
+    @Test
+    public void testSentMembersSurviveReload() {
+        RecipientTable recipientTable = new RecipientTable(4);
+        int completedRow = recipientTable.addAudienceMember(100, "token1");
+        int failedRow = recipientTable.addAudienceMember(105, "token2");
+        recipientTable.addAudienceMember(110, "token3");
+        assertNull(recipientTable.takeSentMembers());
+
+        recipientTable.setState(completedRow, RecipientState.STATE_COMPLETE);
+        recipientTable.setState(failedRow, RecipientState.STATE_FAILED);
+        recipientTable.markSentMembers(recipientTable.takeChangedRows());
+        byte[] sentMembers = recipientTable.takeSentMembers();
+        assertNotNull(sentMembers);
+        assertNull(recipientTable.takeSentMembers());
+
+        // A failed save hands the bitmap back for the next save.
+        recipientTable.restoreSentMembers();
+        assertArrayEquals(sentMembers, recipientTable.takeSentMembers());
+
+        // Only completed members are sent. Failed members are stored as recipients instead.
+        RecipientTable reloadedTable = new RecipientTable(4);
+        reloadedTable.setSentMembers(recipientTable.getSentMemberBase(), sentMembers);
+        assertTrue(reloadedTable.isMemberSent(100));
+        assertFalse(reloadedTable.isMemberSent(105));
+        assertFalse(reloadedTable.isMemberSent(110));
+        assertFalse(reloadedTable.isMemberSent(99));
+        assertEquals(100, reloadedTable.getSentMemberBase());
+
+        // Members added to the reloaded table keep the saved base.
+        reloadedTable.addSentMember();
+        int row = reloadedTable.addAudienceMember(110, "token3");
+        reloadedTable.setState(row, RecipientState.STATE_COMPLETE);
+        BitSet changedRows = reloadedTable.takeChangedRows();
+        reloadedTable.markSentMembers(changedRows);
+        assertNotNull(reloadedTable.takeSentMembers());
+        assertTrue(reloadedTable.isMemberSent(100));
+        assertTrue(reloadedTable.isMemberSent(110));
+        assertEquals(1, reloadedTable.getSentMemberCount());
+        assertEquals(110, reloadedTable.getMemberId(row));
+    }
+}
@@ -0,0 +1,160 @@
+package services.pushservices;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import enums.pushservices.PlatformType;
+import models.pushservices.db.Credentials;
+import models.pushservices.db.Message;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test deficit round robin ordering and in-flight limits of the fair message process queue.
+ */
+public class FairMessageQueueTest {
+    private static final long POLL_TIMEOUT_MS = 50;
+
+    private long mLastMessageId;
+
+    private static FairMessageQueue createQueue(long quantum, int maxInFlight, Map<String, Object> weights) {
+        Map<String, Object> configValues = new HashMap<>();
+        configValues.put("pushservices.fairness.quantum", quantum);
+        configValues.put("pushservices.fairness.maxInFlight", maxInFlight);
+        for (Map.Entry<String, Object> weight : weights.entrySet()) {
+            configValues.put("pushservices.fairness.weights." + weight.getKey(), weight.getValue());
+        }
+
+        Config configuration = ConfigFactory.parseMap(configValues);
+        return new FairMessageQueue(configuration);
+    }
+
+    private Message createMessage(String alias, int pendingCount) {
+        Credentials credentials = new Credentials(PlatformType.SERVICE_GCM);
+        credentials.setAlias(alias);
+        credentials.setAuthKey(alias + "_key");
+
+        Message message = new Message();
+        message.setId(++mLastMessageId);
+        message.setCredentials(credentials);
+        message.setPendingCount(pendingCount);
+        return message;
+    }
+
+    private static String takeTenants(FairMessageQueue queue, int count) throws InterruptedException {
+        StringBuilder tenants = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            Message message = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull(message);
+            tenants.append(message.getCredentials().getAlias());
+        }
+        return tenants.toString();
+    }
+
+    @Test
+    public void testTenantsInterleave() throws InterruptedException {
+        FairMessageQueue queue = createQueue(1000, 0, new HashMap<>());
+        for (int i = 0; i < 4; i++) {
+            queue.add(createMessage("A", 1000));
+        }
+        for (int i = 0; i < 4; i++) {
+            queue.add(createMessage("B", 1000));
+        }
+
+        assertEquals(8, queue.size());
+        assertEquals("ABABABAB", takeTenants(queue, 8));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testWeightedTenantsInterleave() throws InterruptedException {
+        Map<String, Object> weights = new HashMap<>();
+        weights.put("A", 2);
+        FairMessageQueue queue = createQueue(1000, 0, weights);
+        for (int i = 0; i < 4; i++) {
+            queue.add(createMessage("A", 1000));
+        }
+        for (int i = 0; i < 2; i++) {
+            queue.add(createMessage("B", 1000));
+        }
+
+        assertEquals("AABAAB", takeTenants(queue, 6));
+    }
+
+    @Test
+    public void testLargeMessageDoesNotHoldUpSmallMessages() throws InterruptedException {
+        FairMessageQueue queue = createQueue(1000, 0, new HashMap<>());
+        queue.add(createMessage("A", 5000));
+        queue.add(createMessage("A", 10));
+        for (int i = 0; i < 3; i++) {
+            queue.add(createMessage("B", 600));
+        }
+
+        assertEquals("BBBAA", takeTenants(queue, 5));
+    }
+
+    @Test
+    public void testInFlightLimit() throws InterruptedException {
+        FairMessageQueue queue = createQueue(1000, 100, new HashMap<>());
+        Message largeMessage = createMessage("A", 500);
+        queue.add(largeMessage);
+        queue.add(createMessage("A", 50));
+
+        assertSame(largeMessage, queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(100, queue.getDispatchAllowance(largeMessage));
+        queue.startDispatch(largeMessage, 100);
+        assertEquals(0, queue.getDispatchAllowance(largeMessage));
+        assertEquals(100, queue.getInFlightRecipients(largeMessage.getId()));
+
+        // Tenant A is at its limit, so only other tenants are dispatched.
+        assertNull(queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Message otherMessage = createMessage("B", 50);
+        queue.add(otherMessage);
+        assertSame(otherMessage, queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        queue.finishDispatch(largeMessage);
+        assertEquals(0, queue.getInFlightRecipients(largeMessage.getId()));
+        Message nextMessage = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(nextMessage);
+        assertEquals("A", nextMessage.getCredentials().getAlias());
+    }
+
+    @Test
+    public void testTenantsKeyedByAlias() {
+        FairMessageQueue queue = createQueue(1000, 0, new HashMap<>());
+
+        // Separate copies of the same registered credentials share a lane.
+        queue.add(createMessage("A", 10));
+        queue.add(createMessage("A", 10));
+
+        List<FairMessageQueue.LaneStatus> laneStatus = queue.getLaneStatus();
+        assertEquals(1, laneStatus.size());
+        assertEquals("A", laneStatus.get(0).getTenant());
+        assertEquals(2, laneStatus.get(0).getQueuedMessages());
+    }
+
+    @Test
+    public void testIdleLanesAreRemoved() throws InterruptedException {
+        FairMessageQueue queue = createQueue(1000, 100, new HashMap<>());
+        Message message = createMessage("A", 10);
+        queue.add(message);
+
+        assertSame(message, queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        queue.startDispatch(message, 10);
+        assertEquals(1, queue.getLaneStatus().size());
+        assertEquals(10, queue.getLaneStatus().get(0).getInFlightRecipients());
+
+        queue.finishDispatch(message);
+        assertTrue(queue.getLaneStatus().isEmpty());
+
+        Message removedMessage = createMessage("B", 10);
+        queue.add(removedMessage);
+        assertTrue(queue.remove(removedMessage));
+        assertTrue(queue.getLaneStatus().isEmpty());
+    }
+}
@@ -2,11 +2,13 @@ create schema pushservices;
 	
 create table pushservices.credentials (
   id                            bigint not null,
+  alias                         varchar(255),
   platform                      varchar(4),
   authorisation_key             TEXT,
   certificate_body              TEXT,
   package_uri                   TEXT,
   constraint ck_credentials_platform check ( platform in ('GCM','APNS')),
+  constraint uq_credentials_alias unique (alias),
   constraint pk_credentials primary key (id)
 );
 create sequence pushservices.credentials_id_seq;
@@ -20,12 +22,38 @@ create table pushservices.messages (
   delay_while_idle              boolean default false not null,
   dry_run                       boolean default false not null,
   maximum_retries               integer not null,
+  payload                       jsonb,
+  audience_id                   bigint,
+  audience_sent                 boolean default false not null,
+  audience_sent_base            bigint,
+  audience_sent_members         bytea,
+  idempotency_key               varchar(255),
+  dispatcher_id                 varchar(255),
+  claimed_at                    timestamp without time zone,
+  send_at                       timestamp without time zone,
+  recipients_pending            integer default 0 not null,
+  recipients_complete           integer default 0 not null,
+  recipients_failed             integer default 0 not null,
+  recipients_retrying           integer default 0 not null,
+  recipients_cancelled          integer default 0 not null,
+  recipients_expired            integer default 0 not null,
   added_time                    timestamp without time zone,
   constraint ck_messages_priority check ( priority in ('normal','low','high')),
-  constraint uq_messages_credentials_id unique (credentials_id),
   constraint pk_messages primary key (id)
 );
 create sequence pushservices.message_id_seq;
+create index ix_messages_finished_added_time on pushservices.messages (added_time) where recipients_pending = 0 and recipients_retrying = 0;
+create index ix_messages_recipients_outstanding on pushservices.messages (id) where recipients_pending > 0 or recipients_retrying > 0;
+create unique index uq_messages_idempotency_key on pushservices.messages (idempotency_key) where idempotency_key is not null;
+create index ix_messages_send_at on pushservices.messages (send_at) where send_at is not null and (recipients_pending > 0 or recipients_retrying > 0);
+
+-- Pending message notifications (pushservices.notify.enabled) also need the trigger in pushservices-notify.sql.
+
+create table pushservices.message_outbox (
+  message_id                    bigint not null,
+  added_time                    timestamp without time zone default now() not null,
+  constraint pk_message_outbox primary key (message_id)
+);
 
 create table pushservices.payload_element (
   id                            bigint not null,
@@ -50,19 +78,68 @@ create table pushservices.recipients (
   id                            bigint not null,
   failure_id                    bigint,
   token                         TEXT,
+  type                          varchar(9) default 'TOKEN' not null,
   message_id                    bigint,
   state                         varchar(13),
   send_attempts                 integer not null,
   last_attempt                  timestamp without time zone,
   next_attempt                  timestamp without time zone,
-  constraint ck_recipients_state check ( state in ('WAITING_RETRY','COMPLETE','FAILED','IDLE','PROCESSING')),
+  constraint ck_recipients_type check ( type in ('TOKEN','TOPIC','CONDITION')),
+  constraint ck_recipients_state check ( state in ('WAITING_RETRY','COMPLETE','FAILED','IDLE','PROCESSING','CANCELLED','EXPIRED')),
   constraint uq_recipients_failure_id unique (failure_id),
   constraint pk_recipients primary key (id)
 );
 create sequence pushservices.recipient_id_seq;
 
+create table pushservices.suppressed_tokens (
+  id                            bigint not null,
+  token                         TEXT,
+  type                          varchar(30),
+  added_time                    timestamp without time zone,
+  constraint uq_suppressed_tokens_token unique (token),
+  constraint pk_suppressed_tokens primary key (id)
+);
+create sequence pushservices.suppressed_token_id_seq;
+
+create table pushservices.canonical_tokens (
+  id                            bigint not null,
+  stale_token                   TEXT,
+  canonical_token               TEXT,
+  updated_time                  timestamp without time zone,
+  constraint uq_canonical_tokens_stale_token unique (stale_token),
+  constraint pk_canonical_tokens primary key (id)
+);
+create sequence pushservices.canonical_token_id_seq;
+
+create table pushservices.audiences (
+  id                            bigint not null,
+  name                          varchar(255),
+  added_time                    timestamp without time zone,
+  constraint uq_audiences_name unique (name),
+  constraint pk_audiences primary key (id)
+);
+create sequence pushservices.audience_id_seq;
+
+create table pushservices.audience_members (
+  id                            bigint not null,
+  audience_id                   bigint,
+  token                         TEXT,
+  added_time                    timestamp without time zone,
+  constraint uq_audience_members_audience_id_token unique (audience_id,token),
+  constraint pk_audience_members primary key (id)
+);
+create sequence pushservices.audience_member_id_seq;
+
+create index ix_messages_credentials_id on pushservices.messages (credentials_id);
 alter table pushservices.messages add constraint fk_messages_credentials_id foreign key (credentials_id) references pushservices.credentials (id) on delete restrict on update restrict;
 
+create index ix_messages_audience_id on pushservices.messages (audience_id);
+alter table pushservices.messages add constraint fk_messages_audience_id foreign key (audience_id) references pushservices.audiences (id) on delete restrict on update restrict;
+
+alter table pushservices.audience_members add constraint fk_audience_members_audience_id foreign key (audience_id) references pushservices.audiences (id) on delete restrict on update restrict;
+
+alter table pushservices.message_outbox add constraint fk_message_outbox_message_id foreign key (message_id) references pushservices.messages (id) on delete cascade on update restrict;
+
 create index ix_payload_element_message_id on pushservices.payload_element (message_id);
 alter table pushservices.payload_element add constraint fk_payload_element_message_id foreign key (message_id) references pushservices.messages (id) on delete restrict on update restrict;
 
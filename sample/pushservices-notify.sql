@@ -0,0 +1,16 @@
+-- Optional. Only install when pending message notifications are enabled (pushservices.notify.enabled = true),
+-- after pushservices-create-all.sql. Without it, every insert and claim release on a busy table would raise a
+-- notification that no dispatcher listens for.
+--
+-- Notify listening dispatchers of pending messages that no dispatcher has claimed, including those
+-- released by a dispatcher that is shutting down.
+create function pushservices.notify_pending_message() returns trigger as $$
+begin
+  perform pg_notify('pushservices_pending', new.id::text);
+  return null;
+end;
+$$ language plpgsql;
+
+create trigger tr_messages_notify_pending after insert or update of recipients_pending, dispatcher_id on pushservices.messages
+  for each row when (new.dispatcher_id is null and (new.recipients_pending > 0 or new.recipients_retrying > 0))
+  execute procedure pushservices.notify_pending_message();
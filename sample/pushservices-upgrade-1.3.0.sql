@@ -0,0 +1,117 @@
+-- Upgrade an existing 1.2.x pushservices schema to 1.3.0. Run once, before starting 1.3.0.
+-- It adds the new columns, tables and indexes of pushservices-create-all.sql, and lets messages share
+-- registered credentials. It then backfills the recipient progress counters of saved messages. Otherwise
+-- every counter is 0, so pending messages would never be recovered, and the retention purge would
+-- delete them as finished.
+-- Pending message notifications (pushservices.notify.enabled) also need the trigger in pushservices-notify.sql.
+
+-- Registered credentials are shared by the messages that use them.
+alter table pushservices.credentials add column if not exists alias varchar(255);
+alter table pushservices.credentials drop constraint if exists uq_credentials_alias;
+alter table pushservices.credentials add constraint uq_credentials_alias unique (alias);
+alter table pushservices.messages drop constraint if exists uq_messages_credentials_id;
+create index if not exists ix_messages_credentials_id on pushservices.messages (credentials_id);
+
+create table if not exists pushservices.audiences (
+  id                            bigint not null,
+  name                          varchar(255),
+  added_time                    timestamp without time zone,
+  constraint uq_audiences_name unique (name),
+  constraint pk_audiences primary key (id)
+);
+create sequence if not exists pushservices.audience_id_seq;
+
+create table if not exists pushservices.audience_members (
+  id                            bigint not null,
+  audience_id                   bigint,
+  token                         TEXT,
+  added_time                    timestamp without time zone,
+  constraint uq_audience_members_audience_id_token unique (audience_id,token),
+  constraint pk_audience_members primary key (id)
+);
+create sequence if not exists pushservices.audience_member_id_seq;
+
+alter table pushservices.messages add column if not exists payload jsonb;
+alter table pushservices.messages add column if not exists audience_id bigint;
+alter table pushservices.messages add column if not exists audience_sent boolean default false not null;
+alter table pushservices.messages add column if not exists audience_sent_base bigint;
+alter table pushservices.messages add column if not exists audience_sent_members bytea;
+alter table pushservices.messages add column if not exists idempotency_key varchar(255);
+alter table pushservices.messages add column if not exists dispatcher_id varchar(255);
+alter table pushservices.messages add column if not exists claimed_at timestamp without time zone;
+alter table pushservices.messages add column if not exists send_at timestamp without time zone;
+alter table pushservices.messages add column if not exists recipients_pending integer default 0 not null;
+alter table pushservices.messages add column if not exists recipients_complete integer default 0 not null;
+alter table pushservices.messages add column if not exists recipients_failed integer default 0 not null;
+alter table pushservices.messages add column if not exists recipients_retrying integer default 0 not null;
+alter table pushservices.messages add column if not exists recipients_cancelled integer default 0 not null;
+alter table pushservices.messages add column if not exists recipients_expired integer default 0 not null;
+
+create index if not exists ix_messages_finished_added_time on pushservices.messages (added_time) where recipients_pending = 0 and recipients_retrying = 0;
+create index if not exists ix_messages_recipients_outstanding on pushservices.messages (id) where recipients_pending > 0 or recipients_retrying > 0;
+create unique index if not exists uq_messages_idempotency_key on pushservices.messages (idempotency_key) where idempotency_key is not null;
+create index if not exists ix_messages_send_at on pushservices.messages (send_at) where send_at is not null and (recipients_pending > 0 or recipients_retrying > 0);
+create index if not exists ix_messages_audience_id on pushservices.messages (audience_id);
+alter table pushservices.messages drop constraint if exists fk_messages_audience_id;
+alter table pushservices.messages add constraint fk_messages_audience_id foreign key (audience_id) references pushservices.audiences (id) on delete restrict on update restrict;
+alter table pushservices.audience_members drop constraint if exists fk_audience_members_audience_id;
+alter table pushservices.audience_members add constraint fk_audience_members_audience_id foreign key (audience_id) references pushservices.audiences (id) on delete restrict on update restrict;
+
+create table if not exists pushservices.message_outbox (
+  message_id                    bigint not null,
+  added_time                    timestamp without time zone default now() not null,
+  constraint pk_message_outbox primary key (message_id)
+);
+alter table pushservices.message_outbox drop constraint if exists fk_message_outbox_message_id;
+alter table pushservices.message_outbox add constraint fk_message_outbox_message_id foreign key (message_id) references pushservices.messages (id) on delete cascade on update restrict;
+
+-- Recipients can be topics or conditions, and can be cancelled or expire.
+alter table pushservices.recipients add column if not exists type varchar(9) default 'TOKEN' not null;
+alter table pushservices.recipients drop constraint if exists ck_recipients_type;
+alter table pushservices.recipients add constraint ck_recipients_type check ( type in ('TOKEN','TOPIC','CONDITION'));
+alter table pushservices.recipients drop constraint if exists ck_recipients_state;
+alter table pushservices.recipients add constraint ck_recipients_state check ( state in ('WAITING_RETRY','COMPLETE','FAILED','IDLE','PROCESSING','CANCELLED','EXPIRED'));
+
+create table if not exists pushservices.suppressed_tokens (
+  id                            bigint not null,
+  token                         TEXT,
+  type                          varchar(30),
+  added_time                    timestamp without time zone,
+  constraint uq_suppressed_tokens_token unique (token),
+  constraint pk_suppressed_tokens primary key (id)
+);
+create sequence if not exists pushservices.suppressed_token_id_seq;
+
+create table if not exists pushservices.canonical_tokens (
+  id                            bigint not null,
+  stale_token                   TEXT,
+  canonical_token               TEXT,
+  updated_time                  timestamp without time zone,
+  constraint uq_canonical_tokens_stale_token unique (stale_token),
+  constraint pk_canonical_tokens primary key (id)
+);
+create sequence if not exists pushservices.canonical_token_id_seq;
+
+update pushservices.messages m set
+  recipients_pending = counts.pending,
+  recipients_complete = counts.complete,
+  recipients_failed = counts.failed,
+  recipients_retrying = counts.retrying,
+  recipients_cancelled = counts.cancelled,
+  recipients_expired = counts.expired
+from (
+  select message_id,
+    coalesce(sum(state_count) filter (where state in ('IDLE', 'PROCESSING') or state is null), 0) as pending,
+    coalesce(sum(state_count) filter (where state = 'COMPLETE'), 0) as complete,
+    coalesce(sum(state_count) filter (where state = 'FAILED'), 0) as failed,
+    coalesce(sum(state_count) filter (where state = 'WAITING_RETRY'), 0) as retrying,
+    coalesce(sum(state_count) filter (where state = 'CANCELLED'), 0) as cancelled,
+    coalesce(sum(state_count) filter (where state = 'EXPIRED'), 0) as expired
+  from (
+    select message_id, state, count(*) as state_count
+    from pushservices.recipients
+    group by message_id, state
+  ) recipient_states
+  group by message_id
+) counts
+where m.id = counts.message_id;